@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Start an in-memory LDAP server and a mocked wiki configured to use it.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractTrustedLDAPBenchmark
+{
+    /**
+     * The domains of the directory.
+     */
+    protected static final String[] DOMAINS = new String[] {"domain1", "domain2"};
+
+    protected SyntheticDirectory directory;
+
+    protected BenchmarkEnvironment environment;
+
+    protected TrustedLDAPAuthServiceImpl authenticator;
+
+    protected XWikiContext context;
+
+    /**
+     * @throws Exception when failing to start the environment
+     */
+    @Setup(Level.Trial)
+    public void startEnvironment() throws Exception
+    {
+        this.directory = new SyntheticDirectory(DOMAINS, getUsers(), getGroups());
+        this.directory.start();
+
+        this.environment = new BenchmarkEnvironment();
+        this.environment.start(this.directory, getConfiguration());
+
+        this.authenticator = new BenchmarkEnvironment.BenchmarkAuthService();
+        this.context = this.environment.createContext(SyntheticDirectory.getUid(0) + '@' + DOMAINS[0]);
+    }
+
+    /**
+     * @throws Exception when failing to stop the environment
+     */
+    @TearDown(Level.Trial)
+    public void stopEnvironment() throws Exception
+    {
+        this.environment.stop();
+        this.directory.stop();
+    }
+
+    /**
+     * @return the number of users per domain
+     */
+    protected int getUsers()
+    {
+        return 100;
+    }
+
+    /**
+     * @return the number of groups per domain
+     */
+    protected int getGroups()
+    {
+        return 5;
+    }
+
+    /**
+     * @return xwiki.cfg properties overwriting the default environment
+     */
+    protected Map<String, String> getConfiguration()
+    {
+        return Collections.emptyMap();
+    }
+}
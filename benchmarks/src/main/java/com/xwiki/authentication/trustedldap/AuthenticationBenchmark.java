@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Cost of a complete SSO authentication against the in-memory LDAP server, going through LDAP each time or served
+ * from the principal cache.
+ * <p>
+ * Profiles and groups are not written (see {@link BenchmarkEnvironment.BenchmarkAuthService}), the measure covers the
+ * configuration, the profile lookup, the LDAP connection, the user search and the groups expansion.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticationBenchmark extends AbstractTrustedLDAPBenchmark
+{
+    /**
+     * The size of the principal cache, 0 to go through LDAP for each authentication.
+     */
+    @Param({"0", "1000"})
+    public String principalCacheSize;
+
+    private XWikiContext[] contexts;
+
+    private int next;
+
+    @Override
+    protected Map<String, String> getConfiguration()
+    {
+        return Collections.singletonMap(BenchmarkEnvironment.PREFIX + "principalCache.maxSize",
+            this.principalCacheSize);
+    }
+
+    /**
+     * Prepare a request for each user of the directory.
+     */
+    @Setup(Level.Trial)
+    public void createContexts()
+    {
+        this.contexts = new XWikiContext[DOMAINS.length * getUsers()];
+
+        int index = 0;
+        for (String domain : DOMAINS) {
+            for (int i = 0; i < getUsers(); ++i) {
+                this.contexts[index++] = this.environment.createContext(SyntheticDirectory.getUid(i) + '@' + domain);
+            }
+        }
+    }
+
+    @Benchmark
+    public Principal authenticateSSOInContext() throws Exception
+    {
+        XWikiContext requestContext = this.contexts[this.next++ % this.contexts.length];
+
+        return this.authenticator.authenticateSSOInContext(null, null, false, requestContext);
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.Cookie;
+
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPSearchAttribute;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+import com.xpn.xwiki.user.impl.LDAP.LDAPProfileXClass;
+import com.xpn.xwiki.web.XWikiServletRequestStub;
+
+/**
+ * A fake XWiki instance configured to authenticate the users of a {@link SyntheticDirectory}.
+ * <p>
+ * The configuration is read from an in-memory xwiki.cfg, XWiki preferences are empty and each user of the directory
+ * already has a profile. The instance is a plain proxy (and not a jmock mock which records each invocation) so that it
+ * can be used from several threads and during long runs.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class BenchmarkEnvironment extends AbstractBridgedComponentTestCase
+{
+    /**
+     * The xwiki.cfg property prefix of the authenticator.
+     */
+    public static final String PREFIX = "xwiki.authentication.trustedldap.";
+
+    private final Map<String, String> configuration = new ConcurrentHashMap<String, String>();
+
+    private final Map<String, XWikiDocument> documents = new ConcurrentHashMap<String, XWikiDocument>();
+
+    private final List<Object[]> profileRows = new ArrayList<Object[]>();
+
+    private XWiki xwiki;
+
+    /**
+     * Request returning a fixed remote user and cookies.
+     */
+    public static class RemoteUserRequest extends XWikiServletRequestStub
+    {
+        private final String remoteUser;
+
+        private Cookie[] cookies;
+
+        /**
+         * @param remoteUser the remote user
+         */
+        public RemoteUserRequest(String remoteUser)
+        {
+            this.remoteUser = remoteUser;
+        }
+
+        @Override
+        public String getRemoteUser()
+        {
+            return this.remoteUser;
+        }
+
+        @Override
+        public Cookie[] getCookies()
+        {
+            return this.cookies;
+        }
+
+        @Override
+        public Cookie getCookie(String cookieName)
+        {
+            if (this.cookies != null) {
+                for (Cookie cookie : this.cookies) {
+                    if (cookie.getName().equals(cookieName)) {
+                        return cookie;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @param cookies the cookies sent by the client
+         */
+        public void setCookies(Cookie[] cookies)
+        {
+            this.cookies = cookies;
+        }
+    }
+
+    /**
+     * Authenticator which only computes the groups membership instead of writing users and groups in the wiki.
+     */
+    public static class BenchmarkAuthService extends TrustedLDAPAuthServiceImpl
+    {
+        @Override
+        protected void synchronize(XWikiDocument userProfile, List<XWikiLDAPSearchAttribute> searchAttributes,
+            String ldapDn, String ssoRemoteUser, boolean isNewUser, Map<String, String> remoteUserLDAPConfiguration,
+            TrustedLDAPUtils ldapUtils, XWikiContext context) throws XWikiException
+        {
+            ldapUtils.getMappedGroups(ldapDn, getConfig().getGroupMappings(remoteUserLDAPConfiguration, context),
+                context);
+        }
+    }
+
+    /**
+     * Start a mocked wiki configured for the passed directory.
+     *
+     * @param directory the started LDAP server
+     * @param customConfiguration xwiki.cfg properties overwriting the default ones
+     * @throws Exception when failing to initialize the environment
+     */
+    public void start(SyntheticDirectory directory, Map<String, String> customConfiguration) throws Exception
+    {
+        setUp();
+
+        configure(directory);
+        this.configuration.putAll(customConfiguration);
+
+        for (String domain : directory.getDomains()) {
+            for (int i = 0; i < directory.getUsers(); ++i) {
+                addProfile(domain, SyntheticDirectory.getUid(i));
+            }
+        }
+
+        final XWikiStoreInterface store =
+            ClassImposteriser.INSTANCE.imposterise(new Invokable()
+            {
+                @Override
+                public Object invoke(Invocation invocation)
+                {
+                    return invokeStore(invocation);
+                }
+            }, XWikiStoreInterface.class);
+        this.xwiki = ClassImposteriser.INSTANCE.imposterise(new Invokable()
+        {
+            @Override
+            public Object invoke(Invocation invocation)
+            {
+                return invokeXWiki(invocation, store);
+            }
+        }, XWiki.class);
+
+        getContext().setWiki(this.xwiki);
+        getContext().setDatabase("xwiki");
+        getContext().setMainXWiki("xwiki");
+    }
+
+    private Object invokeXWiki(Invocation invocation, XWikiStoreInterface store)
+    {
+        Method method = invocation.getInvokedMethod();
+        String name = method.getName();
+        Class<?> type = method.getReturnType();
+        int count = invocation.getParameterCount();
+
+        if (name.startsWith("Param")) {
+            // Param(key), Param(key, default), ParamAsLong(key, default)
+            return convert(this.configuration.get(invocation.getParameter(0)),
+                count > 1 ? invocation.getParameter(1) : null, type);
+        } else if (name.startsWith("getXWikiPreference")) {
+            // No preferences: fallback xwiki.cfg parameter if any, then default value if any
+            Object def = count > 2 ? invocation.getParameter(count - 2) : null;
+
+            return convert(count > 3 ? this.configuration.get(invocation.getParameter(1)) : null, def, type);
+        } else if (name.equals("getDocument")) {
+            Object reference = invocation.getParameter(0);
+
+            if (reference instanceof DocumentReference) {
+                DocumentReference documentReference = (DocumentReference) reference;
+
+                return getDocument(documentReference.getLastSpaceReference().getName() + '.'
+                    + documentReference.getName());
+            } else if (count == 3 && invocation.getParameter(1) instanceof String) {
+                return getDocument(reference + "." + invocation.getParameter(1));
+            } else {
+                return getDocument(String.valueOf(reference));
+            }
+        } else if (name.equals("getStore")) {
+            return store;
+        }
+
+        return convert(null, null, type);
+    }
+
+    private Object invokeStore(Invocation invocation)
+    {
+        Method method = invocation.getInvokedMethod();
+
+        // The only query: the uids of the LDAP profiles
+        if (method.getName().equals("search") && invocation.getParameter(0) instanceof String) {
+            return this.profileRows;
+        }
+
+        return convert(null, null, method.getReturnType());
+    }
+
+    private static Object convert(String value, Object def, Class<?> type)
+    {
+        if (type == long.class) {
+            return value != null ? Long.valueOf(value) : def != null ? def : Long.valueOf(0);
+        } else if (type == int.class) {
+            return value != null ? Integer.valueOf(value) : def != null ? def : Integer.valueOf(0);
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type.isPrimitive()) {
+            return type == void.class ? null : Integer.valueOf(0);
+        } else if (List.class.isAssignableFrom(type)) {
+            return Collections.emptyList();
+        }
+
+        return value != null ? value : def;
+    }
+
+    /**
+     * Stop the mocked wiki.
+     *
+     * @throws Exception when failing to clean the environment
+     */
+    public void stop() throws Exception
+    {
+        tearDown();
+    }
+
+    private void configure(SyntheticDirectory directory)
+    {
+        this.configuration.put(SSOCookieCipher.CONF_KEY, "benchmark encryption key with 24+ characters");
+
+        this.configuration.put(PREFIX + "remoteUserParser", "(.+)@(.+)");
+        this.configuration.put(PREFIX + "remoteUserMapping.1", "login");
+        this.configuration.put(PREFIX + "remoteUserMapping.2",
+            "domain,ldap_server,ldap_port,ldap_base_DN,ldap_bind_DN,ldap_bind_pass,ldap_group_mapping");
+        this.configuration.put(PREFIX + "userPageName", "${domain}-${login}");
+
+        Map<String, StringBuilder> mappings = new HashMap<String, StringBuilder>();
+        for (String property : new String[] {"ldap_server", "ldap_port", "ldap_base_DN", "ldap_bind_DN",
+            "ldap_bind_pass", "ldap_group_mapping"}) {
+            mappings.put(property, new StringBuilder());
+        }
+
+        for (String domain : directory.getDomains()) {
+            append(mappings.get("ldap_server"), domain, "localhost");
+            append(mappings.get("ldap_port"), domain, String.valueOf(directory.getPort()));
+            append(mappings.get("ldap_base_DN"), domain, SyntheticDirectory.getBaseDN(domain));
+            append(mappings.get("ldap_bind_DN"), domain, SyntheticDirectory.BIND_DN);
+            append(mappings.get("ldap_bind_pass"), domain, SyntheticDirectory.BIND_PASSWORD);
+
+            StringBuilder groupMapping = new StringBuilder();
+            for (int g = 0; g < directory.getGroups(); ++g) {
+                if (g > 0) {
+                    groupMapping.append("\\|");
+                }
+                groupMapping.append("XWiki.Group").append(g).append('=')
+                    .append(SyntheticDirectory.getGroupDN(domain, g));
+            }
+            groupMapping.append("\\|XWiki.Everyone=").append(SyntheticDirectory.getEveryoneGroupDN(domain));
+            append(mappings.get("ldap_group_mapping"), domain, groupMapping.toString());
+        }
+
+        for (Map.Entry<String, StringBuilder> entry : mappings.entrySet()) {
+            this.configuration.put(PREFIX + "remoteUserMapping." + entry.getKey(), entry.getValue().toString());
+        }
+
+        this.configuration.put("xwiki.authentication.ldap.UID_attr", "uid");
+        this.configuration.put("xwiki.authentication.ldap.fields_mapping",
+            "last_name=sn,first_name=givenName,email=mail");
+    }
+
+    private static void append(StringBuilder mapping, String domain, String value)
+    {
+        if (mapping.length() > 0) {
+            mapping.append('|');
+        }
+        mapping.append(domain).append('=').append(value);
+    }
+
+    private void addProfile(String domain, String uid)
+    {
+        String remoteUser = uid + '@' + domain;
+        String fullName = "XWiki." + domain + '-' + uid;
+
+        XWikiDocument document = new XWikiDocument(new DocumentReference("xwiki", "XWiki", domain + '-' + uid));
+        BaseObject profile = new BaseObject();
+        profile.setClassName(LDAPProfileXClass.LDAP_XCLASS);
+        profile.setStringValue(LDAPProfileXClass.LDAP_XFIELD_UID, remoteUser);
+        profile.setStringValue(LDAPProfileXClass.LDAP_XFIELD_DN, "uid=" + uid + ",ou=users,"
+            + SyntheticDirectory.getBaseDN(domain));
+        document.addObject(LDAPProfileXClass.LDAP_XCLASS, profile);
+        document.setNew(false);
+
+        this.documents.put(fullName, document);
+        this.profileRows.add(new Object[] {fullName, remoteUser});
+    }
+
+    private XWikiDocument getDocument(String fullName)
+    {
+        XWikiDocument document = this.documents.get(fullName);
+
+        if (document == null) {
+            int index = fullName.indexOf('.');
+            document =
+                new XWikiDocument(new DocumentReference("xwiki", fullName.substring(0, index),
+                    fullName.substring(index + 1)));
+        }
+
+        return document;
+    }
+
+    /**
+     * @param key the xwiki.cfg property
+     * @param value the value of the property
+     */
+    public void setConfiguration(String key, String value)
+    {
+        this.configuration.put(key, value);
+    }
+
+    /**
+     * @param remoteUser the remote user provided by the request
+     * @return a new context for a request of the passed remote user
+     */
+    public XWikiContext createContext(String remoteUser)
+    {
+        XWikiContext context = (XWikiContext) getContext().clone();
+        context.setRequest(new RemoteUserRequest(remoteUser));
+        context.setAction("view");
+
+        return context;
+    }
+}
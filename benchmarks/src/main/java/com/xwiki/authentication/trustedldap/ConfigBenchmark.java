@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading the configuration, from the per wiki snapshot and when it has to be parsed again.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark extends AbstractTrustedLDAPBenchmark
+{
+    private TrustedLDAPConfig config;
+
+    private Map<String, String> remoteUserLDAPConfiguration;
+
+    /**
+     * Resolve the remote user configuration used to get group mappings.
+     */
+    @Setup(Level.Trial)
+    public void createConfig()
+    {
+        this.config = new TrustedLDAPConfig();
+        this.remoteUserLDAPConfiguration = this.authenticator.parseRemoteUser("user42@domain2", this.context);
+    }
+
+    @Benchmark
+    public Map<String, String> getMapParam()
+    {
+        return this.config.getMapParam("remoteUserMapping.ldap_server", '|', null, true, this.context);
+    }
+
+    /**
+     * Measure the parsing (and so {@code splitParam}) by dropping the snapshot first.
+     */
+    @Benchmark
+    public Map<String, String> getMapParamUncached()
+    {
+        this.config.invalidate();
+
+        return this.config.getMapParam("remoteUserMapping.ldap_server", '|', null, true, this.context);
+    }
+
+    @Benchmark
+    public Map<String, Set<String>> getGroupMappings()
+    {
+        return this.config.getGroupMappings(this.remoteUserLDAPConfiguration, this.context);
+    }
+
+    @Benchmark
+    public Map<String, Set<String>> getGroupMappingsUncached()
+    {
+        this.config.invalidate();
+
+        return this.config.getGroupMappings(this.remoteUserLDAPConfiguration, this.context);
+    }
+}
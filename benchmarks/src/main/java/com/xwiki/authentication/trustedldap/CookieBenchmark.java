@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of producing and reading the XWIKISSOAUTHINFO cookie in each supported format.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieBenchmark extends AbstractTrustedLDAPBenchmark
+{
+    private static final String PRINCIPAL = "xwiki:XWiki.domain2-user42";
+
+    @Param({"TripleDES", "AES"})
+    public String cookieEncryption;
+
+    private String cookie;
+
+    @Override
+    protected Map<String, String> getConfiguration()
+    {
+        return Collections.singletonMap(SSOCookieCipher.CONF_ENCRYPTION, this.cookieEncryption);
+    }
+
+    /**
+     * Produce the cookie to decrypt.
+     */
+    @Setup(Level.Trial)
+    public void createCookie()
+    {
+        this.cookie = TrustedLDAPAuthServiceImpl.encryptText(PRINCIPAL, this.context);
+    }
+
+    @Benchmark
+    public String encryptText()
+    {
+        return TrustedLDAPAuthServiceImpl.encryptText(PRINCIPAL, this.context);
+    }
+
+    @Benchmark
+    public String decryptText()
+    {
+        return TrustedLDAPAuthServiceImpl.decryptText(this.cookie, this.context);
+    }
+}
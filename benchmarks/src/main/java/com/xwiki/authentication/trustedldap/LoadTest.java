@@ -0,0 +1,322 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.user.api.XWikiUser;
+import com.xpn.xwiki.web.XWikiServletResponseStub;
+
+/**
+ * Drive {@link TrustedLDAPAuthServiceImpl#checkAuth(XWikiContext)} from many threads against a large in-memory LDAP
+ * server and report the throughput, the latency percentiles and the LDAP traffic per login.
+ * <p>
+ * Setup through system properties:
+ * <ul>
+ * <li>loadtest.threads: the number of concurrent clients (default 32)</li>
+ * <li>loadtest.duration: the duration of the measure in seconds (default 30), after loadtest.warmup seconds (default
+ * 10)</li>
+ * <li>loadtest.domains, loadtest.users and loadtest.groups: the size of the directory (default 3 domains of 20000 users
+ * in 50 groups)</li>
+ * <li>loadtest.cookies: true if clients send back the SSO cookie like a browser (default false)</li>
+ * <li>loadtest.result: the JSON file where the report is written (default target/loadtest-result.json)</li>
+ * <li>any xwiki.authentication.* property is used as xwiki.cfg property</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LoadTest
+{
+    private static final int MAX_SAMPLES = 200000;
+
+    private final SyntheticDirectory directory;
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private final TrustedLDAPAuthServiceImpl authenticator = new BenchmarkEnvironment.BenchmarkAuthService();
+
+    private final boolean cookies;
+
+    private final Map<String, Cookie> clientCookies = new ConcurrentHashMap<String, Cookie>();
+
+    private final AtomicLong logins = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean measuring;
+
+    private volatile boolean running = true;
+
+    /**
+     * Response keeping the SSO cookie of the client.
+     */
+    private class ClientResponse extends XWikiServletResponseStub
+    {
+        private final String remoteUser;
+
+        ClientResponse(String remoteUser)
+        {
+            this.remoteUser = remoteUser;
+        }
+
+        @Override
+        public void addCookie(Cookie cookie)
+        {
+            if (cookies) {
+                clientCookies.put(this.remoteUser, cookie);
+            }
+        }
+    }
+
+    /**
+     * A client sending requests in a loop.
+     */
+    private class Client implements Runnable
+    {
+        private final long[] samples = new long[MAX_SAMPLES];
+
+        private int sampleCount;
+
+        private final CountDownLatch done;
+
+        Client(CountDownLatch done)
+        {
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (running) {
+                    request();
+                }
+            } finally {
+                this.done.countDown();
+            }
+        }
+
+        private void request()
+        {
+            String[] domains = directory.getDomains();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String remoteUser =
+                SyntheticDirectory.getUid(random.nextInt(directory.getUsers())) + '@'
+                    + domains[random.nextInt(domains.length)];
+
+            XWikiContext context = environment.createContext(remoteUser);
+            context.setResponse(new ClientResponse(remoteUser));
+            Cookie cookie = clientCookies.get(remoteUser);
+            if (cookie != null) {
+                ((BenchmarkEnvironment.RemoteUserRequest) context.getRequest()).setCookies(new Cookie[] {cookie});
+            }
+
+            long start = System.nanoTime();
+            XWikiUser user;
+            try {
+                user = authenticator.checkAuth(context);
+            } catch (Exception e) {
+                user = null;
+            }
+            long time = System.nanoTime() - start;
+
+            if (measuring) {
+                if (user != null) {
+                    logins.incrementAndGet();
+                } else {
+                    failures.incrementAndGet();
+                }
+
+                if (this.sampleCount < this.samples.length) {
+                    this.samples[this.sampleCount++] = time;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param directory the LDAP server
+     * @param cookies true if clients send back the SSO cookie
+     */
+    public LoadTest(SyntheticDirectory directory, boolean cookies)
+    {
+        this.directory = directory;
+        this.cookies = cookies;
+    }
+
+    /**
+     * @param threads the number of concurrent clients
+     * @param warmup the time in milliseconds before measuring
+     * @param duration the time in milliseconds of the measure
+     * @return the report
+     * @throws Exception when failing to run the test
+     */
+    public Map<String, Object> run(int threads, long warmup, long duration) throws Exception
+    {
+        Map<String, String> configuration = new HashMap<String, String>();
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("xwiki.authentication.")) {
+                configuration.put(key, System.getProperty(key));
+            }
+        }
+
+        this.environment.start(this.directory, configuration);
+
+        CountDownLatch done = new CountDownLatch(threads);
+        Client[] clients = new Client[threads];
+        for (int i = 0; i < threads; ++i) {
+            clients[i] = new Client(done);
+            Thread thread = new Thread(clients[i], "Load test client " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread.sleep(warmup);
+
+        long connections = this.directory.getConnections();
+        long binds = this.directory.getBinds();
+        long searches = this.directory.getSearches();
+        long start = System.nanoTime();
+        this.measuring = true;
+
+        Thread.sleep(duration);
+
+        this.measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        connections = this.directory.getConnections() - connections;
+        binds = this.directory.getBinds() - binds;
+        searches = this.directory.getSearches() - searches;
+
+        this.running = false;
+        done.await();
+
+        this.environment.stop();
+
+        int sampleCount = 0;
+        for (Client client : clients) {
+            sampleCount += client.sampleCount;
+        }
+        long[] samples = new long[sampleCount];
+        int index = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.samples, 0, samples, index, client.sampleCount);
+            index += client.sampleCount;
+        }
+        Arrays.sort(samples);
+
+        long total = this.logins.get();
+
+        Map<String, Object> report = new HashMap<String, Object>();
+        report.put("threads", threads);
+        report.put("domains", this.directory.getDomains().length);
+        report.put("users", this.directory.getUsers());
+        report.put("groups", this.directory.getGroups());
+        report.put("cookies", this.cookies);
+        report.put("logins", total);
+        report.put("failures", this.failures.get());
+        report.put("throughput", total / seconds);
+        report.put("p50", percentile(samples, 0.50) / 1e6);
+        report.put("p99", percentile(samples, 0.99) / 1e6);
+        report.put("max", samples.length > 0 ? samples[samples.length - 1] / 1e6 : 0);
+        report.put("connectionsPerLogin", total > 0 ? (double) connections / total : 0);
+        report.put("bindsPerLogin", total > 0 ? (double) binds / total : 0);
+        report.put("searchesPerLogin", total > 0 ? (double) searches / total : 0);
+
+        return report;
+    }
+
+    private static long percentile(long[] samples, double percentile)
+    {
+        if (samples.length == 0) {
+            return 0;
+        }
+
+        return samples[Math.min(samples.length - 1, (int) Math.ceil(percentile * samples.length) - 1)];
+    }
+
+    private static void write(Map<String, Object> report, File file) throws Exception
+    {
+        file.getParentFile().mkdirs();
+
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : report.entrySet()) {
+            if (json.length() > 1) {
+                json.append(",");
+            }
+            json.append("\n  \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+        }
+        json.append("\n}\n");
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @param args not used, see system properties in the class documentation
+     * @throws Exception when failing to run the test
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String[] domains = new String[Integer.getInteger("loadtest.domains", 3)];
+        for (int i = 0; i < domains.length; ++i) {
+            domains[i] = "domain" + (i + 1);
+        }
+
+        SyntheticDirectory directory =
+            new SyntheticDirectory(domains, Integer.getInteger("loadtest.users", 20000), Integer.getInteger(
+                "loadtest.groups", 50));
+        directory.start();
+
+        try {
+            LoadTest test = new LoadTest(directory, Boolean.getBoolean("loadtest.cookies"));
+
+            Map<String, Object> report =
+                test.run(Integer.getInteger("loadtest.threads", 32), Integer.getInteger("loadtest.warmup", 10) * 1000L,
+                    Integer.getInteger("loadtest.duration", 30) * 1000L);
+
+            System.out.println("Trusted LDAP load test:");
+            for (Map.Entry<String, Object> entry : report.entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+
+            write(report, new File(System.getProperty("loadtest.result", "target/loadtest-result.json")));
+        } finally {
+            directory.stop();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * An in-memory LDAP server filled with synthetic users and groups.
+ * <p>
+ * Each domain has its own base DN "dc=&lt;domain&gt;,dc=com" with the users "uid=user&lt;n&gt;,ou=users" and the
+ * groups "cn=group&lt;n&gt;,ou=groups". User n is member of group n % groups. The nested group "cn=everyone,ou=groups"
+ * contains all the other groups.
+ * <p>
+ * The connections and operations received by the server are counted.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class SyntheticDirectory
+{
+    /**
+     * The DN used by the authenticator to bind.
+     */
+    public static final String BIND_DN = "cn=bind,dc=com";
+
+    /**
+     * The password used by the authenticator to bind.
+     */
+    public static final String BIND_PASSWORD = "password";
+
+    /**
+     * The password of all the users.
+     */
+    public static final String USER_PASSWORD = "secret";
+
+    private final String[] domains;
+
+    private final int users;
+
+    private final int groups;
+
+    private InMemoryDirectoryServer server;
+
+    private final AtomicLong connections = new AtomicLong();
+
+    private final AtomicLong binds = new AtomicLong();
+
+    private final AtomicLong searches = new AtomicLong();
+
+    /**
+     * Count the connections and operations from the server access log.
+     */
+    private class AccessCounter extends Handler
+    {
+        private final Pattern connect = Pattern.compile("(^|[\\s\\]])CONNECT conn=");
+
+        private final Pattern bind = Pattern.compile("(^|[\\s\\]])BIND REQUEST ");
+
+        private final Pattern search = Pattern.compile("(^|[\\s\\]])SEARCH REQUEST ");
+
+        @Override
+        public void publish(LogRecord record)
+        {
+            String message = record.getMessage();
+
+            if (message != null) {
+                if (this.connect.matcher(message).find()) {
+                    connections.incrementAndGet();
+                } else if (this.bind.matcher(message).find()) {
+                    binds.incrementAndGet();
+                } else if (this.search.matcher(message).find()) {
+                    searches.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            // Nothing to flush
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to close
+        }
+    }
+
+    /**
+     * @param domains the domains
+     * @param users the number of users per domain
+     * @param groups the number of groups per domain
+     */
+    public SyntheticDirectory(String[] domains, int users, int groups)
+    {
+        this.domains = domains;
+        this.users = users;
+        this.groups = groups;
+    }
+
+    /**
+     * Fill and start the server on a free port.
+     *
+     * @throws LDAPException when failing to start the server
+     */
+    public void start() throws LDAPException
+    {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=com");
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        config.setAccessLogHandler(new AccessCounter());
+
+        this.server = new InMemoryDirectoryServer(config);
+
+        this.server.add(new Entry("dc=com", "objectClass: top", "objectClass: domain", "dc: com"));
+        for (String domain : this.domains) {
+            addDomain(domain);
+        }
+
+        this.server.startListening();
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop()
+    {
+        if (this.server != null) {
+            this.server.shutDown(true);
+            this.server = null;
+        }
+    }
+
+    private void addDomain(String domain) throws LDAPException
+    {
+        String baseDN = getBaseDN(domain);
+
+        this.server.add(new Entry(baseDN, "objectClass: top", "objectClass: domain", "dc: " + domain));
+        this.server.add(new Entry("ou=users," + baseDN, "objectClass: top", "objectClass: organizationalUnit",
+            "ou: users"));
+        this.server.add(new Entry("ou=groups," + baseDN, "objectClass: top", "objectClass: organizationalUnit",
+            "ou: groups"));
+
+        for (int i = 0; i < this.users; ++i) {
+            String uid = getUid(i);
+
+            this.server.add(new Entry(getUserDN(domain, i), "objectClass: top", "objectClass: person",
+                "objectClass: organizationalPerson", "objectClass: inetOrgPerson", "uid: " + uid, "cn: User " + i,
+                "givenName: User", "sn: " + i, "mail: " + uid + '@' + domain + ".com", "userPassword: "
+                    + USER_PASSWORD));
+        }
+
+        for (int g = 0; g < this.groups; ++g) {
+            Entry group =
+                new Entry(getGroupDN(domain, g), "objectClass: top", "objectClass: groupOfUniqueNames", "cn: group"
+                    + g);
+
+            List<String> members = new ArrayList<String>();
+            for (int i = g; i < this.users; i += this.groups) {
+                members.add(getUserDN(domain, i));
+            }
+            group.addAttribute("uniqueMember", members.toArray(new String[0]));
+
+            this.server.add(group);
+        }
+
+        Entry everyone =
+            new Entry(getEveryoneGroupDN(domain), "objectClass: top", "objectClass: groupOfUniqueNames",
+                "cn: everyone");
+        List<String> groupDNs = new ArrayList<String>();
+        for (int g = 0; g < this.groups; ++g) {
+            groupDNs.add(getGroupDN(domain, g));
+        }
+        everyone.addAttribute("uniqueMember", groupDNs.toArray(new String[0]));
+
+        this.server.add(everyone);
+    }
+
+    /**
+     * @return the number of connections opened to the server
+     */
+    public long getConnections()
+    {
+        return this.connections.get();
+    }
+
+    /**
+     * @return the number of bind requests received by the server
+     */
+    public long getBinds()
+    {
+        return this.binds.get();
+    }
+
+    /**
+     * @return the number of search requests received by the server
+     */
+    public long getSearches()
+    {
+        return this.searches.get();
+    }
+
+    /**
+     * @return the port the server listens to
+     */
+    public int getPort()
+    {
+        return this.server.getListenPort();
+    }
+
+    /**
+     * @return the domains
+     */
+    public String[] getDomains()
+    {
+        return this.domains;
+    }
+
+    /**
+     * @return the number of users per domain
+     */
+    public int getUsers()
+    {
+        return this.users;
+    }
+
+    /**
+     * @return the number of groups per domain
+     */
+    public int getGroups()
+    {
+        return this.groups;
+    }
+
+    /**
+     * @param domain the domain
+     * @return the base DN of the domain
+     */
+    public static String getBaseDN(String domain)
+    {
+        return "dc=" + domain + ",dc=com";
+    }
+
+    /**
+     * @param index the index of the user
+     * @return the uid of the user
+     */
+    public static String getUid(int index)
+    {
+        return "user" + index;
+    }
+
+    /**
+     * @param domain the domain
+     * @param index the index of the user
+     * @return the DN of the user
+     */
+    public static String getUserDN(String domain, int index)
+    {
+        return "uid=" + getUid(index) + ",ou=users," + getBaseDN(domain);
+    }
+
+    /**
+     * @param domain the domain
+     * @param index the index of the group
+     * @return the DN of the group
+     */
+    public static String getGroupDN(String domain, int index)
+    {
+        return "cn=group" + index + ",ou=groups," + getBaseDN(domain);
+    }
+
+    /**
+     * @param domain the domain
+     * @return the DN of the group containing all the other groups of the domain
+     */
+    public static String getEveryoneGroupDN(String domain)
+    {
+        return "cn=everyone,ou=groups," + getBaseDN(domain);
+    }
+}
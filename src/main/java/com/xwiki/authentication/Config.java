@@ -28,15 +28,31 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.web.Utils;
 
 /**
  * Get authenticator configuration.
+ * <p>
+ * Parameters are resolved and parsed only once per wiki and kept in a snapshot which is dropped when the wiki
+ * XWiki.XWikiPreferences document is modified (or after {@link #SNAPSHOT_MAX_AGE} when it's not possible to listen to
+ * documents modifications). Each lookup works on the snapshot current when it started: a value read from
+ * preferences which are modified in the meantime goes to the dropped snapshot and not to the next one.
  * 
  * @version $Id$
  */
@@ -47,16 +63,168 @@
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(Config.class);
 
+    /**
+     * The time in milliseconds after which a snapshot is rebuilt when preferences modifications can't be listened to.
+     * 
+     * @since 1.4
+     */
+    protected static final long SNAPSHOT_MAX_AGE = 60000L;
+
+    /**
+     * Stored in snapshots for parameters which are not set.
+     */
+    private static final Object NULL = new Object();
+
     private final String prefPrefix;
 
     private final String confPrefix;
 
+    private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+    private volatile boolean listenerRegistered;
+
+    private volatile boolean listening;
+
+    /**
+     * The resolved and parsed parameters of a wiki.
+     * 
+     * @since 1.4
+     */
+    protected static final class Snapshot
+    {
+        private final long date = System.currentTimeMillis();
+
+        private final ConcurrentMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+        /**
+         * @param key the identifier of the value in the snapshot
+         * @return the value stored in the snapshot, null if there is none
+         */
+        public Object get(String key)
+        {
+            return this.values.get(key);
+        }
+
+        /**
+         * @param key the identifier of the value in the snapshot
+         * @param value the value to store in the snapshot, it should not be modified afterward
+         */
+        public void put(String key, Object value)
+        {
+            this.values.put(key, value);
+        }
+    }
+
+    /**
+     * Drop the snapshot of a wiki when its preferences are modified.
+     */
+    private class PreferencesListener implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "authentication.config." + prefPrefix + '.' + System.identityHashCode(Config.this);
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event> asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+                new DocumentDeletedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            DocumentReference reference = ((XWikiDocument) source).getDocumentReference();
+
+            if (reference.getName().equals("XWikiPreferences")
+                && reference.getLastSpaceReference().getName().equals("XWiki")) {
+                invalidate(reference.getWikiReference().getName());
+            }
+        }
+    }
+
     public Config(String prefPrefix, String confPrefix)
     {
         this.prefPrefix = prefPrefix;
         this.confPrefix = confPrefix;
     }
 
+    /**
+     * Forget all the resolved parameters of the passed wiki.
+     * 
+     * @param wiki the wiki identifier
+     * @since 1.4
+     */
+    public void invalidate(String wiki)
+    {
+        LOGGER.debug("Invalidating configuration snapshot of wiki [{}]", wiki);
+
+        this.snapshots.remove(wiki);
+    }
+
+    /**
+     * Forget all the resolved parameters.
+     * 
+     * @since 1.4
+     */
+    public void invalidate()
+    {
+        this.snapshots.clear();
+    }
+
+    /**
+     * Get the snapshot once and use it for both reading and storing values, so that a value resolved before the
+     * snapshot is dropped never ends up in the next one.
+     * 
+     * @param context the XWiki context
+     * @return the snapshot of the current wiki
+     * @since 1.4
+     */
+    protected Snapshot getSnapshot(XWikiContext context)
+    {
+        if (!this.listenerRegistered) {
+            startListening();
+        }
+
+        String wiki = StringUtils.defaultString(context.getDatabase());
+
+        Snapshot snapshot = this.snapshots.get(wiki);
+
+        if (snapshot == null || (!this.listening && snapshot.date + SNAPSHOT_MAX_AGE < System.currentTimeMillis())) {
+            Snapshot newSnapshot = new Snapshot();
+            if (snapshot == null) {
+                snapshot = this.snapshots.putIfAbsent(wiki, newSnapshot);
+                if (snapshot == null) {
+                    snapshot = newSnapshot;
+                }
+            } else {
+                this.snapshots.put(wiki, newSnapshot);
+                snapshot = newSnapshot;
+            }
+        }
+
+        return snapshot;
+    }
+
+    private synchronized void startListening()
+    {
+        if (!this.listenerRegistered) {
+            try {
+                Utils.getComponent(ObservationManager.class).addListener(new PreferencesListener());
+
+                this.listening = true;
+            } catch (Exception e) {
+                LOGGER.warn("Failed to listen to preferences modifications, the configuration will be reloaded every "
+                    + "[{}] ms", SNAPSHOT_MAX_AGE, e);
+            }
+
+            // Don't try again
+            this.listenerRegistered = true;
+        }
+    }
+
     public String getParam(String name, XWikiContext context)
     {
         return getParam(name, "", context);
@@ -64,12 +232,25 @@ public String getParam(String name, XWikiContext context)
 
     public String getParam(String name, String def, XWikiContext context)
     {
+        String key = "param:" + name;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        Object cachedParam = snapshot.get(key);
+        if (cachedParam != null) {
+            return cachedParam != NULL ? (String) cachedParam : def;
+        }
+
         String param = null;
+        boolean failed = false;
 
         try {
             param = context.getWiki().getXWikiPreference(prefPrefix + "_" + name, context);
         } catch (Exception e) {
             LOGGER.error("Faile to get preference [{}]", this.prefPrefix + "_" + name, e);
+
+            // Don't remember the result of a failure
+            failed = true;
         }
 
         if (StringUtils.isEmpty(param)) {
@@ -80,6 +261,10 @@ public String getParam(String name, String def, XWikiContext context)
             }
         }
 
+        if (!failed) {
+            snapshot.put(key, param != null ? param : NULL);
+        }
+
         if (param == null) {
             param = def;
         }
@@ -89,43 +274,82 @@ public String getParam(String name, String def, XWikiContext context)
         return param;
     }
 
+    @SuppressWarnings("unchecked")
     public List<String> getListParam(String name, char separator, List<String> def, XWikiContext context)
     {
+        String key = "list:" + separator + name;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        Object cachedList = snapshot.get(key);
+        if (cachedList != null) {
+            return cachedList != NULL ? (List<String>) cachedList : def;
+        }
+
         List<String> list = def;
 
         String str = getParam(name, null, context);
 
         if (str != null) {
             if (!StringUtils.isEmpty(str)) {
-                list = splitParam(str, separator);
+                list = Collections.unmodifiableList(splitParam(str, separator));
             } else {
                 list = Collections.emptyList();
             }
+
+            snapshot.put(key, list);
+        } else {
+            snapshot.put(key, NULL);
         }
 
         return list;
     }
 
+    @SuppressWarnings("unchecked")
     public Set<String> getSetParam(String name, char separator, Set<String> def, XWikiContext context)
     {
+        String key = "set:" + separator + name;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        Object cachedSet = snapshot.get(key);
+        if (cachedSet != null) {
+            return cachedSet != NULL ? (Set<String>) cachedSet : def;
+        }
+
         Set<String> set = def;
 
         String str = getParam(name, null, context);
 
         if (str != null) {
             if (!StringUtils.isEmpty(str)) {
-                set = new HashSet<String>(Arrays.asList(StringUtils.split(str, separator)));
+                set =
+                    Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(StringUtils.split(str, separator))));
             } else {
                 set = Collections.emptySet();
             }
+
+            snapshot.put(key, set);
+        } else {
+            snapshot.put(key, NULL);
         }
 
         return set;
     }
 
+    @SuppressWarnings("unchecked")
     public Map<String, String> getMapParam(String name, char separator, Map<String, String> def,
         boolean forceLowerCaseKey, XWikiContext context)
     {
+        String key = "map:" + separator + forceLowerCaseKey + name;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        Object cachedMappings = snapshot.get(key);
+        if (cachedMappings != null) {
+            return cachedMappings != NULL ? (Map<String, String>) cachedMappings : def;
+        }
+
         Map<String, String> mappings = def;
 
         List<String> list = getListParam(name, separator, null, context);
@@ -139,23 +363,39 @@ public Map<String, String> getMapParam(String name, char separator, Map<String,
                 for (String fieldStr : list) {
                     int index = fieldStr.indexOf('=');
                     if (index != -1) {
-                        String key = fieldStr.substring(0, index);
+                        String mappingKey = fieldStr.substring(0, index);
                         String value = index + 1 == fieldStr.length() ? "" : fieldStr.substring(index + 1);
 
-                        mappings.put(forceLowerCaseKey ? key.toLowerCase() : key, value);
+                        mappings.put(forceLowerCaseKey ? mappingKey.toLowerCase() : mappingKey, value);
                     } else {
                         LOGGER.warn("Error parsing [{}] attribute in xwiki.cfg: {}", name, fieldStr);
                     }
                 }
+
+                mappings = Collections.unmodifiableMap(mappings);
             }
+
+            snapshot.put(key, mappings);
+        } else {
+            snapshot.put(key, NULL);
         }
 
         return mappings;
     }
 
+    @SuppressWarnings("unchecked")
     public Map<String, Collection<String>> getOneToManyParam(String name, char separator,
         Map<String, Collection<String>> def, boolean left, XWikiContext context)
     {
+        String key = "oneToMany:" + separator + left + name;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        Object cachedOneToMany = snapshot.get(key);
+        if (cachedOneToMany != null) {
+            return cachedOneToMany != NULL ? (Map<String, Collection<String>>) cachedOneToMany : def;
+        }
+
         Map<String, Collection<String>> oneToMany = def;
 
         List<String> list = getListParam(name, separator, null, context);
@@ -189,7 +429,16 @@ public Map<String, Collection<String>> getOneToManyParam(String name, char separ
                         LOGGER.debug("[{}] mapping found: {}", name, leftProperty + " " + rightCollection);
                     }
                 }
+
+                for (Map.Entry<String, Collection<String>> entry : oneToMany.entrySet()) {
+                    entry.setValue(Collections.unmodifiableCollection(entry.getValue()));
+                }
+                oneToMany = Collections.unmodifiableMap(oneToMany);
             }
+
+            snapshot.put(key, oneToMany);
+        } else {
+            snapshot.put(key, NULL);
         }
 
         return oneToMany;
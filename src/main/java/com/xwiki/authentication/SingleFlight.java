@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Make sure only one call is in progress for a given key: callers arriving while a call is in progress wait for it
+ * and get the same result (or exception) instead of executing the call again.
+ * <p>
+ * Nothing is kept once the call is finished, the next caller executes it again.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results
+ * @version $Id$
+ * @since 1.4
+ */
+public class SingleFlight<K, V>
+{
+    private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * @param key the identifier of the call
+     * @param callable the call to execute in the current thread if none is in progress for this key
+     * @return the result of the call
+     * @throws Exception the exception thrown by the call
+     */
+    public V execute(K key, Callable<V> callable) throws Exception
+    {
+        FutureTask<V> task = new FutureTask<V>(callable);
+
+        FutureTask<V> inProgress = this.calls.putIfAbsent(key, task);
+        if (inProgress == null) {
+            try {
+                task.run();
+            } finally {
+                this.calls.remove(key, task);
+            }
+
+            inProgress = task;
+        }
+
+        try {
+            return inProgress.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of calls in progress
+     */
+    public int size()
+    {
+        return this.calls.size();
+    }
+}
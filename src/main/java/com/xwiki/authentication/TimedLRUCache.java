@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe bounded cache evicting the least recently used entries and the entries older than a fixed time to
+ * live.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @version $Id$
+ * @since 1.4
+ */
+public class TimedLRUCache<K, V>
+{
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final Map<K, Entry<V>> entries;
+
+    private static class Entry<V>
+    {
+        private final V value;
+
+        private final long expiration;
+
+        Entry(V value, long expiration)
+        {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of entries
+     * @param timeToLive the time in milliseconds after which an entry expires
+     */
+    public TimedLRUCache(final int maxSize, long timeToLive)
+    {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return false if the cache never keep anything
+     */
+    public boolean isEnabled()
+    {
+        return this.maxSize > 0 && this.timeToLive > 0;
+    }
+
+    /**
+     * @param key the key
+     * @return the cached value or null if there is none or it expired
+     */
+    public V get(K key)
+    {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        synchronized (this.entries) {
+            Entry<V> entry = this.entries.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expiration < System.currentTimeMillis()) {
+                this.entries.remove(key);
+
+                return null;
+            }
+
+            return entry.value;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @param value the value to cache
+     */
+    public void put(K key, V value)
+    {
+        if (isEnabled()) {
+            synchronized (this.entries) {
+                this.entries.put(key, new Entry<V>(value, System.currentTimeMillis() + this.timeToLive));
+            }
+        }
+    }
+
+    /**
+     * @param key the key of the entry to remove
+     */
+    public void remove(K key)
+    {
+        synchronized (this.entries) {
+            this.entries.remove(key);
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear()
+    {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries currently in the cache, including expired ones not yet evicted
+     */
+    public int size()
+    {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.Utils;
+
+/**
+ * Background threads running work of the authenticator (authentications, synchronizations) outside of the request
+ * threads.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class BackgroundThreads
+{
+    private BackgroundThreads()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param name the name of the threads, followed by their number
+     * @param threads the maximum number of threads, which stop after being idle for a minute
+     * @param queueSize the maximum number of tasks waiting for a thread
+     * @return an executor running the tasks in daemon threads
+     */
+    public static ThreadPoolExecutor newExecutor(String name, int threads, int queueSize)
+    {
+        ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                newThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * @param name the name of the thread
+     * @return an executor running periodic tasks in a single daemon thread
+     */
+    public static ScheduledThreadPoolExecutor newScheduledExecutor(String name)
+    {
+        return new ScheduledThreadPoolExecutor(1, newThreadFactory(name));
+    }
+
+    private static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name + ' ' + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Create a context for a task running after the request which started it may be finished. The request, the
+     * response and whatever the request put in its context are not shared with the task.
+     *
+     * @param context the context of the request starting the task
+     * @return a new context targeting the same wiki with the same user
+     */
+    public static XWikiContext newDetachedContext(XWikiContext context)
+    {
+        XWikiContext detachedContext = new XWikiContext();
+        detachedContext.setWiki(context.getWiki());
+        detachedContext.setMainXWiki(context.getMainXWiki());
+        detachedContext.setDatabase(context.getDatabase());
+        detachedContext.setUser(context.getUser());
+
+        return detachedContext;
+    }
+
+    /**
+     * Give the current background thread an execution context holding the passed XWiki context. It must be removed
+     * with {@link #removeExecutionContext()} once the task is finished.
+     *
+     * @param context the XWiki context of the task
+     * @throws ExecutionContextException when failing to initialize the execution context
+     */
+    public static void initializeExecutionContext(XWikiContext context) throws ExecutionContextException
+    {
+        ExecutionContext executionContext = new ExecutionContext();
+        executionContext.setProperty("xwikicontext", context);
+        Utils.getComponent(ExecutionContextManager.class).initialize(executionContext);
+        Utils.getComponent(Execution.class).setContext(executionContext);
+    }
+
+    /**
+     * Remove the execution context set by {@link #initializeExecutionContext(XWikiContext)}.
+     */
+    public static void removeExecutionContext()
+    {
+        Utils.getComponent(Execution.class).removeContext();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Arrays;
+
+/**
+ * Base64 encoding and decoding of cookie values.
+ * <p>
+ * Decoding accept both the standard and the URL safe alphabets. The padding character used by the cookies produced
+ * before 1.4 ('_' instead of '=') is accepted at the end of the text.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class Base64Codec
+{
+    private static final char[] STANDARD =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final char[] URL_SAFE =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final int[] DECODE = new int[128];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < STANDARD.length; ++i) {
+            DECODE[STANDARD[i]] = i;
+            DECODE[URL_SAFE[i]] = i;
+        }
+    }
+
+    private Base64Codec()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param data the data to encode
+     * @return the URL safe Base64 encoding of the data, without padding
+     */
+    public static String encodeURLSafe(byte[] data)
+    {
+        return encode(data, URL_SAFE, (char) 0);
+    }
+
+    /**
+     * @param data the data to encode
+     * @return the standard Base64 encoding of the data, padded with '_'
+     */
+    public static String encodeLegacy(byte[] data)
+    {
+        return encode(data, STANDARD, '_');
+    }
+
+    private static String encode(byte[] data, char[] alphabet, char pad)
+    {
+        int fullGroups = data.length / 3;
+        int remaining = data.length - fullGroups * 3;
+
+        int length = fullGroups * 4;
+        if (remaining > 0) {
+            length += pad != 0 ? 4 : remaining + 1;
+        }
+
+        char[] buffer = new char[length];
+
+        int in = 0;
+        int out = 0;
+        for (int i = 0; i < fullGroups; ++i) {
+            int bits = (data[in++] & 0xff) << 16 | (data[in++] & 0xff) << 8 | (data[in++] & 0xff);
+
+            buffer[out++] = alphabet[(bits >>> 18) & 0x3f];
+            buffer[out++] = alphabet[(bits >>> 12) & 0x3f];
+            buffer[out++] = alphabet[(bits >>> 6) & 0x3f];
+            buffer[out++] = alphabet[bits & 0x3f];
+        }
+
+        if (remaining > 0) {
+            int bits = (data[in++] & 0xff) << 16;
+            if (remaining == 2) {
+                bits |= (data[in] & 0xff) << 8;
+            }
+
+            buffer[out++] = alphabet[(bits >>> 18) & 0x3f];
+            buffer[out++] = alphabet[(bits >>> 12) & 0x3f];
+            if (remaining == 2) {
+                buffer[out++] = alphabet[(bits >>> 6) & 0x3f];
+            }
+
+            if (pad != 0) {
+                while (out < length) {
+                    buffer[out++] = pad;
+                }
+            }
+        }
+
+        return new String(buffer);
+    }
+
+    /**
+     * @param text the text to decode
+     * @param legacyPadding true if trailing '_' are padding (and not part of the URL safe alphabet)
+     * @return the decoded data
+     * @throws IllegalArgumentException when the text contains characters which are not part of Base64 alphabets
+     */
+    public static byte[] decode(CharSequence text, boolean legacyPadding)
+    {
+        byte[] data = new byte[getDecodedLength(text, 0, legacyPadding)];
+
+        int length = decode(text, 0, legacyPadding, data);
+
+        return length == data.length ? data : Arrays.copyOf(data, length);
+    }
+
+    /**
+     * @param text the text to decode
+     * @param start the index of the first character to decode
+     * @param legacyPadding true if trailing '_' are padding (and not part of the URL safe alphabet)
+     * @return the maximum number of bytes produced by {@link #decode(CharSequence, int, boolean, byte[])}
+     */
+    public static int getDecodedLength(CharSequence text, int start, boolean legacyPadding)
+    {
+        return (getEnd(text, start, legacyPadding) - start) * 3 / 4;
+    }
+
+    /**
+     * Decode without allocating, typically in a reused buffer.
+     *
+     * @param text the text to decode
+     * @param start the index of the first character to decode
+     * @param legacyPadding true if trailing '_' are padding (and not part of the URL safe alphabet)
+     * @param buffer where to write the decoded data, at least {@link #getDecodedLength(CharSequence, int, boolean)}
+     *            long
+     * @return the number of decoded bytes written at the beginning of the buffer
+     * @throws IllegalArgumentException when the text contains characters which are not part of Base64 alphabets
+     */
+    public static int decode(CharSequence text, int start, boolean legacyPadding, byte[] buffer)
+    {
+        int end = getEnd(text, start, legacyPadding);
+
+        int bits = 0;
+        int bitCount = 0;
+        int out = 0;
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+
+            int value = c < 128 ? DECODE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid Base64 character [" + c + "] at index [" + i + "]");
+            }
+
+            bits = bits << 6 | value;
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                buffer[out++] = (byte) (bits >>> bitCount);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * @return the index after the last character which is not padding
+     */
+    private static int getEnd(CharSequence text, int start, boolean legacyPadding)
+    {
+        int end = text.length();
+
+        while (end > start && (text.charAt(end - 1) == '=' || (legacyPadding && text.charAt(end - 1) == '_'))) {
+            --end;
+        }
+
+        return end;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.Serializable;
+import java.security.Principal;
+
+import org.securityfilter.realm.SimplePrincipal;
+
+/**
+ * The result of a successful SSO authentication, kept to answer following requests of the same remote user.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class CachedPrincipal implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String fullName;
+
+    private final String prefixedFullName;
+
+    private final String ldapDn;
+
+    private final long groupDigest;
+
+    /**
+     * @param fullName the local name of the user profile
+     * @param prefixedFullName the name of the user profile prefixed with its wiki
+     * @param ldapDn the LDAP DN of the user
+     */
+    public CachedPrincipal(String fullName, String prefixedFullName, String ldapDn)
+    {
+        this(fullName, prefixedFullName, ldapDn, 0);
+    }
+
+    /**
+     * @param fullName the local name of the user profile
+     * @param prefixedFullName the name of the user profile prefixed with its wiki
+     * @param ldapDn the LDAP DN of the user
+     * @param groupDigest the digest of the mapped groups of the user at authentication time, 0 if unknown
+     */
+    public CachedPrincipal(String fullName, String prefixedFullName, String ldapDn, long groupDigest)
+    {
+        this.fullName = fullName;
+        this.prefixedFullName = prefixedFullName;
+        this.ldapDn = ldapDn;
+        this.groupDigest = groupDigest;
+    }
+
+    /**
+     * @param local true if the authentication is done from the wiki containing the user profile
+     * @return the principal
+     */
+    public Principal getPrincipal(boolean local)
+    {
+        return new SimplePrincipal(local ? this.fullName : this.prefixedFullName);
+    }
+
+    public String getFullName()
+    {
+        return this.fullName;
+    }
+
+    public String getPrefixedFullName()
+    {
+        return this.prefixedFullName;
+    }
+
+    public String getLDAPDn()
+    {
+        return this.ldapDn;
+    }
+
+    /**
+     * @return the digest of the mapped groups of the user at authentication time, 0 if unknown
+     */
+    public long getGroupDigest()
+    {
+        return this.groupDigest;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.prefixedFullName + " (" + this.ldapDn + ')';
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.text.StrSubstitutor;
+
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
+
+/**
+ * A configuration template compiled once into literal and variable segments and rendered with a single
+ * {@link StringBuilder}.
+ * <p>
+ * Two syntaxes are supported:
+ * <ul>
+ * <li>{@link MessageFormat} patterns where each argument index is associated to a variable, like the bind DN
+ * "cn={0},ou=users" where {0} is the login and {1} the password</li>
+ * <li>{@link StrSubstitutor} templates with ${name} variables, like the user page name</li>
+ * </ul>
+ * Templates relying on other features of those syntaxes (formatted arguments, nested variables) as well as values
+ * containing variables are rendered with {@link MessageFormat} or {@link StrSubstitutor} like before.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class ConfigTemplate
+{
+    private static final String VARIABLE_PREFIX = "${";
+
+    private static final String ESCAPED_VARIABLE_PREFIX = "$${";
+
+    private static final String VARIABLE_SUFFIX = "}";
+
+    private static final String NULL = "null";
+
+    private final String source;
+
+    private final boolean messageFormat;
+
+    private final String[] argumentNames;
+
+    /**
+     * The literal preceding each variable followed by the last literal, null when the template is not compiled.
+     */
+    private final String[] literals;
+
+    private final String[] variables;
+
+    private final boolean escapeDN;
+
+    private final String removedCharacters;
+
+    private ConfigTemplate(String source, boolean messageFormat, String[] argumentNames, List<String> literals,
+        List<String> variables, boolean escapeDN, String removedCharacters)
+    {
+        this.source = source;
+        this.messageFormat = messageFormat;
+        this.argumentNames = argumentNames;
+        this.literals = literals != null ? literals.toArray(new String[literals.size()]) : null;
+        this.variables = variables != null ? variables.toArray(new String[variables.size()]) : null;
+        this.escapeDN = escapeDN;
+        this.removedCharacters = removedCharacters;
+    }
+
+    /**
+     * @param pattern the {@link MessageFormat} pattern
+     * @param argumentNames the variable associated to each argument index
+     * @param escapeDN true if values are escaped as LDAP DN values
+     * @return the compiled template
+     */
+    public static ConfigTemplate compileMessageFormat(String pattern, String[] argumentNames, boolean escapeDN)
+    {
+        List<String> literals = new ArrayList<String>();
+        List<String> variables = new ArrayList<String>();
+
+        StringBuilder literal = new StringBuilder(pattern.length());
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+
+            if (c == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    literal.append(c);
+                    ++i;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                int end = pattern.indexOf('}', i + 1);
+                String index = end != -1 ? pattern.substring(i + 1, end) : null;
+
+                // Formatted arguments and unmatched braces are left to MessageFormat
+                if (index == null || !NumberUtils.isDigits(index) || index.length() > 9) {
+                    return new ConfigTemplate(pattern, true, argumentNames, null, null, escapeDN, null);
+                }
+
+                int argument = Integer.parseInt(index);
+                if (argument < argumentNames.length) {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    variables.add(argumentNames[argument]);
+                } else {
+                    // What MessageFormat produces for missing arguments
+                    literal.append('{').append(index).append('}');
+                }
+
+                i = end;
+            } else {
+                literal.append(c);
+            }
+        }
+        literals.add(literal.toString());
+
+        return new ConfigTemplate(pattern, true, argumentNames, literals, variables, escapeDN, null);
+    }
+
+    /**
+     * @param template the {@link StrSubstitutor} template
+     * @param removedCharacters the characters removed from the result, null for none
+     * @return the compiled template
+     */
+    public static ConfigTemplate compileVariables(String template, String removedCharacters)
+    {
+        List<String> literals = new ArrayList<String>();
+        List<String> variables = new ArrayList<String>();
+
+        StringBuilder literal = new StringBuilder(template.length());
+        int i = 0;
+        while (i < template.length()) {
+            if (template.startsWith(ESCAPED_VARIABLE_PREFIX, i)) {
+                literal.append(VARIABLE_PREFIX);
+                i += ESCAPED_VARIABLE_PREFIX.length();
+            } else if (template.startsWith(VARIABLE_PREFIX, i)) {
+                int end = template.indexOf(VARIABLE_SUFFIX, i + VARIABLE_PREFIX.length());
+
+                if (end == -1) {
+                    literal.append(template, i, template.length());
+                    break;
+                }
+
+                String name = template.substring(i + VARIABLE_PREFIX.length(), end);
+
+                // Nested variables and default values are left to StrSubstitutor
+                if (name.indexOf('$') != -1 || name.contains(":-")) {
+                    return new ConfigTemplate(template, false, null, null, null, false, removedCharacters);
+                }
+
+                literals.add(literal.toString());
+                literal.setLength(0);
+                variables.add(name);
+
+                i = end + VARIABLE_SUFFIX.length();
+            } else {
+                literal.append(template.charAt(i++));
+            }
+        }
+        literals.add(literal.toString());
+
+        return new ConfigTemplate(template, false, null, literals, variables, false, removedCharacters);
+    }
+
+    /**
+     * @return the source of the template
+     */
+    public String getSource()
+    {
+        return this.source;
+    }
+
+    /**
+     * @return true if the result does not depend on the values
+     */
+    public boolean isConstant()
+    {
+        return this.variables != null && this.variables.length == 0;
+    }
+
+    /**
+     * @param values the values of the variables
+     * @return the rendered template
+     */
+    public String render(Map<String, String> values)
+    {
+        if (this.literals == null) {
+            return renderWithoutTemplate(values);
+        }
+
+        StringBuilder builder = new StringBuilder(this.source.length() + 16 * this.variables.length);
+
+        for (int i = 0; i < this.variables.length; ++i) {
+            append(builder, this.literals[i]);
+
+            String value = values.get(this.variables[i]);
+
+            if (this.messageFormat) {
+                if (value == null) {
+                    append(builder, NULL);
+                } else if (this.escapeDN && !isSafeDNValue(value)) {
+                    append(builder, XWikiLDAPConnection.escapeLDAPDNValue(value));
+                } else {
+                    append(builder, value);
+                }
+            } else if (value == null) {
+                // Unknown variables are kept
+                append(builder, VARIABLE_PREFIX);
+                append(builder, this.variables[i]);
+                append(builder, VARIABLE_SUFFIX);
+            } else if (value.contains(VARIABLE_PREFIX)) {
+                // StrSubstitutor also substitutes variables in values
+                return renderWithoutTemplate(values);
+            } else {
+                append(builder, value);
+            }
+        }
+
+        append(builder, this.literals[this.variables.length]);
+
+        return builder.toString();
+    }
+
+    private String renderWithoutTemplate(Map<String, String> values)
+    {
+        String result;
+        if (this.messageFormat) {
+            Object[] arguments = new Object[this.argumentNames.length];
+            for (int i = 0; i < arguments.length; ++i) {
+                String value = values.get(this.argumentNames[i]);
+                arguments[i] = this.escapeDN ? XWikiLDAPConnection.escapeLDAPDNValue(value) : value;
+            }
+
+            result = MessageFormat.format(this.source, arguments);
+        } else {
+            result = StrSubstitutor.replace(this.source, values);
+        }
+
+        if (this.removedCharacters == null) {
+            return result;
+        }
+
+        StringBuilder builder = new StringBuilder(result.length());
+        append(builder, result);
+
+        return builder.toString();
+    }
+
+    private void append(StringBuilder builder, String text)
+    {
+        if (this.removedCharacters == null) {
+            builder.append(text);
+        } else {
+            for (int i = 0; i < text.length(); ++i) {
+                char c = text.charAt(i);
+
+                if (this.removedCharacters.indexOf(c) == -1) {
+                    builder.append(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the value is not modified by LDAP DN escaping
+     */
+    private static boolean isSafeDNValue(String value)
+    {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '_'
+                || c == '-' || c == '@')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.source;
+    }
+}
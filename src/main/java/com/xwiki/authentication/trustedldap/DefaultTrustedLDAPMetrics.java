@@ -0,0 +1,429 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keep counters, gauges and latency histograms in memory and expose them through JMX as
+ * "com.xwiki.authentication:type=TrustedLDAPMetrics,name=&lt;web application&gt;" (like name="/xwiki"), so that each
+ * web application of the JVM has its own metrics.
+ * <p>
+ * Each measure with a domain is recorded both under its name and under "name[domain]". Timers are exposed as
+ * "name.count", "name.mean", "name.max", "name.p50" and "name.p99" (in milliseconds, percentiles are the upper bound of
+ * the histogram bucket). Hit ratios are exposed for each "x.hits"/"x.misses" counters pair as "x.hitRatio".
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class DefaultTrustedLDAPMetrics implements TrustedLDAPMetrics, DynamicMBean
+{
+    /**
+     * The JMX name of the metrics, followed by the name of the web application.
+     */
+    public static final String OBJECT_NAME = "com.xwiki.authentication:type=TrustedLDAPMetrics";
+
+    /**
+     * The name of the metrics when the web application is unknown.
+     */
+    public static final String DEFAULT_NAME = "default";
+
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DefaultTrustedLDAPMetrics.class);
+
+    /**
+     * The upper bounds in milliseconds of the histogram buckets, the last bucket has no bound.
+     */
+    private static final long[] BUCKETS = new long[] {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private static final String HITS = ".hits";
+
+    private static final String MISSES = ".misses";
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private volatile ObjectName objectName;
+
+    /**
+     * The measures of a stage.
+     */
+    public static class Timer
+    {
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+
+        void record(long nanos)
+        {
+            this.count.incrementAndGet();
+            this.total.addAndGet(nanos);
+
+            long currentMax = this.max.get();
+            while (nanos > currentMax && !this.max.compareAndSet(currentMax, nanos)) {
+                currentMax = this.max.get();
+            }
+
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                ++bucket;
+            }
+            this.histogram.incrementAndGet(bucket);
+        }
+
+        /**
+         * @return the number of measures
+         */
+        public long getCount()
+        {
+            return this.count.get();
+        }
+
+        /**
+         * @return the mean duration in milliseconds
+         */
+        public double getMean()
+        {
+            long currentCount = this.count.get();
+
+            return currentCount > 0 ? this.total.get() / 1e6 / currentCount : 0;
+        }
+
+        /**
+         * @return the maximum duration in milliseconds
+         */
+        public double getMax()
+        {
+            return this.max.get() / 1e6;
+        }
+
+        /**
+         * @param percentile the percentile between 0 and 1
+         * @return the upper bound in milliseconds of the bucket containing the percentile, -1 if above the last bound
+         */
+        public long getPercentile(double percentile)
+        {
+            long currentCount = 0;
+            for (int i = 0; i < this.histogram.length(); ++i) {
+                currentCount += this.histogram.get(i);
+            }
+
+            if (currentCount == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(percentile * currentCount);
+            long cumulated = 0;
+            for (int i = 0; i < BUCKETS.length; ++i) {
+                cumulated += this.histogram.get(i);
+                if (cumulated >= target) {
+                    return BUCKETS[i];
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * Register the metrics in the platform MBean server under the default name.
+     */
+    public DefaultTrustedLDAPMetrics()
+    {
+        this(DEFAULT_NAME);
+    }
+
+    /**
+     * Register the metrics in the platform MBean server. Metrics already registered under the same name (by another
+     * authenticator still running) are left in place and these metrics are not exposed.
+     *
+     * @param name the name of the web application
+     */
+    public DefaultTrustedLDAPMetrics(String name)
+    {
+        try {
+            ObjectName jmxName = new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            if (server.isRegistered(jmxName)) {
+                LOGGER.warn("Trusted LDAP metrics [{}] are already registered in JMX, these metrics won't be exposed",
+                    jmxName);
+            } else {
+                server.registerMBean(this, jmxName);
+
+                this.objectName = jmxName;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to register trusted LDAP metrics in JMX", e);
+        }
+    }
+
+    /**
+     * @return the JMX name of the metrics, null if they are not registered
+     */
+    public ObjectName getObjectName()
+    {
+        return this.objectName;
+    }
+
+    @Override
+    public void time(String name, String domain, long nanos)
+    {
+        getTimer(name).record(nanos);
+        if (domain != null) {
+            getTimer(name + '[' + domain + ']').record(nanos);
+        }
+    }
+
+    @Override
+    public void increment(String name, String domain)
+    {
+        getCounter(name).incrementAndGet();
+        if (domain != null) {
+            getCounter(name + '[' + domain + ']').incrementAndGet();
+        }
+    }
+
+    @Override
+    public void gauge(String name, Gauge gauge)
+    {
+        this.gauges.put(name, gauge);
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            } catch (Exception e) {
+                LOGGER.debug("Failed to unregister trusted LDAP metrics", e);
+            }
+
+            this.objectName = null;
+        }
+    }
+
+    private Timer getTimer(String name)
+    {
+        Timer timer = this.timers.get(name);
+
+        if (timer == null) {
+            Timer newTimer = new Timer();
+            timer = this.timers.putIfAbsent(name, newTimer);
+            if (timer == null) {
+                timer = newTimer;
+            }
+        }
+
+        return timer;
+    }
+
+    private AtomicLong getCounter(String name)
+    {
+        AtomicLong counter = this.counters.get(name);
+
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = this.counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * @param name the name of the counter
+     * @return the value of the counter
+     */
+    public long getCount(String name)
+    {
+        AtomicLong counter = this.counters.get(name);
+
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * @param name the name of the gauge
+     * @return the current value of the gauge, 0 if there is no gauge with this name
+     */
+    public long getGaugeValue(String name)
+    {
+        Gauge gauge = this.gauges.get(name);
+
+        return gauge != null ? gauge.getValue() : 0;
+    }
+
+    /**
+     * @param name the name of the timer
+     * @return the timer or null if nothing has been measured under this name
+     */
+    public Timer getTimerMeasures(String name)
+    {
+        return this.timers.get(name);
+    }
+
+    // DynamicMBean
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        AtomicLong counter = this.counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+
+        Gauge gauge = this.gauges.get(attribute);
+        if (gauge != null) {
+            return gauge.getValue();
+        }
+
+        if (attribute.endsWith(".hitRatio")) {
+            String prefix = attribute.substring(0, attribute.length() - ".hitRatio".length());
+            long hits = getCount(prefix + HITS);
+            long total = hits + getCount(prefix + MISSES);
+
+            return total > 0 ? (double) hits / total : 0D;
+        }
+
+        int index = attribute.lastIndexOf('.');
+        if (index > 0) {
+            Timer timer = this.timers.get(attribute.substring(0, index));
+
+            if (timer != null) {
+                String measure = attribute.substring(index + 1);
+
+                if (measure.equals("count")) {
+                    return timer.getCount();
+                } else if (measure.equals("mean")) {
+                    return timer.getMean();
+                } else if (measure.equals("max")) {
+                    return timer.getMax();
+                } else if (measure.equals("p50")) {
+                    return (double) timer.getPercentile(0.5);
+                } else if (measure.equals("p99")) {
+                    return (double) timer.getPercentile(0.99);
+                }
+            }
+        }
+
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        AttributeList list = new AttributeList();
+
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Skip unknown attributes
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        // No operation is exposed
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Unknown operation [" + actionName + "]");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+        for (Map.Entry<String, AtomicLong> entry : this.counters.entrySet()) {
+            String name = entry.getKey();
+
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+
+            if (name.endsWith(HITS)) {
+                String ratio = name.substring(0, name.length() - HITS.length()) + ".hitRatio";
+                attributes.add(new MBeanAttributeInfo(ratio, Double.class.getName(), ratio, true, false, false));
+            }
+        }
+
+        for (String name : this.gauges.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+
+        for (String name : this.timers.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name + ".count", Long.class.getName(), name, true, false, false));
+            for (String measure : new String[] {".mean", ".max", ".p50", ".p99"}) {
+                attributes.add(new MBeanAttributeInfo(name + measure, Double.class.getName(), name + " (ms)", true,
+                    false, false));
+            }
+        }
+
+        return new MBeanInfo(getClass().getName(), "Trusted LDAP authentication metrics",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The XWiki groups a user has last been synchronized with, along with their digest.
+ * <p>
+ * The digest is computed once so that it can be compared to the one of cached principals and SSO tokens on each
+ * request.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class GroupMembership
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Set<String> groups;
+
+    private final long digest;
+
+    /**
+     * @param groups the XWiki groups the user is member of according to LDAP
+     */
+    public GroupMembership(Set<String> groups)
+    {
+        this.groups = Collections.unmodifiableSet(new TreeSet<String>(groups));
+        this.digest = getDigest(this.groups);
+    }
+
+    /**
+     * @param sortedGroups the sorted group names
+     * @return a digest of the groups, identical on all nodes for the same groups
+     */
+    private static long getDigest(Set<String> sortedGroups)
+    {
+        // FNV-1a of the sorted group names
+        long digest = FNV_OFFSET_BASIS;
+        for (String group : sortedGroups) {
+            for (int i = 0; i < group.length(); ++i) {
+                digest = (digest ^ group.charAt(i)) * FNV_PRIME;
+            }
+            digest = (digest ^ '\n') * FNV_PRIME;
+        }
+
+        // 0 means unknown
+        return digest != 0 ? digest : 1;
+    }
+
+    /**
+     * @return the XWiki groups the user is member of according to LDAP
+     */
+    public Set<String> getGroups()
+    {
+        return this.groups;
+    }
+
+    /**
+     * @return the digest of the groups, never 0
+     */
+    public long getDigest()
+    {
+        return this.digest;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Run the LDAP authentications in a bounded pool of threads so that the request threads only wait for them for a
+ * limited time.
+ * <p>
+ * When the directory slows down, the requests give up after the timeout instead of piling up in the servlet container
+ * and new authentications are rejected right away once all the threads are busy and the queue is full. An
+ * authentication which timed out keeps running in the background and fills the caches for the next requests.
+ * <p>
+ * Since a task may outlive the request which submitted it, it never sees the request context: it gets a detached
+ * context (see {@link BackgroundThreads#newDetachedContext(XWikiContext)}) and may only touch what is shared with the
+ * other threads anyway (the authenticator caches and connection pools, the wiki store).
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPAuthenticationExecutor
+{
+    /**
+     * An authentication to execute.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Task<T>
+    {
+        /**
+         * @param context a context targeting the wiki of the waiting request, without its request and response
+         * @return the result of the authentication
+         * @throws Exception when failing to authenticate
+         */
+        T run(XWikiContext context) throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads the maximum number of authentications running at the same time
+     * @param queueSize the maximum number of authentications waiting for a thread
+     */
+    public LDAPAuthenticationExecutor(int threads, int queueSize)
+    {
+        this.executor = BackgroundThreads.newExecutor("Trusted LDAP authentication", threads, queueSize);
+    }
+
+    /**
+     * @param <T> the type of the result
+     * @param task the authentication
+     * @param timeout the maximum time to wait for the authentication in milliseconds
+     * @param context the XWiki context
+     * @return the result of the authentication
+     * @throws RejectedExecutionException when too many authentications are already running or waiting
+     * @throws TimeoutException when the authentication did not finish in time
+     * @throws Exception the exception thrown by the authentication
+     */
+    public <T> T execute(final Task<T> task, long timeout, XWikiContext context) throws Exception
+    {
+        final XWikiContext taskContext = BackgroundThreads.newDetachedContext(context);
+
+        Future<T> future = this.executor.submit(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                return runTask(task, taskContext);
+            }
+        });
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private <T> T runTask(Task<T> task, XWikiContext context) throws Exception
+    {
+        BackgroundThreads.initializeExecutionContext(context);
+
+        try {
+            return task.run(context);
+        } finally {
+            BackgroundThreads.removeExecutionContext();
+        }
+    }
+
+    /**
+     * @return the number of authentications running
+     */
+    public int getActiveCount()
+    {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of authentications waiting for a thread
+     */
+    public int getQueueSize()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Stop executing authentications. The running ones are interrupted and the waiting ones are dropped.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stop trying to reach an LDAP server which keeps failing.
+ * <p>
+ * Each server (domain) has its own circuit. After a number of consecutive failures the circuit opens and requests to
+ * that server are rejected right away instead of waiting for the connection timeout. Once the open time elapsed a
+ * single request is let through to probe the server: the circuit closes if it succeeds and opens again otherwise.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPCircuitBreaker
+{
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LDAPCircuitBreaker.class);
+
+    private final int failureThreshold;
+
+    private final long openTime;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * The state of a server.
+     */
+    private static class Circuit
+    {
+        private int failures;
+
+        private volatile boolean open;
+
+        private long openedAt;
+
+        private boolean probing;
+    }
+
+    /**
+     * @param failureThreshold the number of consecutive failures opening the circuit, 0 to never open it
+     * @param openTime the time in milliseconds during which requests are rejected before probing the server again
+     */
+    public LDAPCircuitBreaker(int failureThreshold, long openTime)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * @return false if the circuits never open
+     */
+    public boolean isEnabled()
+    {
+        return this.failureThreshold > 0;
+    }
+
+    /**
+     * @param domain the server
+     * @return true if a request can be sent to the server, in which case its result must be reported with
+     *         {@link #recordSuccess(String)} or {@link #recordFailure(String)}, or with {@link #recordSkipped(String)}
+     *         if the server was finally not contacted
+     */
+    public boolean allowRequest(String domain)
+    {
+        Circuit circuit = this.circuits.get(domain);
+
+        if (circuit == null || !circuit.open) {
+            return true;
+        }
+
+        synchronized (circuit) {
+            if (!circuit.open) {
+                return true;
+            }
+
+            if (!circuit.probing && System.currentTimeMillis() - circuit.openedAt >= this.openTime) {
+                LOGGER.debug("Probing LDAP server [{}]", domain);
+
+                circuit.probing = true;
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param domain the server
+     * @return true if the circuit of the server is open and not ready to be probed
+     */
+    public boolean isOpen(String domain)
+    {
+        Circuit circuit = this.circuits.get(domain);
+
+        if (circuit == null || !circuit.open) {
+            return false;
+        }
+
+        synchronized (circuit) {
+            return circuit.open && (circuit.probing || System.currentTimeMillis() - circuit.openedAt < this.openTime);
+        }
+    }
+
+    /**
+     * @param domain the server which answered
+     */
+    public void recordSuccess(String domain)
+    {
+        Circuit circuit = this.circuits.get(domain);
+
+        if (circuit != null) {
+            synchronized (circuit) {
+                if (circuit.open) {
+                    LOGGER.info("LDAP server [{}] is available again", domain);
+                }
+
+                circuit.failures = 0;
+                circuit.open = false;
+                circuit.probing = false;
+            }
+        }
+    }
+
+    /**
+     * @param domain the server which could not be reached
+     */
+    public void recordFailure(String domain)
+    {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Circuit circuit = getCircuit(domain);
+
+        synchronized (circuit) {
+            ++circuit.failures;
+
+            if (circuit.probing || (!circuit.open && circuit.failures >= this.failureThreshold)) {
+                if (!circuit.open) {
+                    LOGGER.warn("LDAP server [{}] failed [{}] times in a row, it won't be contacted for [{}] ms",
+                        new Object[] {domain, circuit.failures, this.openTime});
+                }
+
+                circuit.open = true;
+                circuit.openedAt = System.currentTimeMillis();
+                circuit.probing = false;
+            }
+        }
+    }
+
+    /**
+     * Report that an allowed request did not reach the server (e.g. because no pooled connection was available), so
+     * it counts neither as a success nor as a failure.
+     *
+     * @param domain the server which was not contacted
+     */
+    public void recordSkipped(String domain)
+    {
+        Circuit circuit = this.circuits.get(domain);
+
+        if (circuit != null) {
+            synchronized (circuit) {
+                // Let another request probe the server
+                circuit.probing = false;
+            }
+        }
+    }
+
+    /**
+     * Close all the circuits.
+     */
+    public void clear()
+    {
+        this.circuits.clear();
+    }
+
+    private Circuit getCircuit(String domain)
+    {
+        Circuit circuit = this.circuits.get(domain);
+
+        if (circuit == null) {
+            Circuit newCircuit = new Circuit();
+            circuit = this.circuits.putIfAbsent(domain, newCircuit);
+            if (circuit == null) {
+                circuit = newCircuit;
+            }
+        }
+
+        return circuit;
+    }
+}
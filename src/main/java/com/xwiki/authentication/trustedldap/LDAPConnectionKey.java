@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import org.apache.commons.lang3.ObjectUtils;
+
+/**
+ * The resolved target of a bound LDAP connection. Two connections with the same key are interchangeable.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPConnectionKey
+{
+    private final String host;
+
+    private final int port;
+
+    private final String bindDN;
+
+    private final String bindPassword;
+
+    private final boolean ssl;
+
+    private final String keyStore;
+
+    public LDAPConnectionKey(String host, int port, String bindDN, String bindPassword, boolean ssl, String keyStore)
+    {
+        this.host = host;
+        this.port = port;
+        this.bindDN = bindDN;
+        this.bindPassword = bindPassword;
+        this.ssl = ssl;
+        this.keyStore = ssl ? keyStore : null;
+    }
+
+    public String getHost()
+    {
+        return this.host;
+    }
+
+    public int getPort()
+    {
+        return this.port;
+    }
+
+    public String getBindDN()
+    {
+        return this.bindDN;
+    }
+
+    public String getBindPassword()
+    {
+        return this.bindPassword;
+    }
+
+    public boolean isSSL()
+    {
+        return this.ssl;
+    }
+
+    public String getKeyStore()
+    {
+        return this.keyStore;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj == this) {
+            return true;
+        }
+
+        if (!(obj instanceof LDAPConnectionKey)) {
+            return false;
+        }
+
+        LDAPConnectionKey other = (LDAPConnectionKey) obj;
+
+        return this.port == other.port && this.ssl == other.ssl && ObjectUtils.equals(this.host, other.host)
+            && ObjectUtils.equals(this.bindDN, other.bindDN)
+            && ObjectUtils.equals(this.bindPassword, other.bindPassword)
+            && ObjectUtils.equals(this.keyStore, other.keyStore);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = ObjectUtils.hashCode(this.host);
+        hash = 31 * hash + this.port;
+        hash = 31 * hash + ObjectUtils.hashCode(this.bindDN);
+        hash = 31 * hash + ObjectUtils.hashCode(this.bindPassword);
+        hash = 31 * hash + (this.ssl ? 1 : 0);
+
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        // Never expose the password
+        return (this.ssl ? "ldaps://" : "ldap://") + this.host + ':' + this.port + " (" + this.bindDN + ')';
+    }
+}
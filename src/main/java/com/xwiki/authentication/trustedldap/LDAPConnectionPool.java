@@ -0,0 +1,526 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
+
+/**
+ * Keep bound LDAP connections around so that they can be reused by following authentications targeting the same
+ * server with the same bind user.
+ * <p>
+ * There is one pool per {@link LDAPConnectionKey}, each limited to a maximum number of open connections. Connections
+ * are only opened when borrowed: the minimum number of idle connections is not opened in advance, it only prevents
+ * closing the last idle connections when they expire.
+ * <p>
+ * Idle connections are closed when they have not been used for a while, by the borrowers and releasers and by a
+ * background thread which checks the pool at half the maximum idle time (at most every minute). Before being handed
+ * out, an idle connection is checked locally and, if it was idle for longer than the validation interval, by reading
+ * the root DSE of the server with a short time limit, so that connections silently dropped by a firewall or the server
+ * are not given to an authentication. The default constraints of a connection (like time limits set for an operation)
+ * are restored when it's given back, so they never leak to the next borrower.
+ * <p>
+ * A pool created for checking credentials doesn't bind its connections with the key bind user: new connections are
+ * bound with the checked credentials and reused connections are bound again with the next checked credentials (see
+ * {@link #borrow(LDAPConnectionKey, String, String, long, XWikiContext)}).
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPConnectionPool
+{
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LDAPConnectionPool.class);
+
+    /**
+     * The time limit in milliseconds of the request validating an idle connection.
+     */
+    private static final int VALIDATION_TIME_LIMIT = 1000;
+
+    /**
+     * The maximum time in milliseconds between two evictions of the expired idle connections.
+     */
+    private static final long MAX_EVICTION_INTERVAL = 60000;
+
+    private final int minIdle;
+
+    private final int maxSize;
+
+    private final long maxIdleTime;
+
+    private final long borrowTimeout;
+
+    private final long validationInterval;
+
+    /**
+     * False if the connections are bound with the checked credentials instead of the key bind user.
+     */
+    private final boolean bound;
+
+    private final ConcurrentMap<LDAPConnectionKey, KeyedPool> pools =
+        new ConcurrentHashMap<LDAPConnectionKey, KeyedPool>();
+
+    /**
+     * The constraints of the connections when they were opened.
+     */
+    private final ConcurrentMap<XWikiLDAPConnection, LDAPSearchConstraints> defaultConstraints =
+        new ConcurrentHashMap<XWikiLDAPConnection, LDAPSearchConstraints>();
+
+    private final AtomicLong openedConnections = new AtomicLong();
+
+    private final AtomicLong borrowedConnections = new AtomicLong();
+
+    private final ScheduledThreadPoolExecutor evictor;
+
+    private static class IdleConnection
+    {
+        private final XWikiLDAPConnection connection;
+
+        private final long since;
+
+        IdleConnection(XWikiLDAPConnection connection)
+        {
+            this.connection = connection;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    private class KeyedPool
+    {
+        private final Semaphore permits = new Semaphore(maxSize, true);
+
+        private final LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+
+        synchronized IdleConnection poll()
+        {
+            evict();
+
+            // Last in first out: keep using the hottest connections and let the others expire
+            return this.idle.pollLast();
+        }
+
+        synchronized void offer(XWikiLDAPConnection connection)
+        {
+            this.idle.addLast(new IdleConnection(connection));
+
+            evict();
+        }
+
+        synchronized void clear()
+        {
+            for (IdleConnection idleConnection : this.idle) {
+                close(idleConnection.connection);
+            }
+
+            this.idle.clear();
+        }
+
+        synchronized void evict()
+        {
+            long limit = System.currentTimeMillis() - maxIdleTime;
+
+            for (Iterator<IdleConnection> it = this.idle.iterator(); it.hasNext() && this.idle.size() > minIdle;) {
+                IdleConnection idleConnection = it.next();
+
+                if (idleConnection.since < limit) {
+                    it.remove();
+                    close(idleConnection.connection);
+                } else {
+                    // The list is ordered by release date
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param minIdle the number of idle connections to keep open per target even when they expired
+     * @param maxSize the maximum number of connections open at the same time per target
+     * @param maxIdleTime the time in milliseconds after which an unused connection is closed
+     * @param borrowTimeout the maximum time in milliseconds to wait for a connection when all are in use
+     * @param validationInterval the time in milliseconds after which an idle connection is checked with a request to
+     *            the server before being reused, 0 to always check it
+     * @param bound true if the connections are bound with the key bind user, false if they are only used to check
+     *            credentials
+     */
+    public LDAPConnectionPool(int minIdle, int maxSize, long maxIdleTime, long borrowTimeout,
+        long validationInterval, boolean bound)
+    {
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.maxIdleTime = maxIdleTime;
+        this.borrowTimeout = borrowTimeout;
+        this.validationInterval = validationInterval;
+        this.bound = bound;
+
+        long evictionInterval = Math.max(1000, Math.min(maxIdleTime / 2, MAX_EVICTION_INTERVAL));
+        this.evictor = BackgroundThreads.newScheduledExecutor("Trusted LDAP connection evictor");
+        this.evictor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                evict();
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private KeyedPool getPool(LDAPConnectionKey key)
+    {
+        KeyedPool pool = this.pools.get(key);
+
+        if (pool == null) {
+            pool = new KeyedPool();
+            KeyedPool existingPool = this.pools.putIfAbsent(key, pool);
+            if (existingPool != null) {
+                pool = existingPool;
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Get a bound connection for the passed target, reusing an idle one when possible.
+     *
+     * @param key the target of the connection
+     * @param context the XWiki context
+     * @return a connection bound with the key bind DN
+     * @throws LDAPPoolTimeoutException when no connection became available in time
+     * @throws XWikiException when failing to open a new connection
+     */
+    public XWikiLDAPConnection borrow(LDAPConnectionKey key, XWikiContext context) throws XWikiException
+    {
+        return borrow(key, this.borrowTimeout, context);
+    }
+
+    /**
+     * Get a bound connection for the passed target, reusing an idle one when possible.
+     *
+     * @param key the target of the connection
+     * @param timeout the maximum time in milliseconds to wait for a connection when all are in use, never more than
+     *            the borrow timeout of the pool
+     * @param context the XWiki context
+     * @return a connection bound with the key bind DN
+     * @throws LDAPPoolTimeoutException when no connection became available in time
+     * @throws XWikiException when failing to open a new connection
+     */
+    public XWikiLDAPConnection borrow(LDAPConnectionKey key, long timeout, XWikiContext context)
+        throws XWikiException
+    {
+        KeyedPool pool = acquire(key, timeout);
+
+        boolean success = false;
+        try {
+            XWikiLDAPConnection connection = pollValid(key, pool);
+
+            if (connection == null) {
+                connection = open(key, key.getBindDN(), key.getBindPassword(), context);
+            }
+
+            success = true;
+
+            return connection;
+        } finally {
+            if (!success) {
+                pool.permits.release();
+            }
+        }
+    }
+
+    /**
+     * Get a connection for the passed target bound with the passed credentials, reusing an idle one when possible.
+     * Used to check credentials with a pool created without binding with the key bind user.
+     * <p>
+     * A new connection is bound right away with the passed credentials. A rejected bind on a reused connection leaves
+     * it connected, so it goes back to the pool for the next check.
+     *
+     * @param key the target of the connection
+     * @param bindDN the DN of the user whose credentials are checked
+     * @param bindPassword the password of the user
+     * @param timeLimit the maximum time in milliseconds to wait for a connection when all are in use (never more than
+     *            the borrow timeout of the pool) and for the bind of a reused connection, 0 for no other limit than the
+     *            borrow timeout and the connection default constraints
+     * @param context the XWiki context
+     * @return a connection bound with the passed credentials
+     * @throws LDAPPoolTimeoutException when no connection became available in time
+     * @throws XWikiException when failing to open a new connection, including when its bind is rejected
+     * @throws LDAPException when the bind of a reused connection is rejected
+     * @throws UnsupportedEncodingException when failing to encode the password
+     */
+    public XWikiLDAPConnection borrow(LDAPConnectionKey key, String bindDN, String bindPassword, long timeLimit,
+        XWikiContext context) throws XWikiException, LDAPException, UnsupportedEncodingException
+    {
+        KeyedPool pool = acquire(key, timeLimit > 0 ? timeLimit : this.borrowTimeout);
+
+        boolean success = false;
+        try {
+            XWikiLDAPConnection connection = pollValid(key, pool);
+
+            if (connection == null) {
+                connection = open(key, bindDN, bindPassword, context);
+            } else {
+                bind(key, connection, bindDN, bindPassword, timeLimit);
+            }
+
+            success = true;
+
+            return connection;
+        } finally {
+            if (!success) {
+                pool.permits.release();
+            }
+        }
+    }
+
+    private KeyedPool acquire(LDAPConnectionKey key, long timeout) throws LDAPPoolTimeoutException
+    {
+        KeyedPool pool = getPool(key);
+
+        try {
+            if (!pool.permits.tryAcquire(Math.min(timeout, this.borrowTimeout), TimeUnit.MILLISECONDS)) {
+                throw new LDAPPoolTimeoutException("Timed out waiting for an available LDAP connection to [" + key
+                    + "]", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new LDAPPoolTimeoutException("Interrupted while waiting for an LDAP connection to [" + key + "]", e);
+        }
+
+        this.borrowedConnections.incrementAndGet();
+
+        return pool;
+    }
+
+    private XWikiLDAPConnection pollValid(LDAPConnectionKey key, KeyedPool pool)
+    {
+        IdleConnection idleConnection;
+        while ((idleConnection = pool.poll()) != null) {
+            XWikiLDAPConnection connection = idleConnection.connection;
+
+            if (isValid(connection)
+                && (System.currentTimeMillis() - idleConnection.since < this.validationInterval || ping(connection))) {
+                LOGGER.debug("Reusing pooled LDAP connection to [{}]", key);
+
+                return connection;
+            }
+
+            LOGGER.debug("Discarding stale pooled LDAP connection to [{}]", key);
+
+            close(connection);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the server answered a read of its root DSE in time
+     */
+    private boolean ping(XWikiLDAPConnection connection)
+    {
+        LDAPConnection ldapConnection = connection.getConnection();
+
+        LDAPSearchConstraints constraints = new LDAPSearchConstraints(ldapConnection.getSearchConstraints());
+        constraints.setTimeLimit(VALIDATION_TIME_LIMIT);
+        constraints.setServerTimeLimit(1);
+
+        try {
+            ldapConnection.read("", new String[] {LDAPConnection.NO_ATTRS}, constraints);
+
+            return true;
+        } catch (LDAPException e) {
+            LOGGER.debug("Pooled LDAP connection failed validation", e);
+
+            return false;
+        }
+    }
+
+    private void bind(LDAPConnectionKey key, XWikiLDAPConnection connection, String bindDN, String bindPassword,
+        long timeLimit) throws LDAPException, UnsupportedEncodingException
+    {
+        if (timeLimit > 0) {
+            LDAPConnection ldapConnection = connection.getConnection();
+            LDAPSearchConstraints constraints = ldapConnection.getSearchConstraints();
+            constraints.setTimeLimit((int) timeLimit);
+            ldapConnection.setConstraints(constraints);
+        }
+
+        try {
+            connection.bind(bindDN, bindPassword);
+        } catch (LDAPException e) {
+            // Give back the connection, which is validated again by the next borrower
+            resetConstraints(connection);
+
+            getPool(key).offer(connection);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a connection obtained with {@link #borrow(LDAPConnectionKey, XWikiContext)}.
+     *
+     * @param key the target of the connection
+     * @param connection the connection
+     * @param reusable false if the connection is not bound with the key bind DN anymore (or, for a pool checking
+     *            credentials, is not usable for the next check) and should be closed
+     */
+    public void release(LDAPConnectionKey key, XWikiLDAPConnection connection, boolean reusable)
+    {
+        KeyedPool pool = getPool(key);
+
+        try {
+            if (reusable && !this.evictor.isShutdown() && isValid(connection)) {
+                resetConstraints(connection);
+
+                pool.offer(connection);
+            } else {
+                close(connection);
+            }
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void clear()
+    {
+        for (KeyedPool pool : this.pools.values()) {
+            pool.clear();
+        }
+    }
+
+    /**
+     * Close the idle connections which expired. Called periodically by a background thread.
+     */
+    public void evict()
+    {
+        for (KeyedPool pool : this.pools.values()) {
+            pool.evict();
+        }
+    }
+
+    /**
+     * Stop the background eviction and close all idle connections. The borrowed connections are closed when they are
+     * given back.
+     */
+    public void shutdown()
+    {
+        this.evictor.shutdownNow();
+
+        clear();
+    }
+
+    /**
+     * @return the number of connections opened by the pool since it was created
+     */
+    public long getOpenedConnections()
+    {
+        return this.openedConnections.get();
+    }
+
+    /**
+     * @return the number of connections handed out by the pool since it was created
+     */
+    public long getBorrowedConnections()
+    {
+        return this.borrowedConnections.get();
+    }
+
+    private XWikiLDAPConnection open(LDAPConnectionKey key, String bindDN, String bindPassword, XWikiContext context)
+        throws XWikiException
+    {
+        LOGGER.debug("Opening new pooled LDAP connection to [{}]", key);
+
+        XWikiLDAPConnection connection = createConnection();
+
+        if (!connection.open(key.getHost(), key.getPort(), bindDN, bindPassword, key.getKeyStore(), key.isSSL(),
+            context)) {
+            close(connection);
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Bind to LDAP server failed.");
+        }
+
+        this.openedConnections.incrementAndGet();
+
+        this.defaultConstraints.put(connection, connection.getConnection().getSearchConstraints());
+
+        return connection;
+    }
+
+    /**
+     * @return a new connection, not yet opened
+     */
+    protected XWikiLDAPConnection createConnection()
+    {
+        return new XWikiLDAPConnection();
+    }
+
+    private void resetConstraints(XWikiLDAPConnection connection)
+    {
+        LDAPSearchConstraints constraints = this.defaultConstraints.get(connection);
+
+        if (constraints != null) {
+            connection.getConnection().setConstraints(constraints);
+        }
+    }
+
+    private boolean isValid(XWikiLDAPConnection connection)
+    {
+        LDAPConnection ldapConnection = connection.getConnection();
+
+        // A connection checking credentials stays usable after a rejected bind, which leaves it anonymous
+        return ldapConnection != null && ldapConnection.isConnected() && (!this.bound || ldapConnection.isBound());
+    }
+
+    private void close(XWikiLDAPConnection connection)
+    {
+        this.defaultConstraints.remove(connection);
+
+        try {
+            connection.close();
+        } catch (Exception e) {
+            LOGGER.debug("Failed to close LDAP connection", e);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPReferralException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1Numeric;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
+
+/**
+ * Search LDAP one page at a time using the simple paged results control (RFC 2696) so that directories limiting the
+ * size of search results (like Active Directory) can be fully browsed.
+ * <p>
+ * Servers which don't support the control return everything in the first page. The entries can also be sorted with the
+ * server side sort control (RFC 2891) when the server supports it. The size limit applies to the whole search, not to
+ * each page: reaching it ends the search with the entries found so far, see {@link #isSizeLimitReached()}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPPagedSearch
+{
+    /**
+     * The OID of the simple paged results control.
+     */
+    public static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+    /**
+     * The OID of the server side sort request control.
+     */
+    public static final String SORT_REQUEST_OID = "1.2.840.113556.1.4.473";
+
+    /**
+     * The OID of the server side sort response control.
+     */
+    public static final String SORT_RESPONSE_OID = "1.2.840.113556.1.4.474";
+
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LDAPPagedSearch.class);
+
+    private final LDAPConnection connection;
+
+    private final String baseDN;
+
+    private final String filter;
+
+    private final String[] attributes;
+
+    private final int pageSize;
+
+    private int sizeLimit;
+
+    private String sortAttribute;
+
+    private boolean sorted;
+
+    private byte[] cookie;
+
+    private boolean done;
+
+    private int count;
+
+    private boolean sizeLimitReached;
+
+    /**
+     * @param connection the bound LDAP connection
+     * @param baseDN the root of the search
+     * @param filter the LDAP filter
+     * @param attributes the attributes to return
+     * @param pageSize the maximum number of entries per page
+     */
+    public LDAPPagedSearch(LDAPConnection connection, String baseDN, String filter, String[] attributes, int pageSize)
+    {
+        this.connection = connection;
+        this.baseDN = baseDN;
+        this.filter = filter;
+        this.attributes = attributes;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param sizeLimit the maximum number of entries returned by the whole search, 0 for no limit
+     */
+    public void setSizeLimit(int sizeLimit)
+    {
+        this.sizeLimit = sizeLimit;
+    }
+
+    /**
+     * Ask the server to return the entries ordered by an attribute. Servers which don't support sorting (or can't order
+     * this attribute) return the entries unordered, see {@link #isSorted()}.
+     *
+     * @param sortAttribute the attribute to order the entries with, null to not sort them
+     */
+    public void setSortAttribute(String sortAttribute)
+    {
+        this.sortAttribute = sortAttribute;
+    }
+
+    /**
+     * @return true if the server confirmed that the entries of the last page are sorted
+     */
+    public boolean isSorted()
+    {
+        return this.sorted;
+    }
+
+    /**
+     * @return true if the search ended because the size limit was reached, some entries are then missing
+     */
+    public boolean isSizeLimitReached()
+    {
+        return this.sizeLimitReached;
+    }
+
+    /**
+     * @return true if there is more pages to get
+     */
+    public boolean hasNext()
+    {
+        return !this.done;
+    }
+
+    /**
+     * @return the entries of the next page
+     * @throws LDAPException when failing to search
+     */
+    public List<LDAPEntry> next() throws LDAPException
+    {
+        // Don't ask for more than what the limit leaves, servers ignoring the paging control then stop at the limit
+        int maxResults = this.sizeLimit > 0 ? this.sizeLimit - this.count : 0;
+        int currentPageSize = maxResults > 0 ? Math.min(this.pageSize, maxResults) : this.pageSize;
+
+        LDAPSearchConstraints constraints = this.connection.getSearchConstraints();
+        constraints.setBatchSize(0);
+        constraints.setMaxResults(maxResults);
+        LDAPControl pagedControl =
+            new LDAPControl(PAGED_RESULTS_OID, false, encodeControl(currentPageSize, this.cookie));
+        if (this.sortAttribute != null) {
+            constraints.setControls(new LDAPControl[] {pagedControl,
+                new LDAPControl(SORT_REQUEST_OID, false, encodeSortControl(this.sortAttribute))});
+        } else {
+            constraints.setControls(pagedControl);
+        }
+
+        LDAPSearchResults results =
+            this.connection.search(this.baseDN, LDAPConnection.SCOPE_SUB, this.filter, this.attributes, false,
+                constraints);
+
+        List<LDAPEntry> entries = new ArrayList<LDAPEntry>(currentPageSize);
+        while (results.hasMore()) {
+            try {
+                entries.add(results.next());
+            } catch (LDAPReferralException e) {
+                LOGGER.debug("Ignoring referral [{}]", e.getMessage());
+            } catch (LDAPException e) {
+                if (e.getResultCode() != LDAPException.SIZE_LIMIT_EXCEEDED) {
+                    throw e;
+                }
+
+                // The server has more entries than the limit, keep the ones it returned
+                LOGGER.debug("Reached the size limit [{}] of search [{}]", this.sizeLimit, this.filter);
+
+                this.sizeLimitReached = true;
+                this.connection.abandon(results);
+
+                break;
+            }
+        }
+
+        this.count += entries.size();
+
+        this.cookie = null;
+        this.sorted = false;
+        LDAPControl[] controls = results.getResponseControls();
+        if (controls != null) {
+            for (LDAPControl control : controls) {
+                if (PAGED_RESULTS_OID.equals(control.getID())) {
+                    this.cookie = decodeCookie(control.getValue());
+                } else if (SORT_RESPONSE_OID.equals(control.getID())) {
+                    // 0 is success, anything else means the entries are not sorted
+                    this.sorted = this.sortAttribute != null && decodeSortResult(control.getValue()) == 0;
+                }
+            }
+        }
+
+        if (this.sizeLimit > 0 && this.count >= this.sizeLimit && !this.sizeLimitReached) {
+            // More pages means more entries than the limit
+            this.sizeLimitReached = this.cookie != null && this.cookie.length > 0;
+        }
+
+        this.done = this.sizeLimitReached || this.cookie == null || this.cookie.length == 0;
+
+        return entries;
+    }
+
+    private static byte[] encodeControl(int pageSize, byte[] cookie)
+    {
+        ASN1Sequence sequence = new ASN1Sequence(2);
+        sequence.add(new ASN1Integer(pageSize));
+        sequence.add(new ASN1OctetString(cookie != null ? cookie : new byte[0]));
+
+        return sequence.getEncoding(new LBEREncoder());
+    }
+
+    private static byte[] encodeSortControl(String attribute)
+    {
+        ASN1Sequence sortKey = new ASN1Sequence(1);
+        sortKey.add(new ASN1OctetString(attribute));
+
+        ASN1Sequence sortKeys = new ASN1Sequence(1);
+        sortKeys.add(sortKey);
+
+        return sortKeys.getEncoding(new LBEREncoder());
+    }
+
+    private static int decodeSortResult(byte[] value)
+    {
+        if (value != null) {
+            ASN1Object object = new LBERDecoder().decode(value);
+            if (object instanceof ASN1Sequence && ((ASN1Sequence) object).size() > 0) {
+                ASN1Object result = ((ASN1Sequence) object).get(0);
+
+                if (result instanceof ASN1Numeric) {
+                    return ((ASN1Numeric) result).intValue();
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private static byte[] decodeCookie(byte[] value)
+    {
+        if (value == null) {
+            return null;
+        }
+
+        ASN1Object object = new LBERDecoder().decode(value);
+        if (object instanceof ASN1Sequence && ((ASN1Sequence) object).size() > 1) {
+            ASN1Object cookie = ((ASN1Sequence) object).get(1);
+
+            if (cookie instanceof ASN1OctetString) {
+                return ((ASN1OctetString) cookie).byteValue();
+            }
+        }
+
+        return null;
+    }
+}
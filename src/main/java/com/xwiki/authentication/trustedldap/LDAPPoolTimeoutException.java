@@ -0,0 +1,43 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Thrown by {@link LDAPConnectionPool} when no connection became available in time. The LDAP server was not contacted
+ * so this is not a failure of the server.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPPoolTimeoutException extends XWikiException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message the error message
+     * @param cause the cause of the error, null if unknown
+     */
+    public LDAPPoolTimeoutException(String message, Throwable cause)
+    {
+        super(MODULE_XWIKI_USER, ERROR_XWIKI_USER_INIT, message, cause);
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.impl.LDAP.LDAPProfileXClass;
+import com.xpn.xwiki.web.Utils;
+
+/**
+ * In memory index of the LDAP profiles uids of each wiki.
+ * <p>
+ * The index of a wiki is loaded with a single query the first time it's needed and then kept up to date by listening
+ * to documents modifications. The uids are case insensitive like in
+ * {@link com.xpn.xwiki.plugin.ldap.XWikiLDAPUtils#getUserProfileByUid(String, String, XWikiContext)}.
+ * <p>
+ * When documents modifications can't be listened to, each uid is searched in the database like
+ * {@link LDAPProfileXClass#searchDocumentByUid(String)} does.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPProfileIndex
+{
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LDAPProfileIndex.class);
+
+    private static final String PROFILES_QUERY = "select obj.name, prop.value from BaseObject as obj, "
+        + "StringProperty as prop where obj.className='" + LDAPProfileXClass.LDAP_XCLASS
+        + "' and obj.id=prop.id.id and prop.name='" + LDAPProfileXClass.LDAP_XFIELD_UID + "'";
+
+    private final ConcurrentMap<String, WikiIndex> wikis = new ConcurrentHashMap<String, WikiIndex>();
+
+    private volatile boolean listenerRegistered;
+
+    private volatile boolean listening;
+
+    /**
+     * The profiles of a wiki.
+     */
+    private class WikiIndex
+    {
+        /**
+         * The profiles full names indexed by lower case uid.
+         */
+        private final ConcurrentMap<String, String> profiles = new ConcurrentHashMap<String, String>();
+
+        /**
+         * The lower case uids indexed by profile full name.
+         */
+        private final ConcurrentMap<String, String> uids = new ConcurrentHashMap<String, String>();
+
+        /**
+         * The profiles modified (including deleted) while loading, guarded by {@link #updateLock}.
+         */
+        private final Set<String> modified = new HashSet<String>();
+
+        /**
+         * Serialize modifications with the application of the query result, lookups don't need it.
+         */
+        private final Object updateLock = new Object();
+
+        private volatile boolean loaded;
+
+        void set(String fullName, String uid)
+        {
+            synchronized (this.updateLock) {
+                markModified(fullName);
+
+                removeProfile(fullName);
+
+                if (StringUtils.isNotEmpty(uid)) {
+                    String key = uid.toLowerCase();
+
+                    this.uids.put(fullName, key);
+                    this.profiles.put(key, fullName);
+                }
+            }
+        }
+
+        void remove(String fullName)
+        {
+            synchronized (this.updateLock) {
+                markModified(fullName);
+
+                removeProfile(fullName);
+            }
+        }
+
+        private void markModified(String fullName)
+        {
+            if (!this.loaded) {
+                this.modified.add(fullName);
+            }
+        }
+
+        private void removeProfile(String fullName)
+        {
+            String uid = this.uids.remove(fullName);
+
+            if (uid != null) {
+                this.profiles.remove(uid, fullName);
+            }
+        }
+
+        synchronized void load(XWikiContext context) throws XWikiException
+        {
+            if (!this.loaded) {
+                List<Object[]> rows = searchProfiles(context);
+
+                synchronized (this.updateLock) {
+                    for (Object[] row : rows) {
+                        String fullName = (String) row[0];
+                        String uid = (String) row[1];
+
+                        // Modifications (and deletions) received while loading are more recent than the query result
+                        if (StringUtils.isNotEmpty(uid) && !this.modified.contains(fullName)) {
+                            String key = uid.toLowerCase();
+
+                            this.uids.put(fullName, key);
+                            this.profiles.putIfAbsent(key, fullName);
+                        }
+                    }
+
+                    this.modified.clear();
+                    this.loaded = true;
+                }
+
+                LOGGER.debug("Loaded [{}] LDAP profiles of wiki [{}]", this.uids.size(), context.getDatabase());
+            }
+        }
+    }
+
+    /**
+     * Update the index when a document is modified.
+     */
+    private class ProfileListener implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "trustedldap.profileIndex." + System.identityHashCode(LDAPProfileIndex.this);
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event> asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+                new DocumentDeletedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            XWikiDocument document = (XWikiDocument) source;
+
+            WikiIndex index = wikis.get(document.getDocumentReference().getWikiReference().getName());
+
+            if (index != null) {
+                if (event instanceof DocumentDeletedEvent) {
+                    index.remove(document.getFullName());
+                } else {
+                    BaseObject profile = document.getObject(LDAPProfileXClass.LDAP_XCLASS);
+
+                    index.set(document.getFullName(),
+                        profile != null ? profile.getStringValue(LDAPProfileXClass.LDAP_XFIELD_UID) : null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Search the profile associated to the first possible uid.
+     *
+     * @param uids the possible uids of the user, by order of priority
+     * @param context the XWiki context
+     * @return the profile or null if none could be found
+     * @throws XWikiException when failing to search profiles
+     */
+    public XWikiDocument searchDocumentByUid(Collection<String> uids, XWikiContext context) throws XWikiException
+    {
+        if (!this.listenerRegistered) {
+            startListening();
+        }
+
+        if (!this.listening) {
+            return searchProfileInStore(uids, context);
+        }
+
+        WikiIndex index = getWikiIndex(context);
+
+        for (String uid : uids) {
+            String fullName = index.profiles.get(uid.toLowerCase());
+
+            if (fullName != null) {
+                XWikiDocument document = getDocument(fullName, context);
+
+                // Make sure the index is not outdated
+                BaseObject profile = document.getObject(LDAPProfileXClass.LDAP_XCLASS);
+                String profileUid = profile != null ? profile.getStringValue(LDAPProfileXClass.LDAP_XFIELD_UID) : null;
+                if (uid.equalsIgnoreCase(profileUid)) {
+                    return document;
+                }
+
+                LOGGER.debug("Outdated LDAP profile index entry [{}] for uid [{}]", fullName, uid);
+
+                index.set(fullName, profileUid);
+
+                return searchProfileInStore(uids, context);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Search the profile associated to the first possible uid in the database.
+     *
+     * @param uids the possible uids of the user, by order of priority
+     * @param context the XWiki context
+     * @return the profile or null if none could be found
+     * @throws XWikiException when failing to search profiles
+     */
+    public static XWikiDocument searchDocumentByUidInStore(Collection<String> uids, XWikiContext context)
+        throws XWikiException
+    {
+        LDAPProfileXClass ldapProfileClass = new LDAPProfileXClass(context);
+
+        for (String uid : uids) {
+            XWikiDocument document = ldapProfileClass.searchDocumentByUid(uid);
+
+            if (document != null) {
+                return document;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param uids the possible uids of the user, by order of priority
+     * @param context the XWiki context
+     * @return the profile or null if none could be found
+     * @throws XWikiException when failing to search profiles
+     * @see #searchDocumentByUidInStore(Collection, XWikiContext)
+     */
+    protected XWikiDocument searchProfileInStore(Collection<String> uids, XWikiContext context)
+        throws XWikiException
+    {
+        return searchDocumentByUidInStore(uids, context);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the full name and uid of the LDAP profiles of the current wiki
+     * @throws XWikiException when failing to search profiles
+     */
+    protected List<Object[]> searchProfiles(XWikiContext context) throws XWikiException
+    {
+        return context.getWiki().getStore().search(PROFILES_QUERY, 0, 0, context);
+    }
+
+    /**
+     * @param fullName the full name of the profile
+     * @param context the XWiki context
+     * @return the profile document
+     * @throws XWikiException when failing to load the document
+     */
+    protected XWikiDocument getDocument(String fullName, XWikiContext context) throws XWikiException
+    {
+        return context.getWiki().getDocument(fullName, context);
+    }
+
+    /**
+     * @param listener the listener keeping the index up to date
+     */
+    protected void addListener(EventListener listener)
+    {
+        Utils.getComponent(ObservationManager.class).addListener(listener);
+    }
+
+    /**
+     * Forget all the loaded profiles.
+     */
+    public void clear()
+    {
+        this.wikis.clear();
+    }
+
+    private WikiIndex getWikiIndex(XWikiContext context) throws XWikiException
+    {
+        String wiki = StringUtils.defaultString(context.getDatabase());
+
+        WikiIndex index = this.wikis.get(wiki);
+
+        if (index == null) {
+            WikiIndex newIndex = new WikiIndex();
+            index = this.wikis.putIfAbsent(wiki, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+
+        if (!index.loaded) {
+            try {
+                index.load(context);
+            } catch (XWikiException e) {
+                // Try again next time
+                this.wikis.remove(wiki, index);
+
+                throw e;
+            }
+        }
+
+        return index;
+    }
+
+    private synchronized void startListening()
+    {
+        if (!this.listenerRegistered) {
+            try {
+                addListener(new ProfileListener());
+
+                this.listening = true;
+            } catch (Exception e) {
+                LOGGER.warn("Failed to listen to documents modifications, LDAP profiles will be searched in the "
+                    + "database", e);
+            }
+
+            // Don't try again
+            this.listenerRegistered = true;
+        }
+    }
+}
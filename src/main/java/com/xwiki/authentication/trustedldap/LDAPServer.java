@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+/**
+ * One of the LDAP servers (replicas) of a trusted domain.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPServer
+{
+    private final LDAPConnectionKey connectionKey;
+
+    private final int weight;
+
+    /**
+     * @param connectionKey how to connect to the server
+     * @param weight the share of the authentications sent to this server compared to the other servers of the domain
+     */
+    public LDAPServer(LDAPConnectionKey connectionKey, int weight)
+    {
+        this.connectionKey = connectionKey;
+        this.weight = Math.max(1, weight);
+    }
+
+    /**
+     * @return how to connect to the server
+     */
+    public LDAPConnectionKey getConnectionKey()
+    {
+        return this.connectionKey;
+    }
+
+    /**
+     * @return the share of the authentications sent to this server compared to the other servers of the domain
+     */
+    public int getWeight()
+    {
+        return this.weight;
+    }
+
+    /**
+     * @return the host and port of the server
+     */
+    public String getDomain()
+    {
+        return this.connectionKey.getHost() + ':' + this.connectionKey.getPort();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getDomain() + '*' + this.weight;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide in which order the LDAP servers of a trusted domain are tried.
+ * <p>
+ * Servers whose circuit is open (see {@link LDAPCircuitBreaker}) are always tried last. The other servers are ordered
+ * according to the strategy:
+ * <ul>
+ * <li>{@value #FAILOVER}: in the configured order</li>
+ * <li>{@value #ROUND_ROBIN}: each authentication starts with the next server, servers with a higher weight being
+ * picked more often</li>
+ * <li>{@value #LEAST_LATENCY}: by increasing average search time</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LDAPServerSelector
+{
+    /**
+     * Always try the servers in the configured order.
+     */
+    public static final String FAILOVER = "failover";
+
+    /**
+     * Spread the authentications between the servers according to their weight.
+     */
+    public static final String ROUND_ROBIN = "roundrobin";
+
+    /**
+     * Try the fastest server first.
+     */
+    public static final String LEAST_LATENCY = "leastlatency";
+
+    /**
+     * The weight of the last measure in the average latency is 1/2^LATENCY_SHIFT.
+     */
+    private static final int LATENCY_SHIFT = 3;
+
+    private final String strategy;
+
+    private final LDAPCircuitBreaker circuitBreaker;
+
+    private final ConcurrentMap<String, AtomicInteger> rotations = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final ConcurrentMap<String, AtomicLong> latencies = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param strategy the way servers are ordered
+     * @param circuitBreaker the state of each server
+     */
+    public LDAPServerSelector(String strategy, LDAPCircuitBreaker circuitBreaker)
+    {
+        this.strategy = strategy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param servers the servers of a domain in the configured order
+     * @return the servers in the order they should be tried
+     */
+    public List<LDAPServer> select(List<LDAPServer> servers)
+    {
+        if (servers.size() < 2) {
+            return servers;
+        }
+
+        List<LDAPServer> ordered;
+        if (ROUND_ROBIN.equals(this.strategy)) {
+            ordered = rotate(servers);
+        } else if (LEAST_LATENCY.equals(this.strategy)) {
+            ordered = new ArrayList<LDAPServer>(servers);
+            Collections.sort(ordered, new Comparator<LDAPServer>()
+            {
+                @Override
+                public int compare(LDAPServer server1, LDAPServer server2)
+                {
+                    long latency1 = getLatency(server1.getDomain());
+                    long latency2 = getLatency(server2.getDomain());
+
+                    return latency1 < latency2 ? -1 : (latency1 == latency2 ? 0 : 1);
+                }
+            });
+        } else {
+            ordered = new ArrayList<LDAPServer>(servers);
+        }
+
+        // Failing servers last
+        List<LDAPServer> failing = null;
+        for (int i = 0; i < ordered.size();) {
+            if (this.circuitBreaker.isOpen(ordered.get(i).getDomain())) {
+                if (failing == null) {
+                    failing = new ArrayList<LDAPServer>();
+                }
+                failing.add(ordered.remove(i));
+            } else {
+                ++i;
+            }
+        }
+        if (failing != null) {
+            ordered.addAll(failing);
+        }
+
+        return ordered;
+    }
+
+    private List<LDAPServer> rotate(List<LDAPServer> servers)
+    {
+        // Each server appears as many times as its weight in the ring
+        List<LDAPServer> ring = new ArrayList<LDAPServer>();
+        for (LDAPServer server : servers) {
+            for (int i = 0; i < server.getWeight(); ++i) {
+                ring.add(server);
+            }
+        }
+
+        AtomicInteger rotation = this.rotations.get(servers.toString());
+        if (rotation == null) {
+            AtomicInteger newRotation = new AtomicInteger();
+            rotation = this.rotations.putIfAbsent(servers.toString(), newRotation);
+            if (rotation == null) {
+                rotation = newRotation;
+            }
+        }
+
+        int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % ring.size();
+
+        Set<LDAPServer> ordered = new LinkedHashSet<LDAPServer>();
+        for (int i = 0; i < ring.size(); ++i) {
+            ordered.add(ring.get((start + i) % ring.size()));
+        }
+
+        return new ArrayList<LDAPServer>(ordered);
+    }
+
+    /**
+     * @param domain the host and port of the server
+     * @param nanos the time it took to search a user in nanoseconds
+     */
+    public void recordLatency(String domain, long nanos)
+    {
+        AtomicLong latency = this.latencies.get(domain);
+
+        if (latency == null) {
+            latency = this.latencies.putIfAbsent(domain, new AtomicLong(nanos));
+            if (latency == null) {
+                return;
+            }
+        }
+
+        long current = latency.get();
+        latency.compareAndSet(current, current + ((nanos - current) >> LATENCY_SHIFT));
+    }
+
+    /**
+     * @param domain the host and port of the server
+     * @return the average time it takes to search a user in nanoseconds, 0 if unknown
+     */
+    public long getLatency(String domain)
+    {
+        AtomicLong latency = this.latencies.get(domain);
+
+        return latency != null ? latency.get() : 0;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import com.xwiki.authentication.TimedLRUCache;
+
+/**
+ * Cache authenticated principals in the memory of the current node only.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class LocalPrincipalCache implements PrincipalCache
+{
+    private volatile TimedLRUCache<String, CachedPrincipal> cache = new TimedLRUCache<String, CachedPrincipal>(0, 0);
+
+    /**
+     * Create a cache to initialize with {@link #initialize(int, long)}.
+     */
+    public LocalPrincipalCache()
+    {
+    }
+
+    /**
+     * @param maxSize the maximum number of entries, 0 to disable the cache
+     * @param timeToLive the time in milliseconds after which an entry expires, 0 to disable the cache
+     */
+    public LocalPrincipalCache(int maxSize, long timeToLive)
+    {
+        initialize(maxSize, timeToLive);
+    }
+
+    @Override
+    public void initialize(int maxSize, long timeToLive)
+    {
+        this.cache = new TimedLRUCache<String, CachedPrincipal>(maxSize, timeToLive);
+    }
+
+    @Override
+    public CachedPrincipal get(String remoteUser)
+    {
+        return this.cache.get(remoteUser);
+    }
+
+    @Override
+    public void put(String remoteUser, CachedPrincipal principal)
+    {
+        this.cache.put(remoteUser, principal);
+    }
+
+    @Override
+    public void remove(String remoteUser)
+    {
+        this.cache.remove(remoteUser);
+    }
+
+    @Override
+    public void clear()
+    {
+        this.cache.clear();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.cache.clear();
+    }
+}
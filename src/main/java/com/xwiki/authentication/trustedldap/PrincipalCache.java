@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+/**
+ * Store the results of SSO authentications indexed by remote user.
+ * <p>
+ * The implementation is selected with xwiki.authentication.trustedldap.principalCache.class in xwiki.cfg and must
+ * have a public constructor without parameters. Methods are called from many threads.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public interface PrincipalCache
+{
+    /**
+     * Called once before any other method.
+     *
+     * @param maxSize the maximum number of entries, 0 to disable the cache
+     * @param timeToLive the time in milliseconds after which an entry expires, 0 to disable the cache
+     * @throws Exception when failing to create the cache
+     */
+    void initialize(int maxSize, long timeToLive) throws Exception;
+
+    /**
+     * @param remoteUser the remote user
+     * @return the result of the last authentication of the remote user, null if none is cached
+     */
+    CachedPrincipal get(String remoteUser);
+
+    /**
+     * @param remoteUser the remote user
+     * @param principal the result of the authentication of the remote user
+     */
+    void put(String remoteUser, CachedPrincipal principal);
+
+    /**
+     * Forget the remote user on all the nodes sharing the cache.
+     *
+     * @param remoteUser the remote user
+     */
+    void remove(String remoteUser);
+
+    /**
+     * Forget all the remote users on all the nodes sharing the cache.
+     */
+    void clear();
+
+    /**
+     * Release resources when the cache is not used anymore.
+     */
+    void dispose();
+}
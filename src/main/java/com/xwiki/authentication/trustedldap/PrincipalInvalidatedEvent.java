@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.Serializable;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * Sent when cached principals must be forgotten, forwarded to the other nodes of the cluster when remote observation
+ * is enabled.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class PrincipalInvalidatedEvent implements Event, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String remoteUser;
+
+    /**
+     * Match all the invalidations.
+     */
+    public PrincipalInvalidatedEvent()
+    {
+        this(null);
+    }
+
+    /**
+     * @param remoteUser the remote user to forget, null for all
+     */
+    public PrincipalInvalidatedEvent(String remoteUser)
+    {
+        this.remoteUser = remoteUser;
+    }
+
+    /**
+     * @return the remote user to forget, null for all
+     */
+    public String getRemoteUser()
+    {
+        return this.remoteUser;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent instanceof PrincipalInvalidatedEvent;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.regex.Pattern;
+
+/**
+ * The compiled form of the remoteUserParser and remoteUserMapping.N configuration.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class RemoteUserParser
+{
+    private static final String[] NO_PROPERTIES = new String[0];
+
+    private final Pattern pattern;
+
+    private final String[][] groupProperties;
+
+    /**
+     * @param pattern the remote user pattern
+     * @param groupProperties the properties associated to each group of the pattern, the index 0 being the whole
+     *            match
+     */
+    public RemoteUserParser(Pattern pattern, String[][] groupProperties)
+    {
+        this.pattern = pattern;
+        this.groupProperties = groupProperties;
+    }
+
+    public Pattern getPattern()
+    {
+        return this.pattern;
+    }
+
+    /**
+     * @return the number of groups in the pattern
+     */
+    public int getGroupCount()
+    {
+        return this.groupProperties.length - 1;
+    }
+
+    /**
+     * @param group the index of the group in the pattern
+     * @return the properties to set with the value of the group
+     */
+    public String[] getProperties(int group)
+    {
+        return group < this.groupProperties.length ? this.groupProperties[group] : NO_PROPERTIES;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.pattern.toString();
+    }
+}
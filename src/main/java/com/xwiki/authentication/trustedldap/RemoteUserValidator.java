@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Set;
+import java.util.regex.Matcher;
+
+/**
+ * Reject remote users which can't be authenticated before doing any I/O.
+ * <p>
+ * A remote user is always rejected when empty, too long or containing control characters. In strict mode it must
+ * also match the remoteUserParser and each captured value with a remoteUserMapping must be one of the mapping keys
+ * (the known domains).
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class RemoteUserValidator
+{
+    /**
+     * The remote user is empty.
+     */
+    public static final String EMPTY = "empty";
+
+    /**
+     * The remote user is longer than the maximum length.
+     */
+    public static final String TOO_LONG = "tooLong";
+
+    /**
+     * The remote user contains control characters.
+     */
+    public static final String INVALID_CHARACTERS = "invalidCharacters";
+
+    /**
+     * The remote user does not match the remoteUserParser.
+     */
+    public static final String NO_MATCH = "noMatch";
+
+    /**
+     * A value captured from the remote user is not a key of its remoteUserMapping.
+     */
+    public static final String UNKNOWN_DOMAIN = "unknownDomain";
+
+    private final RemoteUserParser parser;
+
+    private final Set<String>[] knownValues;
+
+    private final int maxLength;
+
+    private final boolean strict;
+
+    /**
+     * @param parser the remote user parser, null if none is configured
+     * @param knownValues the lower case values accepted for each group of the parser, null for a group accepting any
+     *            value
+     * @param maxLength the maximum length of a remote user
+     * @param strict true to validate the remote user against the parser and the mappings
+     */
+    public RemoteUserValidator(RemoteUserParser parser, Set<String>[] knownValues, int maxLength, boolean strict)
+    {
+        this.parser = parser;
+        this.knownValues = knownValues;
+        this.maxLength = maxLength;
+        this.strict = strict;
+    }
+
+    /**
+     * @param remoteUser the remote user
+     * @return null if the remote user is valid, the reason of the rejection otherwise
+     */
+    public String validate(String remoteUser)
+    {
+        if (remoteUser == null || remoteUser.length() == 0) {
+            return EMPTY;
+        }
+
+        if (remoteUser.length() > this.maxLength) {
+            return TOO_LONG;
+        }
+
+        for (int i = 0; i < remoteUser.length(); ++i) {
+            if (Character.isISOControl(remoteUser.charAt(i))) {
+                return INVALID_CHARACTERS;
+            }
+        }
+
+        if (this.strict && this.parser != null) {
+            Matcher matcher = this.parser.getPattern().matcher(remoteUser);
+
+            if (!matcher.find()) {
+                return NO_MATCH;
+            }
+
+            for (int g = 1; g <= matcher.groupCount() && g < this.knownValues.length; ++g) {
+                Set<String> values = this.knownValues[g];
+                String value = matcher.group(g);
+
+                if (values != null && (value == null || !values.contains(value.toLowerCase()))) {
+                    return UNKNOWN_DOMAIN;
+                }
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.web.Utils;
+
+/**
+ * Cache authenticated principals in an XWiki cache shared by the nodes of a cluster.
+ * <p>
+ * The cache is created with the {@value #CACHE_ID} configuration identifier so that it can be configured as a
+ * replicated cache of the cache implementation (for example a replicated Infinispan cache). Invalidations are sent as
+ * {@link PrincipalInvalidatedEvent} which are forwarded to the other nodes when remote observation is enabled, so
+ * that a node detecting a change of a user makes all the nodes authenticate it again.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class ReplicatedPrincipalCache implements PrincipalCache
+{
+    /**
+     * The configuration identifier of the cache.
+     */
+    public static final String CACHE_ID = "xwiki.authentication.trustedldap.principals";
+
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicatedPrincipalCache.class);
+
+    private volatile Cache<CachedPrincipal> cache;
+
+    private ObservationManager observationManager;
+
+    private final EventListener listener = new EventListener()
+    {
+        @Override
+        public String getName()
+        {
+            return "trustedldap.principalCache." + System.identityHashCode(ReplicatedPrincipalCache.this);
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event> asList(new PrincipalInvalidatedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            invalidate(((PrincipalInvalidatedEvent) event).getRemoteUser());
+        }
+    };
+
+    @Override
+    public void initialize(int maxSize, long timeToLive) throws Exception
+    {
+        if (maxSize <= 0 || timeToLive <= 0) {
+            LOGGER.debug("Principal cache is disabled");
+
+            return;
+        }
+
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setConfigurationId(CACHE_ID);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(maxSize);
+        // In seconds
+        lru.setTimeToLive((int) Math.max(1, (timeToLive + 999) / 1000));
+        configuration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+
+        this.cache = Utils.getComponent(CacheManager.class).<CachedPrincipal> createNewCache(configuration);
+
+        this.observationManager = Utils.getComponent(ObservationManager.class);
+        this.observationManager.addListener(this.listener);
+    }
+
+    @Override
+    public CachedPrincipal get(String remoteUser)
+    {
+        Cache<CachedPrincipal> currentCache = this.cache;
+
+        return currentCache != null ? currentCache.get(remoteUser) : null;
+    }
+
+    @Override
+    public void put(String remoteUser, CachedPrincipal principal)
+    {
+        Cache<CachedPrincipal> currentCache = this.cache;
+
+        if (currentCache != null) {
+            currentCache.set(remoteUser, principal);
+        }
+    }
+
+    @Override
+    public void remove(String remoteUser)
+    {
+        notifyInvalidation(remoteUser);
+    }
+
+    @Override
+    public void clear()
+    {
+        notifyInvalidation(null);
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache != null) {
+            this.observationManager.removeListener(this.listener.getName());
+
+            this.cache.dispose();
+            this.cache = null;
+        }
+    }
+
+    private void notifyInvalidation(String remoteUser)
+    {
+        if (this.cache != null) {
+            // Received by the local listener too
+            this.observationManager.notify(new PrincipalInvalidatedEvent(remoteUser), remoteUser, null);
+        }
+    }
+
+    private void invalidate(String remoteUser)
+    {
+        Cache<CachedPrincipal> currentCache = this.cache;
+
+        if (currentCache != null) {
+            if (remoteUser != null) {
+                LOGGER.debug("Invalidating cached principal of remote user [{}]", remoteUser);
+
+                currentCache.remove(remoteUser);
+            } else {
+                currentCache.removeAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Encrypt and decrypt the content of the XWIKISSOAUTHINFO cookie.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>the historical one: TripleDES encrypted and Base64 encoded with '_' as padding character</li>
+ * <li>version 2: "2." followed by the URL safe Base64 encoding of an AES/CBC encrypted content and its HMAC-SHA256</li>
+ * </ul>
+ * The format used to encrypt is selected with {@link #CONF_ENCRYPTION}, both are always accepted when decrypting.
+ * <p>
+ * Keys are derived from xwiki.authentication.encryptionKey only when it changes and {@link Cipher} and {@link Mac}
+ * instances as well as decoding buffers are reused by each thread. The data signed with {@link #sign(byte[],
+ * XWikiContext)} (like SSO tokens) uses its own key, different from the one authenticating version 2 cookies.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class SSOCookieCipher
+{
+    /**
+     * The xwiki.cfg property containing the secret key.
+     */
+    public static final String CONF_KEY = "xwiki.authentication.encryptionKey";
+
+    /**
+     * The xwiki.cfg property indicating the format of produced cookies: "TripleDES" (the default) or "AES".
+     */
+    public static final String CONF_ENCRYPTION = TrustedLDAPConfig.CONF_KEY + ".cookieEncryption";
+
+    private static final String VERSION2_PREFIX = "2.";
+
+    private static final int IV_LENGTH = 16;
+
+    private static final int MAC_LENGTH = 32;
+
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    /**
+     * Distinguish the key signing data from the other keys derived from the same secret.
+     */
+    private static final String SIGNATURE_KEY_LABEL = "xwiki-trustedldap-signature";
+
+    /**
+     * Bigger buffers (which can only come from unexpected cookies) are not kept.
+     */
+    private static final int MAX_POOLED_BUFFER_LENGTH = 4096;
+
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SSOCookieCipher.class);
+
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile KeyMaterial keyMaterial;
+
+    private final ThreadLocal<Cipher> tripleDESCiphers = new ThreadLocal<Cipher>();
+
+    private final ThreadLocal<Cipher> aesCiphers = new ThreadLocal<Cipher>();
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    private final ThreadLocal<byte[]> macBuffers = new ThreadLocal<byte[]>();
+
+    /**
+     * The keys derived from a secret.
+     */
+    private static class KeyMaterial
+    {
+        private final String secret;
+
+        private final SecretKeySpec tripleDESKey;
+
+        private final SecretKeySpec aesKey;
+
+        private final SecretKeySpec macKey;
+
+        private final SecretKeySpec signatureKey;
+
+        KeyMaterial(String secret) throws GeneralSecurityException
+        {
+            this.secret = secret;
+
+            // Keep the historical key for compatibility with existing cookies
+            this.tripleDESKey = new SecretKeySpec(ArrayUtils.subarray(secret.getBytes(), 0, 24), "TripleDES");
+
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(secret.getBytes());
+            this.aesKey = new SecretKeySpec(hash, 0, 16, "AES");
+            this.macKey = new SecretKeySpec(hash, 16, 16, HMAC_SHA256);
+
+            // A token signed by the authenticator must not be usable as the MAC of a cookie and the other way around
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(new SecretKeySpec(hash, HMAC_SHA256));
+            this.signatureKey = new SecretKeySpec(mac.doFinal(SIGNATURE_KEY_LABEL.getBytes()), HMAC_SHA256);
+        }
+    }
+
+    private KeyMaterial getKeyMaterial(String secret) throws GeneralSecurityException
+    {
+        KeyMaterial material = this.keyMaterial;
+
+        if (material == null || !material.secret.equals(secret)) {
+            material = new KeyMaterial(secret);
+            this.keyMaterial = material;
+        }
+
+        return material;
+    }
+
+    private Cipher getCipher(ThreadLocal<Cipher> ciphers, String transformation) throws GeneralSecurityException
+    {
+        Cipher cipher = ciphers.get();
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.set(cipher);
+        }
+
+        return cipher;
+    }
+
+    private Mac getMac(SecretKeySpec key) throws GeneralSecurityException
+    {
+        Mac mac = this.macs.get();
+
+        if (mac == null) {
+            mac = Mac.getInstance(HMAC_SHA256);
+            this.macs.set(mac);
+        }
+
+        mac.init(key);
+
+        return mac;
+    }
+
+    private byte[] getBuffer(int length)
+    {
+        byte[] buffer = this.buffers.get();
+
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+
+            if (length <= MAX_POOLED_BUFFER_LENGTH) {
+                this.buffers.set(buffer);
+            }
+        }
+
+        return buffer;
+    }
+
+    private byte[] getMacBuffer()
+    {
+        byte[] buffer = this.macBuffers.get();
+
+        if (buffer == null) {
+            buffer = new byte[MAC_LENGTH];
+            this.macBuffers.set(buffer);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Check the signature of the MAC_LENGTH bytes at the passed offset in constant time.
+     */
+    private boolean checkMac(Mac mac, byte[] data, int offset) throws GeneralSecurityException
+    {
+        byte[] expectedMac = getMacBuffer();
+        mac.doFinal(expectedMac, 0);
+
+        int result = 0;
+        for (int i = 0; i < MAC_LENGTH; ++i) {
+            result |= expectedMac[i] ^ data[offset + i];
+        }
+
+        return result == 0;
+    }
+
+    private String getSecret(XWikiContext context)
+    {
+        String secret = context.getWiki().Param(CONF_KEY);
+
+        if (secret == null) {
+            LOGGER.error("Encryption key not defined (property xwiki.authentication.encryptionKey in xwiki.cfg)");
+        }
+
+        return secret;
+    }
+
+    /**
+     * @param data the data to encrypt
+     * @param context the XWiki context
+     * @return the encrypted cookie value or null if no encryption key is configured
+     * @throws GeneralSecurityException when failing to encrypt
+     */
+    public String encrypt(byte[] data, XWikiContext context) throws GeneralSecurityException
+    {
+        String secret = getSecret(context);
+
+        if (secret == null) {
+            return null;
+        }
+
+        return encrypt(data, secret, "AES".equalsIgnoreCase(context.getWiki().Param(CONF_ENCRYPTION)));
+    }
+
+    /**
+     * @param text the cookie value to decrypt
+     * @param context the XWiki context
+     * @return the decrypted data or null if no encryption key is configured
+     * @throws GeneralSecurityException when failing to decrypt
+     */
+    public byte[] decrypt(String text, XWikiContext context) throws GeneralSecurityException
+    {
+        String secret = getSecret(context);
+
+        if (secret == null) {
+            return null;
+        }
+
+        return decrypt(text, secret);
+    }
+
+    /**
+     * @param data the data to sign
+     * @param context the XWiki context
+     * @return the data followed by its HMAC-SHA256 (with a key dedicated to signatures) or null if no encryption key is
+     *         configured
+     * @throws GeneralSecurityException when failing to sign
+     */
+    public byte[] sign(byte[] data, XWikiContext context) throws GeneralSecurityException
+    {
+        String secret = getSecret(context);
+
+        if (secret == null) {
+            return null;
+        }
+
+        return sign(data, secret);
+    }
+
+    /**
+     * @param signedData data produced by {@link #sign(byte[], XWikiContext)}
+     * @param context the XWiki context
+     * @return the data without its signature or null if no encryption key is configured
+     * @throws GeneralSecurityException when the signature is not valid
+     */
+    public byte[] verify(byte[] signedData, XWikiContext context) throws GeneralSecurityException
+    {
+        String secret = getSecret(context);
+
+        if (secret == null) {
+            return null;
+        }
+
+        return verify(signedData, secret);
+    }
+
+    /**
+     * Same as {@link #verify(byte[], XWikiContext)} without copying the data.
+     *
+     * @param signedData data produced by {@link #sign(byte[], XWikiContext)}
+     * @param context the XWiki context
+     * @return the length of the data at the beginning of signedData
+     * @throws GeneralSecurityException when the signature is not valid or no encryption key is configured
+     */
+    public int getVerifiedLength(byte[] signedData, XWikiContext context) throws GeneralSecurityException
+    {
+        String secret = getSecret(context);
+
+        if (secret == null) {
+            throw new GeneralSecurityException("No encryption key");
+        }
+
+        return getVerifiedLength(signedData, secret);
+    }
+
+    byte[] sign(byte[] data, String secret) throws GeneralSecurityException
+    {
+        Mac mac = getMac(getKeyMaterial(secret).signatureKey);
+
+        byte[] signedData = Arrays.copyOf(data, data.length + MAC_LENGTH);
+        mac.update(data);
+        mac.doFinal(signedData, data.length);
+
+        return signedData;
+    }
+
+    byte[] verify(byte[] signedData, String secret) throws GeneralSecurityException
+    {
+        return Arrays.copyOf(signedData, getVerifiedLength(signedData, secret));
+    }
+
+    int getVerifiedLength(byte[] signedData, String secret) throws GeneralSecurityException
+    {
+        int length = signedData.length - MAC_LENGTH;
+
+        if (length < 0) {
+            throw new GeneralSecurityException("Invalid signed data length");
+        }
+
+        Mac mac = getMac(getKeyMaterial(secret).signatureKey);
+        mac.update(signedData, 0, length);
+        if (!checkMac(mac, signedData, length)) {
+            throw new GeneralSecurityException("Invalid signature");
+        }
+
+        return length;
+    }
+
+    String encrypt(byte[] data, String secret, boolean aes) throws GeneralSecurityException
+    {
+        KeyMaterial material = getKeyMaterial(secret);
+
+        if (aes) {
+            byte[] iv = new byte[IV_LENGTH];
+            this.random.nextBytes(iv);
+
+            Cipher cipher = getCipher(this.aesCiphers, "AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, material.aesKey, new IvParameterSpec(iv));
+
+            byte[] buffer = new byte[IV_LENGTH + cipher.getOutputSize(data.length) + MAC_LENGTH];
+            System.arraycopy(iv, 0, buffer, 0, IV_LENGTH);
+            int length = IV_LENGTH + cipher.doFinal(data, 0, data.length, buffer, IV_LENGTH);
+
+            // Encrypt then MAC
+            Mac mac = getMac(material.macKey);
+            mac.update(buffer, 0, length);
+            mac.doFinal(buffer, length);
+            length += MAC_LENGTH;
+
+            return VERSION2_PREFIX
+                + Base64Codec.encodeURLSafe(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+        } else {
+            Cipher cipher = getCipher(this.tripleDESCiphers, "TripleDES");
+            cipher.init(Cipher.ENCRYPT_MODE, material.tripleDESKey);
+
+            return Base64Codec.encodeLegacy(cipher.doFinal(data));
+        }
+    }
+
+    byte[] decrypt(String text, String secret) throws GeneralSecurityException
+    {
+        KeyMaterial material = getKeyMaterial(secret);
+
+        // Decode in the buffer of the thread, only the decrypted content is allocated
+        if (text.startsWith(VERSION2_PREFIX)) {
+            int start = VERSION2_PREFIX.length();
+            byte[] buffer = getBuffer(Base64Codec.getDecodedLength(text, start, false));
+            int decodedLength = Base64Codec.decode(text, start, false, buffer);
+
+            if (decodedLength < IV_LENGTH + MAC_LENGTH) {
+                throw new GeneralSecurityException("Invalid cookie length");
+            }
+
+            int length = decodedLength - MAC_LENGTH;
+
+            Mac mac = getMac(material.macKey);
+            mac.update(buffer, 0, length);
+            if (!checkMac(mac, buffer, length)) {
+                throw new GeneralSecurityException("Invalid cookie signature");
+            }
+
+            Cipher cipher = getCipher(this.aesCiphers, "AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, material.aesKey, new IvParameterSpec(buffer, 0, IV_LENGTH));
+
+            return cipher.doFinal(buffer, IV_LENGTH, length - IV_LENGTH);
+        } else {
+            Cipher cipher = getCipher(this.tripleDESCiphers, "TripleDES");
+            cipher.init(Cipher.DECRYPT_MODE, material.tripleDESKey);
+
+            byte[] buffer = getBuffer(Base64Codec.getDecodedLength(text, 0, true));
+
+            return cipher.doFinal(buffer, 0, Base64Codec.decode(text, 0, true, buffer));
+        }
+    }
+}
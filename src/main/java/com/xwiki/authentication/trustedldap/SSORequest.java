@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import javax.servlet.http.Cookie;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+
+/**
+ * What the SSO authentication needs from the current request: the remote user and the XWIKISSOAUTHINFO cookie.
+ * <p>
+ * The cookies are inspected in a single pass the first time the request is needed and the result is kept in the XWiki
+ * context so that the following steps of the authentication of the same request don't look at them again.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class SSORequest
+{
+    /**
+     * The name of the cookie containing the authenticated user.
+     */
+    public static final String COOKIE_NAME = "XWIKISSOAUTHINFO";
+
+    private static final String CONTEXT_KEY = "trustedldap.ssoRequest";
+
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SSORequest.class);
+
+    private final XWikiRequest request;
+
+    private final String remoteUser;
+
+    private final Cookie cookie;
+
+    private SSORequest(XWikiRequest request)
+    {
+        this.request = request;
+        this.remoteUser = request.getRemoteUser();
+
+        boolean debug = LOGGER.isDebugEnabled();
+
+        Cookie ssoCookie = null;
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie requestCookie : cookies) {
+                if (debug) {
+                    LOGGER.debug("CookieList: {} => {}", requestCookie.getName(), requestCookie.getValue());
+                }
+
+                if (ssoCookie == null && COOKIE_NAME.equals(requestCookie.getName())) {
+                    ssoCookie = requestCookie;
+
+                    if (!debug) {
+                        break;
+                    }
+                }
+            }
+        }
+        this.cookie = ssoCookie;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the inspected current request
+     */
+    public static SSORequest get(XWikiContext context)
+    {
+        XWikiRequest request = context.getRequest();
+
+        Object inspected = context.get(CONTEXT_KEY);
+
+        // Contexts are sometimes cloned or reused for other requests
+        if (inspected instanceof SSORequest && ((SSORequest) inspected).request == request) {
+            return (SSORequest) inspected;
+        }
+
+        SSORequest ssoRequest = new SSORequest(request);
+        context.put(CONTEXT_KEY, ssoRequest);
+
+        return ssoRequest;
+    }
+
+    /**
+     * @return the remote user provided by the container, null if none
+     */
+    public String getRemoteUser()
+    {
+        return this.remoteUser;
+    }
+
+    /**
+     * @return the XWIKISSOAUTHINFO cookie, null if the client did not send it
+     */
+    public Cookie getCookie()
+    {
+        return this.cookie;
+    }
+}
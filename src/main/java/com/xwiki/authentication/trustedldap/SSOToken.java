@@ -0,0 +1,181 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The content of the XWIKISSOAUTHINFO cookie when session tokens are enabled.
+ * <p>
+ * The binary form starts with {@link #MAGIC} (which can't be the start of the historical "wiki:user" text content)
+ * followed by the version, the issue and expiration dates, the group digest, the user and the wiki. The signature is
+ * handled by {@link SSOCookieCipher#sign(byte[], com.xpn.xwiki.XWikiContext)}.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class SSOToken
+{
+    private static final byte[] MAGIC = new byte[] {0, 'T'};
+
+    private static final byte VERSION = 1;
+
+    private final String wiki;
+
+    private final String user;
+
+    private final long issuedAt;
+
+    private final long expiresAt;
+
+    private final long groupDigest;
+
+    /**
+     * @param wiki the wiki of the user profile
+     * @param user the user profile reference, relative to the wiki
+     * @param issuedAt the date in milliseconds when the user has been authenticated
+     * @param expiresAt the date in milliseconds after which the user should be authenticated again
+     * @param groupDigest a digest of what determined the user groups at authentication time
+     */
+    public SSOToken(String wiki, String user, long issuedAt, long expiresAt, long groupDigest)
+    {
+        this.wiki = wiki;
+        this.user = user;
+        this.issuedAt = issuedAt;
+        this.expiresAt = expiresAt;
+        this.groupDigest = groupDigest;
+    }
+
+    /**
+     * @param data the decrypted cookie content
+     * @return true if the content is a token, false if it's the historical text content
+     */
+    public static boolean isToken(byte[] data)
+    {
+        return data.length > MAGIC.length && data[0] == MAGIC[0] && data[1] == MAGIC[1];
+    }
+
+    /**
+     * @param data the binary form of the token
+     * @return the token
+     * @throws IOException when the binary form is invalid
+     */
+    public static SSOToken fromBytes(byte[] data) throws IOException
+    {
+        return fromBytes(data, data.length);
+    }
+
+    /**
+     * @param data a buffer starting with the binary form of the token
+     * @param length the length of the binary form of the token
+     * @return the token
+     * @throws IOException when the binary form is invalid
+     */
+    public static SSOToken fromBytes(byte[] data, int length) throws IOException
+    {
+        if (length <= MAGIC.length || !isToken(data)) {
+            throw new IOException("Not a token");
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length,
+            length - MAGIC.length));
+
+        byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported token version [" + version + "]");
+        }
+
+        long issuedAt = input.readLong();
+        long expiresAt = input.readLong();
+        long groupDigest = input.readLong();
+        String user = input.readUTF();
+        String wiki = input.readUTF();
+
+        return new SSOToken(wiki, user, issuedAt, expiresAt, groupDigest);
+    }
+
+    /**
+     * @return the binary form of the token
+     */
+    public byte[] toBytes()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        try {
+            output.write(MAGIC);
+            output.writeByte(VERSION);
+            output.writeLong(this.issuedAt);
+            output.writeLong(this.expiresAt);
+            output.writeLong(this.groupDigest);
+            output.writeUTF(this.user);
+            output.writeUTF(this.wiki);
+            output.flush();
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public String getWiki()
+    {
+        return this.wiki;
+    }
+
+    public String getUser()
+    {
+        return this.user;
+    }
+
+    public long getIssuedAt()
+    {
+        return this.issuedAt;
+    }
+
+    public long getExpiresAt()
+    {
+        return this.expiresAt;
+    }
+
+    public long getGroupDigest()
+    {
+        return this.groupDigest;
+    }
+
+    /**
+     * @return true if the token expired
+     */
+    public boolean isExpired()
+    {
+        return System.currentTimeMillis() > this.expiresAt;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.wiki + ':' + this.user + " [" + this.issuedAt + '-' + this.expiresAt + ']';
+    }
+}
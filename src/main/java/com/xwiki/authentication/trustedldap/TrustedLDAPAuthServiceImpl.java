@@ -20,77 +20,172 @@
 package com.xwiki.authentication.trustedldap;
 
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.Cookie;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.securityfilter.realm.SimplePrincipal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
 
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.plugin.ldap.XWikiLDAPConfig;
 import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
 import com.xpn.xwiki.plugin.ldap.XWikiLDAPException;
 import com.xpn.xwiki.plugin.ldap.XWikiLDAPSearchAttribute;
-import com.xpn.xwiki.plugin.ldap.XWikiLDAPUtils;
+import com.xpn.xwiki.user.api.XWikiRightService;
 import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.user.impl.LDAP.LDAPProfileXClass;
 import com.xpn.xwiki.user.impl.LDAP.XWikiLDAPAuthServiceImpl;
-import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
+import com.xpn.xwiki.web.Utils;
+import com.xwiki.authentication.SingleFlight;
+import com.xwiki.authentication.TimedLRUCache;
 
 public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
 {
     /** LogFactory <code>LOGGER</code>. */
     private static final Logger LOGGER = LoggerFactory.getLogger(TrustedLDAPAuthServiceImpl.class);
 
-    private TrustedLDAPConfig config;
+    private static final SSOCookieCipher COOKIE_CIPHER = new SSOCookieCipher();
+
+    /**
+     * The property of the LDAP profile object containing the fingerprint of the LDAP attributes last applied to the
+     * profile. It's not a field of the LDAP profile class, which belongs to the platform LDAP authenticator.
+     */
+    private static final String FINGERPRINT_PROPERTY = "trustedldap_fingerprint";
 
-    private static Cipher getCipher(boolean encrypt, XWikiContext context) throws NoSuchAlgorithmException,
-        NoSuchPaddingException, InvalidKeyException
+    /**
+     * Used when metrics are disabled.
+     */
+    private static final TrustedLDAPMetrics NO_METRICS = new TrustedLDAPMetrics()
     {
-        Cipher cipher = null;
+        @Override
+        public void time(String name, String domain, long nanos)
+        {
+            // Disabled
+        }
+
+        @Override
+        public void increment(String name, String domain)
+        {
+            // Disabled
+        }
 
-        String secretKey = context.getWiki().Param("xwiki.authentication.encryptionKey");
+        @Override
+        public void gauge(String name, Gauge gauge)
+        {
+            // Disabled
+        }
 
-        if (secretKey != null) {
-            byte[] secretKeyBytes = ArrayUtils.subarray(secretKey.getBytes(), 0, 24);
-            SecretKeySpec cryptKey = new SecretKeySpec(secretKeyBytes, "TripleDES");
-            cipher = Cipher.getInstance("TripleDES");
-            cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, cryptKey);
-        } else {
-            LOGGER.error("Encryption key not defined (property xwiki.authentication.encryptionKey in xwiki.cfg)");
+        @Override
+        public void dispose()
+        {
+            // Nothing to release
+        }
+    };
+
+    private TrustedLDAPConfig config;
+
+    private volatile LDAPConnectionPool connectionPool;
+
+    private volatile LDAPConnectionPool credentialPool;
+
+    private volatile PrincipalCache principalCache;
+
+    private volatile UserSynchronizationQueue synchronizationQueue;
+
+    private volatile LDAPAuthenticationExecutor authenticationExecutor;
+
+    private volatile TimedLRUCache<String, Map<String, String>> groupCache;
+
+    private volatile TimedLRUCache<String, GroupMembership> membershipCache;
+
+    private final LDAPProfileIndex profileIndex = new LDAPProfileIndex();
+
+    /**
+     * Authenticate superadmin and local accounts without going through LDAP.
+     */
+    private final XWikiAuthServiceImpl localAuthService = new XWikiAuthServiceImpl();
+
+    /**
+     * Start of the window during which cookies without token are accepted.
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile TrustedLDAPMetrics metrics;
+
+    private volatile LDAPCircuitBreaker circuitBreaker;
+
+    private volatile LDAPServerSelector serverSelector;
+
+    private final SingleFlight<String, CachedPrincipal> inFlightAuthentications =
+        new SingleFlight<String, CachedPrincipal>();
+
+    private final ConcurrentMap<String, UserProvisioningJob> provisioningJobs =
+        new ConcurrentHashMap<String, UserProvisioningJob>();
+
+    private volatile TimedLRUCache<String, String> negativeCache;
+
+    private boolean stopListenerRegistered;
+
+    /**
+     * Release the background threads when the application stops.
+     */
+    private class StopListener implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "trustedldap.authService." + System.identityHashCode(TrustedLDAPAuthServiceImpl.this);
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event> asList(new ApplicationStoppedEvent());
         }
 
-        return cipher;
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            dispose();
+        }
     }
 
     static String encryptText(String text, XWikiContext context)
     {
         try {
-            Cipher cipher = getCipher(true, context);
-
-            if (cipher != null) {
-                byte[] encrypted = cipher.doFinal(text.getBytes());
-                String encoded = new String(Base64.encodeBase64(encrypted));
-                return encoded.replaceAll("=", "_");
-            }
+            return COOKIE_CIPHER.encrypt(text.getBytes(), context);
         } catch (Exception e) {
             LOGGER.error("Failed to encrypt text", e);
         }
@@ -101,12 +196,10 @@ static String encryptText(String text, XWikiContext context)
     static String decryptText(String text, XWikiContext context)
     {
         try {
-            Cipher cipher = getCipher(false, context);
+            byte[] decrypted = COOKIE_CIPHER.decrypt(text, context);
 
-            if (cipher != null) {
-                byte[] encrypted = Base64.decodeBase64(text.replaceAll("_", "=").getBytes("ISO-8859-1"));
-                String decoded = new String(cipher.doFinal(encrypted));
-                return decoded;
+            if (decrypted != null) {
+                return new String(decrypted);
             }
         } catch (Exception e) {
             LOGGER.error("Failed to decrypt text", e);
@@ -115,6 +208,49 @@ static String decryptText(String text, XWikiContext context)
         return null;
     }
 
+    /**
+     * Stop the background threads of the authenticator and close the pooled LDAP connections. Called when the
+     * application stops.
+     *
+     * @since 1.4
+     */
+    public void dispose()
+    {
+        if (this.authenticationExecutor != null) {
+            this.authenticationExecutor.shutdown();
+        }
+        if (this.synchronizationQueue != null) {
+            this.synchronizationQueue.shutdown();
+        }
+        if (this.connectionPool != null) {
+            this.connectionPool.shutdown();
+        }
+        if (this.credentialPool != null) {
+            this.credentialPool.shutdown();
+        }
+        if (this.metrics != null) {
+            this.metrics.dispose();
+        }
+    }
+
+    /**
+     * Make sure {@link #dispose()} is called when the application stops.
+     */
+    private synchronized void startListening()
+    {
+        if (!this.stopListenerRegistered) {
+            try {
+                Utils.getComponent(ObservationManager.class).addListener(new StopListener());
+            } catch (Exception e) {
+                LOGGER.warn("Failed to listen to the application stop, the background threads of the authenticator "
+                    + "will only stop with the JVM", e);
+            }
+
+            // Don't try again
+            this.stopListenerRegistered = true;
+        }
+    }
+
     public void setConfig(TrustedLDAPConfig config)
     {
         this.config = config;
@@ -131,6 +267,10 @@ public TrustedLDAPConfig getConfig()
 
     protected Cookie getCookie(String cookieName, XWikiContext context)
     {
+        if (SSORequest.COOKIE_NAME.equals(cookieName)) {
+            return SSORequest.get(context).getCookie();
+        }
+
         Cookie[] cookies = context.getRequest().getCookies();
 
         if (cookies == null) {
@@ -151,11 +291,14 @@ public XWikiUser checkAuth(XWikiContext context) throws XWikiException
     {
         XWikiUser user = null;
 
-        if (context.getRequest().getRemoteUser() != null) {
+        String remoteUser = SSORequest.get(context).getRemoteUser();
+        if (remoteUser != null && isValidRemoteUser(remoteUser, context)) {
             user = checkAuthSSO(null, null, context);
         }
 
         if (user == null) {
+            getMetrics(context).increment(TrustedLDAPMetrics.FALLBACKS, null);
+
             user = super.checkAuth(context);
         }
 
@@ -170,13 +313,16 @@ public XWikiUser checkAuth(String username, String password, String rememberme,
     {
         XWikiUser user = null;
 
-        if (context.getRequest().getRemoteUser() != null) {
+        String remoteUser = SSORequest.get(context).getRemoteUser();
+        if (remoteUser != null && isValidRemoteUser(remoteUser, context)) {
             user = checkAuthSSO(username, password, context);
         }
 
         if (user == null) {
             LOGGER.debug("Fallback on standard LDAP authenticator");
 
+            getMetrics(context).increment(TrustedLDAPMetrics.FALLBACKS, null);
+
             user = super.checkAuth(username, password, rememberme, context);
         }
 
@@ -185,15 +331,53 @@ public XWikiUser checkAuth(String username, String password, String rememberme,
         return user;
     }
 
-    public XWikiUser checkAuthSSO(String username, String password, XWikiContext context) throws XWikiException
+    /**
+     * Check the remote user against the configuration of the main wiki, which is used to authenticate it.
+     *
+     * @param remoteUser the remote user
+     * @param context the XWiki context
+     * @return true if the remote user can be authenticated, false if it's rejected without further processing
+     * @since 1.4
+     */
+    protected boolean isValidRemoteUser(String remoteUser, XWikiContext context)
     {
-        Cookie cookie;
+        String database = context.getDatabase();
+
+        String rejection;
+        try {
+            context.setDatabase(context.getMainXWiki());
+
+            rejection = getConfig().getRemoteUserValidator(context).validate(remoteUser);
+        } finally {
+            context.setDatabase(database);
+        }
+
+        if (rejection != null) {
+            LOGGER.debug("Rejected remote user [{}]: {}", remoteUser, rejection);
+
+            getMetrics(context).increment(TrustedLDAPMetrics.REMOTE_USER_REJECTED + '.' + rejection, null);
+
+            return false;
+        }
+
+        return true;
+    }
 
+    public XWikiUser checkAuthSSO(String username, String password, XWikiContext context) throws XWikiException
+    {
         LOGGER.debug("checkAuth");
 
+        // Remote user and cookie are extracted from the request only once
+        SSORequest ssoRequest = SSORequest.get(context);
+        Cookie cookie = ssoRequest.getCookie();
+
         LOGGER.debug("Action: {}", context.getAction());
         if (context.getAction().startsWith("logout")) {
-            cookie = getCookie("XWIKISSOAUTHINFO", context);
+            String remoteUser = ssoRequest.getRemoteUser();
+            if (remoteUser != null) {
+                invalidatePrincipal(remoteUser, context);
+            }
+
             if (cookie != null) {
                 cookie.setMaxAge(0);
                 context.getResponse().addCookie(cookie);
@@ -204,24 +388,17 @@ public XWikiUser checkAuthSSO(String username, String password, XWikiContext con
 
         Principal principal = null;
 
-        if (LOGGER.isDebugEnabled()) {
-            Cookie[] cookies = context.getRequest().getCookies();
-            if (cookies != null) {
-                for (Cookie c : cookies) {
-                    LOGGER.debug("CookieList: " + c.getName() + " => " + c.getValue());
-                }
-            }
-        }
-
-        cookie = getCookie("XWIKISSOAUTHINFO", context);
         if (cookie != null) {
             LOGGER.debug("Found Cookie");
-            String uname = decryptText(cookie.getValue(), context);
-            if (uname != null) {
-                principal = new SimplePrincipal(uname);
-            }
+
+            long start = System.nanoTime();
+            principal = getCookiePrincipal(cookie.getValue(), context);
+            getMetrics(context).time(TrustedLDAPMetrics.COOKIE, null, System.nanoTime() - start);
         }
 
+        getMetrics(context).increment(
+            principal != null ? TrustedLDAPMetrics.COOKIE_HITS : TrustedLDAPMetrics.COOKIE_MISSES, null);
+
         XWikiUser user;
 
         // Authenticate
@@ -232,10 +409,8 @@ public XWikiUser checkAuthSSO(String username, String password, XWikiContext con
             }
 
             LOGGER.debug("Saving auth cookie");
-            String encuname =
-                encryptText(principal.getName().contains(":") ? principal.getName() : context.getDatabase() + ":"
-                    + principal.getName(), context);
-            Cookie usernameCookie = new Cookie("XWIKISSOAUTHINFO", encuname);
+            String encuname = createCookieValue(principal, context);
+            Cookie usernameCookie = new Cookie(SSORequest.COOKIE_NAME, encuname);
             usernameCookie.setMaxAge(-1);
             usernameCookie.setPath("/");
             context.getResponse().addCookie(usernameCookie);
@@ -252,6 +427,128 @@ public XWikiUser checkAuthSSO(String username, String password, XWikiContext con
         return user;
     }
 
+    /**
+     * @param value the value of the XWIKISSOAUTHINFO cookie
+     * @param context the XWiki context
+     * @return the principal stored in the cookie or null if the cookie is invalid or expired
+     * @since 1.4
+     */
+    protected Principal getCookiePrincipal(String value, XWikiContext context)
+    {
+        byte[] decrypted;
+        try {
+            decrypted = COOKIE_CIPHER.decrypt(value, context);
+        } catch (Exception e) {
+            LOGGER.error("Failed to decrypt text", e);
+
+            return null;
+        }
+
+        if (decrypted == null) {
+            return null;
+        }
+
+        if (!SSOToken.isToken(decrypted)) {
+            // Cookie produced by a version older than 1.4 or with session tokens disabled
+            if (!isLegacyCookieAccepted(context)) {
+                LOGGER.debug("Rejecting cookie without SSO token");
+
+                return null;
+            }
+
+            return new SimplePrincipal(new String(decrypted));
+        }
+
+        SSOToken token;
+        try {
+            // Parse the token in place instead of copying it without its signature
+            token = SSOToken.fromBytes(decrypted, COOKIE_CIPHER.getVerifiedLength(decrypted, context));
+        } catch (Exception e) {
+            LOGGER.warn("Invalid SSO token: {}", e.getMessage());
+
+            return null;
+        }
+
+        String remoteUser = SSORequest.get(context).getRemoteUser();
+
+        if (token.isExpired()) {
+            LOGGER.debug("SSO token [{}] expired", token);
+
+            // Make sure the user is synchronized again
+            if (remoteUser != null) {
+                invalidatePrincipal(remoteUser, context);
+            }
+
+            return null;
+        }
+
+        String principalName = token.getWiki() + ':' + token.getUser();
+
+        // Unknown groups (0) are the ones of a user which has not been synchronized by this node since it started
+        long groupDigest = getMembershipDigest(principalName, context);
+        if (groupDigest != 0 && token.getGroupDigest() != 0 && groupDigest != token.getGroupDigest()) {
+            LOGGER.debug("SSO token [{}] does not match the last synchronized groups", token);
+
+            return null;
+        }
+
+        // The remote user changed (shared browser, proxy configuration) since the token was issued
+        if (remoteUser != null) {
+            CachedPrincipal cachedPrincipal = getPrincipalCache(context).get(remoteUser);
+
+            if (cachedPrincipal != null && !principalName.equals(cachedPrincipal.getPrefixedFullName())) {
+                LOGGER.debug("SSO token [{}] does not match remote user [{}]", token, remoteUser);
+
+                return null;
+            }
+        }
+
+        return new SimplePrincipal(principalName);
+    }
+
+    /**
+     * @return true if cookies containing only the user name are accepted
+     */
+    private boolean isLegacyCookieAccepted(XWikiContext context)
+    {
+        return getConfig().getSSOTokenTimeToLive(context) <= 0
+            || System.currentTimeMillis() - this.startTime < getConfig().getSSOLegacyCookieWindow(context);
+    }
+
+    /**
+     * @param principal the authenticated user
+     * @param context the XWiki context
+     * @return the value of the XWIKISSOAUTHINFO cookie
+     * @since 1.4
+     */
+    protected String createCookieValue(Principal principal, XWikiContext context)
+    {
+        String principalName =
+            principal.getName().contains(":") ? principal.getName() : context.getDatabase() + ":" + principal.getName();
+
+        long timeToLive = getConfig().getSSOTokenTimeToLive(context);
+
+        if (timeToLive <= 0) {
+            return encryptText(principalName, context);
+        }
+
+        int index = principalName.indexOf(':');
+        long now = System.currentTimeMillis();
+        SSOToken token =
+            new SSOToken(principalName.substring(0, index), principalName.substring(index + 1), now, now + timeToLive,
+                getMembershipDigest(principalName, context));
+
+        try {
+            byte[] signedToken = COOKIE_CIPHER.sign(token.toBytes(), context);
+
+            return signedToken != null ? COOKIE_CIPHER.encrypt(signedToken, context) : null;
+        } catch (Exception e) {
+            LOGGER.error("Failed to create SSO token", e);
+        }
+
+        return null;
+    }
+
     @Override
     public Principal authenticate(String login, String password, XWikiContext context) throws XWikiException
     {
@@ -260,6 +557,7 @@ public Principal authenticate(String login, String password, XWikiContext contex
         String wikiName = context.getDatabase();
 
         // SSO authentication
+        long start = System.nanoTime();
         try {
             context.setDatabase(context.getMainXWiki());
 
@@ -268,28 +566,74 @@ public Principal authenticate(String login, String password, XWikiContext contex
             LOGGER.debug("Failed to authenticate with SSO", e);
         } finally {
             context.setDatabase(wikiName);
+
+            getMetrics(context).time(TrustedLDAPMetrics.AUTHENTICATE, null, System.nanoTime() - start);
         }
 
-        // Fallback on LDAP authenticator
+        // Fallback on LDAP authenticator, unless it targets a server which keeps failing
         if (principal == null) {
-            principal = super.authenticate(login, password, context);
+            String domain = getStandardLDAPServerUnavailable(context);
+
+            if (domain != null) {
+                LOGGER.debug("Skip standard LDAP authentication: LDAP server [{}] is unavailable", domain);
+
+                getMetrics(context).increment(TrustedLDAPMetrics.LDAP_CIRCUIT_OPEN, domain);
+
+                // The directory being down must not lock out the administrators fixing it
+                if (isLocalAuthenticationAllowed(login, context)) {
+                    principal = this.localAuthService.authenticate(login, password, context);
+                }
+            } else {
+                getMetrics(context).increment(TrustedLDAPMetrics.FALLBACKS, null);
+
+                principal = super.authenticate(login, password, context);
+            }
         }
 
         return principal;
     }
 
+    /**
+     * @return true if the standard LDAP authenticator would try the login without LDAP: superadmin, and local accounts
+     *         when ldap_trylocal is enabled
+     */
+    private boolean isLocalAuthenticationAllowed(String login, XWikiContext context)
+    {
+        return XWikiRightService.SUPERADMIN_USER.equalsIgnoreCase(login)
+            || XWikiRightService.SUPERADMIN_USER_FULLNAME.equalsIgnoreCase(login)
+            || "1".equals(XWikiLDAPConfig.getInstance().getLDAPParam("ldap_trylocal", "0", context));
+    }
+
+    /**
+     * @return the first LDAP server configured for the standard LDAP authenticator if they are all unavailable, null
+     *         otherwise
+     */
+    private String getStandardLDAPServerUnavailable(XWikiContext context)
+    {
+        LDAPCircuitBreaker breaker = getCircuitBreaker(context);
+
+        List<LDAPServer> servers = getConfig().getLDAPServers(Collections.<String, String> emptyMap(), context);
+        for (LDAPServer server : servers) {
+            if (!breaker.isOpen(server.getDomain())) {
+                return null;
+            }
+        }
+
+        return servers.get(0).getDomain();
+    }
+
     protected Map<String, String> parseRemoteUser(String ssoRemoteUser, XWikiContext context)
     {
         Map<String, String> ldapConfiguration = new HashMap<String, String>();
 
         ldapConfiguration.put("login", ssoRemoteUser);
 
-        Pattern remoteUserParser = getConfig().getRemoteUserPattern(context);
+        RemoteUserParser remoteUserParser = getConfig().getRemoteUserParser(context);
 
         LOGGER.debug("remoteUserParser: {}", remoteUserParser);
 
         if (remoteUserParser != null) {
-            Matcher marcher = remoteUserParser.matcher(ssoRemoteUser);
+            Matcher marcher = remoteUserParser.getPattern().matcher(ssoRemoteUser);
 
             if (marcher.find()) {
                 int groupCount = marcher.groupCount();
@@ -299,9 +643,7 @@ protected Map<String, String> parseRemoteUser(String ssoRemoteUser, XWikiContext
                     for (int g = 1; g <= groupCount; ++g) {
                         String groupValue = marcher.group(g);
 
-                        List<String> remoteUserMapping = getConfig().getRemoteUserMapping(g, context);
-
-                        for (String configName : remoteUserMapping) {
+                        for (String configName : remoteUserParser.getProperties(g)) {
                             ldapConfiguration
                                 .put(configName, convertRemoteUserMapping(configName, groupValue, context));
                         }
@@ -327,194 +669,1217 @@ private String convertRemoteUserMapping(String propertyName, String propertyValu
     public boolean open(XWikiLDAPConnection connector, Map<String, String> remoteUserLDAPConfiguration,
         XWikiContext context) throws XWikiLDAPException
     {
-        XWikiLDAPConfig config = XWikiLDAPConfig.getInstance();
-
-        // open LDAP
-        int ldapPort = getConfig().getLDAPPort(remoteUserLDAPConfiguration, context);
-        String ldapHost = getConfig().getLDAPServer(remoteUserLDAPConfiguration, context);
-
         // allow to use the given user and password also as the LDAP bind user and password
-        String bindDN = getConfig().getLDAPBindDN(remoteUserLDAPConfiguration, context);
-        String bindPassword = getConfig().getLDAPBindPassword(remoteUserLDAPConfiguration, context);
-
-        LOGGER.debug("Bind DN: {}", bindDN);
+        LDAPConnectionKey connectionKey = getConfig().getLDAPConnectionKey(remoteUserLDAPConfiguration, context);
 
-        boolean bind;
-        if ("1".equals(config.getLDAPParam("ldap_ssl", "0", context))) {
-            String keyStore = config.getLDAPParam("ldap_ssl.keystore", "", context);
+        return open(connector, connectionKey, context);
+    }
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Connecting to LDAP using SSL");
-            }
+    private boolean open(XWikiLDAPConnection connector, LDAPConnectionKey connectionKey, XWikiContext context)
+        throws XWikiLDAPException
+    {
+        LOGGER.debug("Bind DN: {}", connectionKey.getBindDN());
 
-            bind = connector.open(ldapHost, ldapPort, bindDN, bindPassword, keyStore, true, context);
-        } else {
-            bind = connector.open(ldapHost, ldapPort, bindDN, bindPassword, null, false, context);
+        if (connectionKey.isSSL()) {
+            LOGGER.debug("Connecting to LDAP using SSL");
         }
 
-        return bind;
+        return connector.open(connectionKey.getHost(), connectionKey.getPort(), connectionKey.getBindDN(),
+            connectionKey.getBindPassword(), connectionKey.getKeyStore(), connectionKey.isSSL(), context);
     }
 
-    public Principal authenticateSSOInContext(String login, String password, boolean local, XWikiContext context)
-        throws XWikiException, UnsupportedEncodingException, LDAPException
+    /**
+     * @param context the XWiki context
+     * @return the receiver of the authentication measures
+     * @since 1.4
+     */
+    protected TrustedLDAPMetrics getMetrics(XWikiContext context)
     {
-        LOGGER.debug("Authenticate SSO");
+        if (this.metrics == null) {
+            synchronized (this) {
+                if (this.metrics == null) {
+                    this.metrics = createMetrics(getConfig().getMetricsClass(context), context);
+
+                    startListening();
+                }
+            }
+        }
 
-        XWikiRequest request = context.getRequest();
+        return this.metrics;
+    }
 
-        boolean checkAuth = false;
-        Principal principal = null;
+    private TrustedLDAPMetrics createMetrics(String className, XWikiContext context)
+    {
+        if (StringUtils.isNotEmpty(className)) {
+            try {
+                Class< ? > metricsClass =
+                    Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+
+                try {
+                    // Distinguish the metrics of the web applications sharing the JVM
+                    return (TrustedLDAPMetrics) metricsClass.getConstructor(String.class).newInstance(
+                        getWebApplicationName(context));
+                } catch (NoSuchMethodException e) {
+                    return (TrustedLDAPMetrics) metricsClass.newInstance();
+                }
+            } catch (Exception e) {
+                LOGGER.error("Failed to create metrics [{}], metrics are disabled", className, e);
+            }
+        }
 
-        String ssoRemoteUser = request.getRemoteUser();
+        return NO_METRICS;
+    }
 
-        if (ssoRemoteUser == null) {
-            // try using provided user name/password if no SSO information is provided
-            ssoRemoteUser = login;
-            checkAuth = true;
+    /**
+     * @return the context path of the web application, "/" for the root web application
+     */
+    private String getWebApplicationName(XWikiContext context)
+    {
+        String contextPath = context.getRequest() != null ? context.getRequest().getContextPath() : null;
 
-            if (ssoRemoteUser == null) {
-                LOGGER
-                    .warn("Failed to resolve remote user. It usually mean that no SSO information has been provided to XWiki.");
+        return StringUtils.defaultIfEmpty(contextPath, "/");
+    }
 
-                return null;
+    /**
+     * @param context the XWiki context
+     * @return the pool of bound LDAP connections shared by all authentications
+     * @since 1.4
+     */
+    protected LDAPConnectionPool getConnectionPool(XWikiContext context)
+    {
+        if (this.connectionPool == null) {
+            synchronized (this) {
+                if (this.connectionPool == null) {
+                    TrustedLDAPConfig trustedConfig = getConfig();
+
+                    this.connectionPool =
+                        new LDAPConnectionPool(trustedConfig.getPoolMinIdle(context),
+                            trustedConfig.getPoolMaxSize(context), trustedConfig.getPoolMaxIdleTime(context),
+                            trustedConfig.getPoolBorrowTimeout(context),
+                            trustedConfig.getPoolValidationInterval(context), true);
+
+                    startListening();
+                }
             }
         }
 
-        LOGGER.debug("request remote user: {}", ssoRemoteUser);
+        return this.connectionPool;
+    }
 
-        // ////////////////////////////////////////////////////////////////////
-        // Extract LDAP informations from remote user
-        // ////////////////////////////////////////////////////////////////////
+    /**
+     * @param context the XWiki context
+     * @return the pool of connections used to validate the credentials of the users, separate from the connections
+     *         used for searches so that those stay bound with the configured bind user
+     * @since 1.4
+     */
+    protected LDAPConnectionPool getCredentialPool(XWikiContext context)
+    {
+        if (this.credentialPool == null) {
+            synchronized (this) {
+                if (this.credentialPool == null) {
+                    TrustedLDAPConfig trustedConfig = getConfig();
 
-        Map<String, String> remoteUserLDAPConfiguration = parseRemoteUser(ssoRemoteUser, context);
+                    this.credentialPool =
+                        new LDAPConnectionPool(0, trustedConfig.getCredentialPoolMaxSize(context),
+                            trustedConfig.getPoolMaxIdleTime(context), trustedConfig.getPoolBorrowTimeout(context),
+                            trustedConfig.getPoolValidationInterval(context), false);
 
-        LOGGER.debug("remoteUserLDAPConfiguration: {}", remoteUserLDAPConfiguration);
+                    startListening();
+                }
+            }
+        }
 
-        // provide form password
-        if (!remoteUserLDAPConfiguration.containsKey("password")) {
-            remoteUserLDAPConfiguration.put("password", password);
+        return this.credentialPool;
+    }
+
+    /**
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return the pool to get the connection from or null if the connection can't be shared
+     */
+    private LDAPConnectionPool getConnectionPool(Map<String, String> remoteUserLDAPConfiguration,
+        XWikiContext context)
+    {
+        // Connections bound with a user which depends on the authenticated user can't be shared
+        if (getConfig().getPoolMaxSize(context) > 0
+            && getConfig().isLDAPBindShared(remoteUserLDAPConfiguration, context)) {
+            return getConnectionPool(context);
         }
 
-        String ldapUid = remoteUserLDAPConfiguration.get("login");
-        String validXWikiUserName = getConfig().getUserPageName(remoteUserLDAPConfiguration, context);
+        return null;
+    }
 
-        LOGGER.debug("ldapUid: {}", ldapUid);
-        LOGGER.debug("validXWikiUserName: {}", validXWikiUserName);
+    /**
+     * A bound connection and the server it's connected to.
+     */
+    private static class BoundConnection
+    {
+        private final LDAPConnectionKey key;
 
-        // ////////////////////////////////////////////////////////////////////
-        // LDAP
-        // ////////////////////////////////////////////////////////////////////
+        private final XWikiLDAPConnection connection;
 
-        XWikiLDAPConnection connector = new XWikiLDAPConnection();
-        XWikiLDAPUtils ldapUtils = new XWikiLDAPUtils(connector);
+        BoundConnection(LDAPConnectionKey key, XWikiLDAPConnection connection)
+        {
+            this.key = key;
+            this.connection = connection;
+        }
+    }
 
-        XWikiLDAPConfig ldapConfig = XWikiLDAPConfig.getInstance();
-        ldapUtils.setUidAttributeName(ldapConfig.getLDAPParam(XWikiLDAPConfig.PREF_LDAP_UID, "cn", context));
-        ldapUtils.setGroupClasses(ldapConfig.getGroupClasses(context));
-        ldapUtils.setGroupMemberFields(ldapConfig.getGroupMemberFields(context));
-        ldapUtils.setUserSearchFormatString(ldapConfig.getLDAPParam("ldap_user_search_fmt", "({0}={1})", context));
-        ldapUtils.setBaseDN(getConfig().getLDAPBaseDN(remoteUserLDAPConfiguration, context));
+    /**
+     * Connect to the first available server of the domain.
+     *
+     * @param deadline the {@link System#nanoTime()} at which the authentication must be finished, 0 for none
+     */
+    private BoundConnection openConnection(LDAPConnectionPool connectionPool,
+        Map<String, String> remoteUserLDAPConfiguration, long deadline, XWikiContext context) throws XWikiException
+    {
+        List<LDAPServer> servers =
+            getServerSelector(context).select(getConfig().getLDAPServers(remoteUserLDAPConfiguration, context));
 
-        // ////////////////////////////////////////////////////////////////////
-        // bind to LDAP
-        // ////////////////////////////////////////////////////////////////////
+        XWikiException failure = null;
+        for (LDAPServer server : servers) {
+            // Don't fail over once the authentication is late, the next servers would not do better
+            long timeLimit = getTimeLimit(deadline, TrustedLDAPMetrics.LDAP_OPEN, context);
 
-        if (!open(connector, remoteUserLDAPConfiguration, context)) {
-            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
-                "Bind to LDAP server failed.");
-        }
+            if (failure != null) {
+                LOGGER.debug("Failing over to LDAP server [{}]", server.getDomain());
 
-        // ////////////////////////////////////////////////////////////////////
-        // find XWiki user profile page
-        // ////////////////////////////////////////////////////////////////////
+                getMetrics(context).increment(TrustedLDAPMetrics.LDAP_FAILOVERS, server.getDomain());
+            }
 
-        LDAPProfileXClass ldapProfileClass = new LDAPProfileXClass(context);
+            try {
+                return new BoundConnection(server.getConnectionKey(), openConnection(connectionPool,
+                    server.getConnectionKey(), remoteUserLDAPConfiguration, timeLimit, context));
+            } catch (XWikiException e) {
+                LOGGER.debug("Failed to connect to LDAP server [{}]", server.getDomain(), e);
 
-        // Get the profile using the remote ID instead of the uid to avoid collisions
-        XWikiDocument userProfile = ldapProfileClass.searchDocumentByUid(ssoRemoteUser);
-        if (userProfile == null) {
-            // Now a bit or retro-compatibility
-            if (getConfig().getTestLoginFor(remoteUserLDAPConfiguration, context).contains(ssoRemoteUser)) {
-                userProfile = ldapProfileClass.searchDocumentByUid(ldapUid);
+                failure = e;
             }
         }
 
-        if (userProfile == null) {
-            // Lets find a new page then
-            userProfile = ldapUtils.getUserProfileByUid(validXWikiUserName, ssoRemoteUser, context);
-        }
+        throw failure;
+    }
 
-        // ////////////////////////////////////////////////////////////////////
-        // search for LDAP dn
-        // ////////////////////////////////////////////////////////////////////
+    /**
+     * Open a connection, outside of the pool, to the first available LDAP server of the domain. Servers which keep
+     * failing are skipped.
+     *
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return a connection bound with the configured bind user, to close once finished
+     * @throws XWikiException when none of the servers of the domain could be reached
+     * @since 1.4
+     */
+    protected XWikiLDAPConnection openConnection(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+        throws XWikiException
+    {
+        return openConnection(null, remoteUserLDAPConfiguration, 0, context).connection;
+    }
 
-        // get DN from existing XWiki user
-        String ldapDn = null;
-        List<XWikiLDAPSearchAttribute> searchAttributes = null;
+    /**
+     * @param timeLimit the maximum time in milliseconds to wait for a pooled connection, 0 for the pool timeout
+     */
+    private XWikiLDAPConnection openConnection(LDAPConnectionPool connectionPool, LDAPConnectionKey connectionKey,
+        Map<String, String> remoteUserLDAPConfiguration, long timeLimit, XWikiContext context) throws XWikiException
+    {
+        TrustedLDAPMetrics currentMetrics = getMetrics(context);
+        LDAPCircuitBreaker breaker = getCircuitBreaker(context);
+        String domain = getDomain(connectionKey);
 
-        // Get the attributes, we might need them
-        searchAttributes = ldapUtils.searchUserAttributesByUid(ldapUid, ldapUtils.getAttributeNameTable(context));
+        // Don't wait for the connection timeout of a server which keeps failing
+        if (!breaker.allowRequest(domain)) {
+            currentMetrics.increment(TrustedLDAPMetrics.LDAP_CIRCUIT_OPEN, domain);
 
-        if (searchAttributes != null) {
-            for (XWikiLDAPSearchAttribute searchAttribute : searchAttributes) {
-                if ("dn".equals(searchAttribute.name)) {
-                    ldapDn = searchAttribute.value;
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "LDAP server [" + domain + "] is unavailable.");
+        }
+
+        long start = System.nanoTime();
+        boolean available = false;
+        boolean contacted = true;
+        try {
+            XWikiLDAPConnection connector;
+            if (connectionPool != null) {
+                connector = timeLimit > 0 ? connectionPool.borrow(connectionKey, timeLimit, context)
+                    : connectionPool.borrow(connectionKey, context);
+            } else {
+                connector = new XWikiLDAPConnection();
 
-                    break;
+                if (!open(connector, connectionKey, context)) {
+                    throw new XWikiException(XWikiException.MODULE_XWIKI_USER,
+                        XWikiException.ERROR_XWIKI_USER_INIT, "Bind to LDAP server failed.");
                 }
             }
-        }
 
-        if (ldapDn == null) {
-            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
-                "Can't find LDAP user DN for [" + ssoRemoteUser + "]");
-        }
+            available = true;
 
-        // ////////////////////////////////////////////////////////////////////
-        // if using form user/password, validate it
-        // ////////////////////////////////////////////////////////////////////
+            return connector;
+        } catch (LDAPPoolTimeoutException e) {
+            currentMetrics.increment(TrustedLDAPMetrics.LDAP_POOL_TIMEOUTS, domain);
+
+            // All the connections to the server are busy, which says nothing about the server itself
+            contacted = false;
+
+            throw e;
+        } catch (XWikiException e) {
+            currentMetrics.increment(TrustedLDAPMetrics.LDAP_BIND_FAILURES, domain);
+
+            // A bind with the credentials of the user can fail because of the user, not the server
+            available =
+                !getConfig().isLDAPBindShared(remoteUserLDAPConfiguration, context) && !isConnectionFailure(e);
+
+            throw e;
+        } finally {
+            if (!contacted) {
+                breaker.recordSkipped(domain);
+            } else if (available) {
+                breaker.recordSuccess(domain);
+            } else {
+                breaker.recordFailure(domain);
+            }
+
+            currentMetrics.time(TrustedLDAPMetrics.LDAP_OPEN, domain, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return true if the passed exception has been caused by something else than invalid credentials
+     */
+    private static boolean isConnectionFailure(Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LDAPException) {
+                return ((LDAPException) cause).getResultCode() != LDAPException.INVALID_CREDENTIALS;
+            }
+        }
+
+        return false;
+    }
+
+    private static String getDomain(LDAPConnectionKey connectionKey)
+    {
+        return connectionKey.getHost() + ':' + connectionKey.getPort();
+    }
+
+    /**
+     * @param reusable false if the connection is not bound with the configured bind user anymore
+     */
+    private void closeConnection(LDAPConnectionPool connectionPool, LDAPConnectionKey connectionKey,
+        XWikiLDAPConnection connector, boolean reusable)
+    {
+        if (connectionPool != null) {
+            connectionPool.release(connectionKey, connector, reusable);
+        } else {
+            connector.close();
+        }
+    }
+
+    /**
+     * @param connector the LDAP connection
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return the LDAP tools configured for the remote user domain
+     * @since 1.4
+     */
+    protected TrustedLDAPUtils createLDAPUtils(XWikiLDAPConnection connector,
+        Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    {
+        String domain =
+            getConfig().getLDAPServer(remoteUserLDAPConfiguration, context) + ':'
+                + getConfig().getLDAPPort(remoteUserLDAPConfiguration, context);
+
+        TrustedLDAPUtils ldapUtils = new TrustedLDAPUtils(connector, getGroupCache(context), domain);
+
+        XWikiLDAPConfig ldapConfig = XWikiLDAPConfig.getInstance();
+        ldapUtils.setUidAttributeName(ldapConfig.getLDAPParam(XWikiLDAPConfig.PREF_LDAP_UID, "cn", context));
+        ldapUtils.setGroupClasses(ldapConfig.getGroupClasses(context));
+        ldapUtils.setGroupMemberFields(ldapConfig.getGroupMemberFields(context));
+        ldapUtils.setUserSearchFormatString(ldapConfig.getLDAPParam("ldap_user_search_fmt", "({0}={1})", context));
+        ldapUtils.setBaseDN(getConfig().getLDAPBaseDN(remoteUserLDAPConfiguration, context));
+        ldapUtils.setGroupSearch(ldapConfig.getGroupClasses(context), ldapConfig.getGroupMemberFields(context),
+            getConfig().getGroupSearchPageSize(context), getConfig().getGroupSearchSizeLimit(context));
+
+        return ldapUtils;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the expanded LDAP groups members indexed by domain and group DN
+     * @since 1.4
+     */
+    protected TimedLRUCache<String, Map<String, String>> getGroupCache(XWikiContext context)
+    {
+        if (this.groupCache == null) {
+            synchronized (this) {
+                if (this.groupCache == null) {
+                    this.groupCache =
+                        new TimedLRUCache<String, Map<String, String>>(getConfig().getGroupCacheMaxSize(context),
+                            getConfig().getGroupCacheTimeToLive(context));
+                }
+            }
+        }
+
+        return this.groupCache;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the XWiki groups each user has last been synchronized with, indexed by user profile
+     * @since 1.4
+     */
+    protected TimedLRUCache<String, GroupMembership> getMembershipCache(XWikiContext context)
+    {
+        if (this.membershipCache == null) {
+            synchronized (this) {
+                if (this.membershipCache == null) {
+                    this.membershipCache =
+                        new TimedLRUCache<String, GroupMembership>(getConfig().getPrincipalCacheMaxSize(context),
+                            getConfig().getGroupCacheTimeToLive(context));
+                }
+            }
+        }
+
+        return this.membershipCache;
+    }
+
+    /**
+     * @param searchAttributes the LDAP attributes of the user
+     * @param ldapDn the LDAP DN of the user
+     * @param ssoRemoteUser the remote user
+     * @return a digest of the sorted attributes names and values
+     * @since 1.4
+     */
+    protected String getAttributesFingerprint(List<XWikiLDAPSearchAttribute> searchAttributes, String ldapDn,
+        String ssoRemoteUser)
+    {
+        Set<String> pairs = new TreeSet<String>();
+        if (searchAttributes != null) {
+            for (XWikiLDAPSearchAttribute searchAttribute : searchAttributes) {
+                pairs.add(searchAttribute.name + '=' + searchAttribute.value);
+            }
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Should never happen, SHA-1 is always supported
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            digest.update(ssoRemoteUser.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(ldapDn.getBytes("UTF-8"));
+            for (String pair : pairs) {
+                digest.update((byte) 0);
+                digest.update(pair.getBytes("UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            // Should never happen, UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+
+        return Base64Codec.encodeURLSafe(digest.digest());
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the queue of background users synchronizations
+     * @since 1.4
+     */
+    public UserSynchronizationQueue getSynchronizationQueue(XWikiContext context)
+    {
+        if (this.synchronizationQueue == null) {
+            synchronized (this) {
+                if (this.synchronizationQueue == null) {
+                    final UserSynchronizationQueue queue =
+                        new UserSynchronizationQueue(getConfig().getAsynchronousSynchronizationThreads(context),
+                            getConfig().getAsynchronousSynchronizationQueueSize(context));
+
+                    getMetrics(context).gauge(TrustedLDAPMetrics.SYNC_QUEUE_SIZE, new TrustedLDAPMetrics.Gauge()
+                    {
+                        @Override
+                        public long getValue()
+                        {
+                            return queue.getQueueSize();
+                        }
+                    });
+
+                    this.synchronizationQueue = queue;
+
+                    startListening();
+                }
+            }
+        }
+
+        return this.synchronizationQueue;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the threads running the LDAP authentications when they have a timeout
+     * @since 1.4
+     */
+    public LDAPAuthenticationExecutor getAuthenticationExecutor(XWikiContext context)
+    {
+        if (this.authenticationExecutor == null) {
+            synchronized (this) {
+                if (this.authenticationExecutor == null) {
+                    this.authenticationExecutor =
+                        new LDAPAuthenticationExecutor(getConfig().getAuthenticationThreads(context), getConfig()
+                            .getAuthenticationQueueSize(context));
+
+                    startListening();
+                }
+            }
+        }
+
+        return this.authenticationExecutor;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the cache of SSO authentications results indexed by remote user
+     * @since 1.4
+     */
+    protected PrincipalCache getPrincipalCache(XWikiContext context)
+    {
+        if (this.principalCache == null) {
+            synchronized (this) {
+                if (this.principalCache == null) {
+                    this.principalCache = createPrincipalCache(getConfig().getPrincipalCacheClass(context), context);
+                }
+            }
+        }
+
+        return this.principalCache;
+    }
+
+    private PrincipalCache createPrincipalCache(String className, XWikiContext context)
+    {
+        int maxSize = getConfig().getPrincipalCacheMaxSize(context);
+        long timeToLive = getConfig().getPrincipalCacheTimeToLive(context);
+
+        if (StringUtils.isNotEmpty(className) && !LocalPrincipalCache.class.getName().equals(className)) {
+            try {
+                PrincipalCache cache =
+                    (PrincipalCache) Class.forName(className, true, Thread.currentThread().getContextClassLoader())
+                        .newInstance();
+                cache.initialize(maxSize, timeToLive);
+
+                return cache;
+            } catch (Exception e) {
+                LOGGER.error("Failed to create principal cache [{}], using a local cache instead", className, e);
+            }
+        }
+
+        return new LocalPrincipalCache(maxSize, timeToLive);
+    }
+
+    /**
+     * @return the digest of the last synchronized groups of the user on this node, 0 if unknown
+     */
+    private long getMembershipDigest(String userName, XWikiContext context)
+    {
+        GroupMembership membership = getMembershipCache(context).get(userName);
+
+        return membership != null ? membership.getDigest() : 0;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the state of each LDAP server
+     * @since 1.4
+     */
+    protected LDAPCircuitBreaker getCircuitBreaker(XWikiContext context)
+    {
+        if (this.circuitBreaker == null) {
+            synchronized (this) {
+                if (this.circuitBreaker == null) {
+                    this.circuitBreaker =
+                        new LDAPCircuitBreaker(getConfig().getCircuitBreakerFailureThreshold(context), getConfig()
+                            .getCircuitBreakerOpenTime(context));
+                }
+            }
+        }
+
+        return this.circuitBreaker;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the order in which the LDAP servers of a domain are tried
+     * @since 1.4
+     */
+    protected LDAPServerSelector getServerSelector(XWikiContext context)
+    {
+        if (this.serverSelector == null) {
+            synchronized (this) {
+                if (this.serverSelector == null) {
+                    this.serverSelector =
+                        new LDAPServerSelector(getConfig().getServerSelection(context), getCircuitBreaker(context));
+                }
+            }
+        }
+
+        return this.serverSelector;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the reason of the last failure of the remote users which could not be found in LDAP, indexed by remote
+     *         user
+     * @since 1.4
+     */
+    protected TimedLRUCache<String, String> getNegativeCache(XWikiContext context)
+    {
+        if (this.negativeCache == null) {
+            synchronized (this) {
+                if (this.negativeCache == null) {
+                    this.negativeCache =
+                        new TimedLRUCache<String, String>(getConfig().getPrincipalCacheMaxSize(context), getConfig()
+                            .getNegativeCacheTimeToLive(context));
+                }
+            }
+        }
+
+        return this.negativeCache;
+    }
+
+    /**
+     * Forget the cached authentication of the passed remote user so that the next request goes through LDAP again.
+     *
+     * @param remoteUser the remote user
+     * @param context the XWiki context
+     * @since 1.4
+     */
+    public void invalidatePrincipal(String remoteUser, XWikiContext context)
+    {
+        getPrincipalCache(context).remove(remoteUser);
+    }
+
+    /**
+     * Create or update the profiles of all the LDAP users of a domain. Meant to be called from a scheduler job.
+     *
+     * @param remoteUserFormat the format of the remote users of the domain, {0} being the LDAP uid (for example
+     *            <code>{0}@MYDOMAIN</code>)
+     * @param context the XWiki context
+     * @return the final status of the provisioning
+     * @throws XWikiException when the provisioning of this domain is already running or when failing to connect to
+     *             LDAP
+     * @since 1.4
+     */
+    public UserProvisioningJob.Status provisionUsers(String remoteUserFormat, XWikiContext context)
+        throws XWikiException
+    {
+        return runProvisioning(remoteUserFormat, false, context);
+    }
+
+    /**
+     * Synchronize the LDAP users of a domain changed since the last provisioning or synchronization, and the members
+     * of the groups changed since then. Meant to be called from a scheduler job, the first call provisions all the
+     * users.
+     *
+     * @param remoteUserFormat the format of the remote users of the domain, {0} being the LDAP uid (for example
+     *            <code>{0}@MYDOMAIN</code>)
+     * @param context the XWiki context
+     * @return the final status of the synchronization
+     * @throws XWikiException when the provisioning of this domain is already running or when failing to connect to
+     *             LDAP
+     * @since 1.4
+     */
+    public UserProvisioningJob.Status synchronizeChanges(String remoteUserFormat, XWikiContext context)
+        throws XWikiException
+    {
+        return runProvisioning(remoteUserFormat, true, context);
+    }
+
+    private UserProvisioningJob.Status runProvisioning(String remoteUserFormat, boolean incremental,
+        XWikiContext context) throws XWikiException
+    {
+        UserProvisioningJob job =
+            new UserProvisioningJob(this, remoteUserFormat, getConfig().getProvisioningPageSize(context), getConfig()
+                .getProvisioningChunkSize(context), getConfig().getChangeTracking(context), incremental);
+
+        synchronized (this.provisioningJobs) {
+            UserProvisioningJob running = this.provisioningJobs.get(remoteUserFormat);
+
+            if (running != null && running.getStatus().getState() == UserProvisioningJob.State.RUNNING) {
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    "The provisioning of [" + remoteUserFormat + "] is already running");
+            }
+
+            this.provisioningJobs.put(remoteUserFormat, job);
+        }
+
+        job.run(context);
+
+        return job.getStatus();
+    }
+
+    /**
+     * @param remoteUserFormat the format of the remote users of the domain
+     * @return the progress of the running or last provisioning of the domain, null if none was started
+     * @since 1.4
+     */
+    public UserProvisioningJob.Status getProvisioningStatus(String remoteUserFormat)
+    {
+        UserProvisioningJob job = this.provisioningJobs.get(remoteUserFormat);
+
+        return job != null ? job.getStatus() : null;
+    }
+
+    /**
+     * Stop the running provisioning of a domain, the next provisioning of the domain resumes it.
+     *
+     * @param remoteUserFormat the format of the remote users of the domain
+     * @since 1.4
+     */
+    public void cancelProvisioning(String remoteUserFormat)
+    {
+        UserProvisioningJob job = this.provisioningJobs.get(remoteUserFormat);
+
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    public Principal authenticateSSOInContext(String login, String password, boolean local, XWikiContext context)
+        throws XWikiException, UnsupportedEncodingException, LDAPException
+    {
+        LOGGER.debug("Authenticate SSO");
+
+        boolean checkAuth = false;
+
+        String ssoRemoteUser = SSORequest.get(context).getRemoteUser();
+
+        if (ssoRemoteUser == null) {
+            // try using provided user name/password if no SSO information is provided
+            ssoRemoteUser = login;
+            checkAuth = true;
+
+            if (ssoRemoteUser == null) {
+                LOGGER
+                    .warn("Failed to resolve remote user. It usually mean that no SSO information has been provided to XWiki.");
+
+                return null;
+            }
+        }
+
+        LOGGER.debug("request remote user: {}", ssoRemoteUser);
+
+        // Bots and misconfigured proxies don't go further
+        if (!checkAuth && !isValidRemoteUser(ssoRemoteUser, context)) {
+            return null;
+        }
+
+        TrustedLDAPMetrics currentMetrics = getMetrics(context);
+
+        // Trusted remote users don't need to go through LDAP again for a while
+        if (!checkAuth) {
+            CachedPrincipal cachedPrincipal = getPrincipalCache(context).get(ssoRemoteUser);
+
+            // Another node might have cached the user before this one synchronized a change of its groups
+            if (cachedPrincipal != null && cachedPrincipal.getGroupDigest() != 0) {
+                long groupDigest = getMembershipDigest(cachedPrincipal.getPrefixedFullName(), context);
+
+                if (groupDigest != 0 && groupDigest != cachedPrincipal.getGroupDigest()) {
+                    LOGGER.debug("Ignoring outdated cached principal for remote user [{}]", ssoRemoteUser);
+
+                    cachedPrincipal = null;
+                }
+            }
+
+            if (cachedPrincipal != null) {
+                LOGGER.debug("Found cached principal for remote user [{}]: {}", ssoRemoteUser, cachedPrincipal);
+
+                currentMetrics.increment(TrustedLDAPMetrics.PRINCIPAL_CACHE_HITS, null);
+
+                return cachedPrincipal.getPrincipal(local);
+            }
 
+            currentMetrics.increment(TrustedLDAPMetrics.PRINCIPAL_CACHE_MISSES, null);
+        }
+
+        // Don't search again a remote user which was just not found in LDAP
+        TimedLRUCache<String, String> currentNegativeCache = getNegativeCache(context);
+        if (currentNegativeCache.isEnabled()) {
+            String failure = currentNegativeCache.get(ssoRemoteUser);
+
+            if (failure != null) {
+                currentMetrics.increment(TrustedLDAPMetrics.NEGATIVE_CACHE_HITS, null);
+
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    failure);
+            }
+
+            currentMetrics.increment(TrustedLDAPMetrics.NEGATIVE_CACHE_MISSES, null);
+        }
+
+        CachedPrincipal authenticated;
         if (checkAuth) {
-            if ("1".equals(ldapConfig.getLDAPParam("ldap_validate_password", "0", context))) {
-                String passwordField = ldapConfig.getLDAPParam("ldap_password_field", "userPassword", context);
-                if (!connector.checkPassword(ldapDn, password, passwordField)) {
-                    LOGGER.debug("Password comparison failed, are you really sure you need validate_password ?"
-                        + " If you don't enable it, it does not mean user credentials are not validated."
-                        + " The goal of this property is to bypass standard LDAP bind"
-                        + " which is usually bad unless you really know what you do.");
-
-                    throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
-                        "LDAP authentication failed:" + " could not validate the password: wrong password for "
-                            + ldapDn);
+            authenticated = runAuthentication(ssoRemoteUser, password, checkAuth, context);
+        } else {
+            // Concurrent requests of the same remote user share the same authentication
+            authenticated = authenticateRemoteUserOnce(ssoRemoteUser, password, context);
+        }
+
+        Principal principal = authenticated.getPrincipal(local);
+
+        LOGGER.debug("Principal=" + principal);
+
+        return principal;
+    }
+
+    private CachedPrincipal authenticateRemoteUserOnce(final String ssoRemoteUser, final String password,
+        final XWikiContext context) throws XWikiException, UnsupportedEncodingException, LDAPException
+    {
+        // Indicate if the authentication was done by this thread
+        final boolean[] executed = new boolean[1];
+
+        try {
+            CachedPrincipal authenticated =
+                this.inFlightAuthentications.execute(ssoRemoteUser, new Callable<CachedPrincipal>()
+                {
+                    @Override
+                    public CachedPrincipal call() throws Exception
+                    {
+                        executed[0] = true;
+
+                        return runAuthentication(ssoRemoteUser, password, false, context);
+                    }
+                });
+
+            if (!executed[0]) {
+                LOGGER.debug("Shared the authentication of remote user [{}] with a concurrent request", ssoRemoteUser);
+
+                getMetrics(context).increment(TrustedLDAPMetrics.COALESCED, null);
+            }
+
+            return authenticated;
+        } catch (XWikiException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (LDAPException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Failed to authenticate remote user [" + ssoRemoteUser + "]", e);
+        }
+    }
+
+    /**
+     * Authenticate in the calling thread or, when a timeout is configured, in the authentication threads.
+     */
+    private CachedPrincipal runAuthentication(final String ssoRemoteUser, final String password,
+        final boolean checkAuth, XWikiContext context) throws XWikiException, UnsupportedEncodingException,
+        LDAPException
+    {
+        long timeout = getConfig().getAuthenticationTimeout(context);
+
+        if (timeout <= 0) {
+            return authenticateRemoteUser(ssoRemoteUser, password, checkAuth, 0, context);
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try {
+            return getAuthenticationExecutor(context).execute(new LDAPAuthenticationExecutor.Task<CachedPrincipal>()
+            {
+                @Override
+                public CachedPrincipal run(XWikiContext taskContext) throws Exception
+                {
+                    return authenticateRemoteUser(ssoRemoteUser, password, checkAuth, deadline, taskContext);
                 }
-            } else {
-                String bindDNFormat = getConfig().getLDAPBindDNFormat(remoteUserLDAPConfiguration, context);
-                String bindDN = getConfig().getLDAPBindDN(remoteUserLDAPConfiguration, context);
+            }, timeout, context);
+        } catch (TimeoutException e) {
+            getMetrics(context).increment(TrustedLDAPMetrics.TIMEOUTS, null);
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Authentication of remote user [" + ssoRemoteUser + "] did not finish in [" + timeout + "] ms", e);
+        } catch (RejectedExecutionException e) {
+            getMetrics(context).increment(TrustedLDAPMetrics.REJECTED, null);
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Too many LDAP authentications in progress, rejected remote user [" + ssoRemoteUser + "]", e);
+        } catch (XWikiException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (LDAPException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Failed to authenticate remote user [" + ssoRemoteUser + "]", e);
+        }
+    }
+
+    /**
+     * Limit the duration of the next LDAP operations to the stage timeout and what remains before the deadline.
+     * <p>
+     * This changes the default constraints of the connection, which {@link LDAPConnectionPool} restores when the
+     * connection is given back.
+     *
+     * @param deadline the {@link System#nanoTime()} at which the authentication must be finished, 0 for none
+     */
+    private void applyDeadline(XWikiLDAPConnection connector, long deadline, String stage, XWikiContext context)
+        throws XWikiException
+    {
+        long timeLimit = getTimeLimit(deadline, stage, context);
+        if (timeLimit == 0) {
+            return;
+        }
+
+        LDAPConnection connection = connector.getConnection();
+        LDAPSearchConstraints constraints = connection.getSearchConstraints();
+        constraints.setTimeLimit((int) timeLimit);
+        constraints.setServerTimeLimit((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeLimit)));
+        connection.setConstraints(constraints);
+    }
+
+    /**
+     * @param deadline the {@link System#nanoTime()} at which the authentication must be finished, 0 for none
+     * @return the maximum duration in milliseconds of the stage given its timeout and what remains before the
+     *         deadline, 0 when there is no deadline
+     * @throws XWikiException when the deadline is already exceeded
+     */
+    private long getTimeLimit(long deadline, String stage, XWikiContext context) throws XWikiException
+    {
+        if (deadline == 0) {
+            return 0;
+        }
+
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Authentication deadline exceeded before stage [" + stage + "]");
+        }
+
+        long stageTimeout = getConfig().getStageTimeout(context);
+
+        return stageTimeout > 0 ? Math.min(remaining, stageTimeout) : remaining;
+    }
+
+    /**
+     * Validate the credentials of a user by binding with them on a connection dedicated to credential checks. The
+     * connection is bound again by the next check so it's never used for searches. A new connection is directly bound
+     * with the user credentials, never with the configured bind user.
+     */
+    private void checkCredentials(LDAPConnectionKey connectionKey, String ldapDn, String password, long deadline,
+        XWikiContext context) throws XWikiException, UnsupportedEncodingException, LDAPException
+    {
+        // An empty password would be an unauthenticated bind, which succeeds
+        if (StringUtils.isEmpty(password)) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "LDAP authentication failed: empty password for " + ldapDn);
+        }
+
+        LDAPConnectionPool pool = getConfig().getCredentialPoolMaxSize(context) > 0 ? getCredentialPool(context) : null;
+
+        long timeLimit = getTimeLimit(deadline, TrustedLDAPMetrics.LDAP_CHECK_PASSWORD, context);
+
+        XWikiLDAPConnection connector;
+        if (pool != null) {
+            // Throws when the credentials are rejected, after giving back the connection for the next check
+            connector = pool.borrow(connectionKey, ldapDn, password, timeLimit, context);
+        } else {
+            connector = new XWikiLDAPConnection();
+
+            if (!connector.open(connectionKey.getHost(), connectionKey.getPort(), ldapDn, password,
+                connectionKey.getKeyStore(), connectionKey.isSSL(), context)) {
+                connector.close();
+
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    "LDAP authentication failed: bind failed for " + ldapDn);
+            }
+        }
+
+        // The credentials are valid, the connection is bound with them
+        closeConnection(pool, connectionKey, connector, true);
+    }
+
+    /**
+     * Resolve the remote user in LDAP, find or create its profile and synchronize it.
+     *
+     * @param deadline the {@link System#nanoTime()} at which the authentication must be finished, 0 for none
+     */
+    private CachedPrincipal authenticateRemoteUser(String ssoRemoteUser, String password, boolean checkAuth,
+        long deadline, XWikiContext context) throws XWikiException, UnsupportedEncodingException, LDAPException
+    {
+        TrustedLDAPMetrics currentMetrics = getMetrics(context);
+
+        // ////////////////////////////////////////////////////////////////////
+        // Extract LDAP informations from remote user
+        // ////////////////////////////////////////////////////////////////////
+
+        long start = System.nanoTime();
+        Map<String, String> remoteUserLDAPConfiguration = parseRemoteUser(ssoRemoteUser, context);
+        currentMetrics.time(TrustedLDAPMetrics.PARSE_REMOTE_USER, null, System.nanoTime() - start);
+
+        LOGGER.debug("remoteUserLDAPConfiguration: {}", remoteUserLDAPConfiguration);
+
+        // provide form password
+        if (!remoteUserLDAPConfiguration.containsKey("password")) {
+            remoteUserLDAPConfiguration.put("password", password);
+        }
+
+        String ldapUid = remoteUserLDAPConfiguration.get("login");
+
+        LOGGER.debug("ldapUid: {}", ldapUid);
+
+        // ////////////////////////////////////////////////////////////////////
+        // bind to LDAP
+        // ////////////////////////////////////////////////////////////////////
+
+        LDAPConnectionPool connectionPool = getConnectionPool(remoteUserLDAPConfiguration, context);
+
+        BoundConnection boundConnection =
+            openConnection(connectionPool, remoteUserLDAPConfiguration, deadline, context);
+        LDAPConnectionKey connectionKey = boundConnection.key;
+        XWikiLDAPConnection connector = boundConnection.connection;
+        String domain = getDomain(connectionKey);
+
+        // Indicate if the connection is still bound with the configured bind user
+        boolean reusable = true;
+        try {
+            XWikiLDAPConfig ldapConfig = XWikiLDAPConfig.getInstance();
+            TrustedLDAPUtils ldapUtils = createLDAPUtils(connector, remoteUserLDAPConfiguration, context);
+
+            // ////////////////////////////////////////////////////////////////////
+            // find XWiki user profile page
+            // ////////////////////////////////////////////////////////////////////
+
+            start = System.nanoTime();
+
+            XWikiDocument userProfile = getUserProfile(ssoRemoteUser, remoteUserLDAPConfiguration, ldapUtils, context);
+
+            currentMetrics.time(TrustedLDAPMetrics.PROFILE_LOOKUP, null, System.nanoTime() - start);
+
+            // ////////////////////////////////////////////////////////////////////
+            // search for LDAP dn
+            // ////////////////////////////////////////////////////////////////////
+
+            applyDeadline(connector, deadline, TrustedLDAPMetrics.LDAP_SEARCH, context);
+
+            // Only get the mapped attributes, the DN comes with the entry
+            start = System.nanoTime();
+            LDAPEntry userEntry;
+            try {
+                userEntry = ldapUtils.searchUserEntryByUid(ldapUid, ldapUtils.getAttributeNameTable(context));
+            } catch (LDAPException e) {
+                // The connection might be broken
+                reusable = false;
+
+                throw e;
+            }
+            long searchTime = System.nanoTime() - start;
+            currentMetrics.time(TrustedLDAPMetrics.LDAP_SEARCH, domain, searchTime);
+            getServerSelector(context).recordLatency(domain, searchTime);
+
+            if (userEntry == null) {
+                String failure = "Can't find LDAP user DN for [" + ssoRemoteUser + "]";
+
+                getNegativeCache(context).put(ssoRemoteUser, failure);
+
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    failure);
+            }
+
+            String ldapDn = userEntry.getDN();
+            List<XWikiLDAPSearchAttribute> searchAttributes = TrustedLDAPUtils.getSearchAttributes(userEntry);
+
+            // ////////////////////////////////////////////////////////////////////
+            // if using form user/password, validate it
+            // ////////////////////////////////////////////////////////////////////
 
-                if (bindDNFormat.equals(bindDN)) {
-                    // Validate user credentials
-                    connector.bind(ldapDn, password);
+            if (checkAuth) {
+                applyDeadline(connector, deadline, TrustedLDAPMetrics.LDAP_CHECK_PASSWORD, context);
 
-                    // Rebind admin user
-                    connector.bind(bindDN, getConfig().getLDAPBindPassword(remoteUserLDAPConfiguration, context));
+                start = System.nanoTime();
+
+                if ("1".equals(ldapConfig.getLDAPParam("ldap_validate_password", "0", context))) {
+                    String passwordField = ldapConfig.getLDAPParam("ldap_password_field", "userPassword", context);
+                    if (!connector.checkPassword(ldapDn, password, passwordField)) {
+                        LOGGER.debug("Password comparison failed, are you really sure you need validate_password ?"
+                            + " If you don't enable it, it does not mean user credentials are not validated."
+                            + " The goal of this property is to bypass standard LDAP bind"
+                            + " which is usually bad unless you really know what you do.");
+
+                        throw new XWikiException(XWikiException.MODULE_XWIKI_USER,
+                            XWikiException.ERROR_XWIKI_USER_INIT, "LDAP authentication failed:"
+                                + " could not validate the password: wrong password for " + ldapDn);
+                    }
+                } else {
+                    // The bind did not already validate the user credentials
+                    if (getConfig().getLDAPBindDNTemplate(remoteUserLDAPConfiguration, context).isConstant()) {
+                        // Validate user credentials
+                        checkCredentials(connectionKey, ldapDn, password, deadline, context);
+                    }
+                }
+
+                currentMetrics.time(TrustedLDAPMetrics.LDAP_CHECK_PASSWORD, domain, System.nanoTime() - start);
+            }
+
+            // ////////////////////////////////////////////////////////////////////
+            // sync user and groups membership
+            // ////////////////////////////////////////////////////////////////////
+
+            applyDeadline(connector, deadline, TrustedLDAPMetrics.SYNC_USER, context);
+
+            boolean isNewUser = userProfile.isNew();
+
+            // New users are always synchronized right away so that their profile exists when they enter
+            boolean queued = false;
+            boolean skipped = false;
+            if (!isNewUser) {
+                if (!getConfig().isLoginSynchronization(context)) {
+                    // Kept up to date by the scheduled synchronizations
+                    skipped = true;
+                } else if (getConfig().isAsynchronousSynchronization(context)) {
+                    queued =
+                        getSynchronizationQueue(context).submit(ssoRemoteUser,
+                            new SynchronizationJob(userProfile.getFullName(), searchAttributes, ldapDn, ssoRemoteUser,
+                                new HashMap<String, String>(remoteUserLDAPConfiguration)), context);
                 }
             }
+
+            if (skipped) {
+                LOGGER.debug("Synchronization of existing user [{}] at login is disabled", ssoRemoteUser);
+            } else if (queued) {
+                currentMetrics.increment(TrustedLDAPMetrics.SYNC_QUEUED, null);
+            } else {
+                synchronize(userProfile, searchAttributes, ldapDn, ssoRemoteUser, isNewUser,
+                    remoteUserLDAPConfiguration, ldapUtils, context);
+            }
+
+            // from now on we can enter the application
+            CachedPrincipal authenticated =
+                new CachedPrincipal(userProfile.getFullName(), userProfile.getPrefixedFullName(), ldapDn,
+                    getMembershipDigest(userProfile.getPrefixedFullName(), context));
+
+            if (!checkAuth) {
+                getPrincipalCache(context).put(ssoRemoteUser, authenticated);
+            }
+
+            return authenticated;
+        } finally {
+            closeConnection(connectionPool, connectionKey, connector, reusable);
+        }
+    }
+
+    /**
+     * @param ssoRemoteUser the remote user
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param ldapUtils the LDAP tools
+     * @param context the XWiki context
+     * @return the existing profile of the user or a new document where to create it
+     * @throws XWikiException when failing to search the profile
+     * @since 1.4
+     */
+    protected XWikiDocument getUserProfile(String ssoRemoteUser, Map<String, String> remoteUserLDAPConfiguration,
+        TrustedLDAPUtils ldapUtils, XWikiContext context) throws XWikiException
+    {
+        // Get the profile using the remote ID instead of the uid to avoid collisions
+        List<String> profileUids = new ArrayList<String>(2);
+        profileUids.add(ssoRemoteUser);
+        // Now a bit or retro-compatibility
+        if (getConfig().getTestLoginFor(remoteUserLDAPConfiguration, context).contains(ssoRemoteUser)) {
+            profileUids.add(remoteUserLDAPConfiguration.get("login"));
+        }
+
+        XWikiDocument userProfile;
+        if (getConfig().isProfileIndexEnabled(context)) {
+            userProfile = this.profileIndex.searchDocumentByUid(profileUids, context);
+        } else {
+            userProfile = LDAPProfileIndex.searchDocumentByUidInStore(profileUids, context);
+        }
+
+        if (userProfile == null) {
+            String validXWikiUserName = getConfig().getUserPageName(remoteUserLDAPConfiguration, context);
+
+            LOGGER.debug("validXWikiUserName: {}", validXWikiUserName);
+
+            // Lets find a new page then
+            userProfile = ldapUtils.getUserProfileByUid(validXWikiUserName, ssoRemoteUser, context);
         }
 
+        return userProfile;
+    }
+
+    /**
+     * Synchronize the user profile and groups membership with LDAP.
+     *
+     * @param userProfile the user profile document
+     * @param searchAttributes the LDAP attributes of the user
+     * @param ldapDn the LDAP DN of the user
+     * @param ssoRemoteUser the remote user
+     * @param isNewUser true if the user profile did not exist before the authentication
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param ldapUtils the LDAP tools
+     * @param context the XWiki context
+     * @throws XWikiException when failing to synchronize the user profile
+     * @since 1.4
+     */
+    protected void synchronize(XWikiDocument userProfile, List<XWikiLDAPSearchAttribute> searchAttributes,
+        String ldapDn, String ssoRemoteUser, boolean isNewUser, Map<String, String> remoteUserLDAPConfiguration,
+        TrustedLDAPUtils ldapUtils, XWikiContext context) throws XWikiException
+    {
         // ////////////////////////////////////////////////////////////////////
         // sync user
         // ////////////////////////////////////////////////////////////////////
 
-        boolean isNewUser = userProfile.isNew();
+        String userName = userProfile.getPrefixedFullName();
+        String fingerprint = getAttributesFingerprint(searchAttributes, ldapDn, ssoRemoteUser);
 
-        // Store the remote user instead of the uid to avoid collisions
-        syncUser(userProfile, searchAttributes, ldapDn, ssoRemoteUser, ldapUtils, context);
+        TrustedLDAPMetrics currentMetrics = getMetrics(context);
 
-        // from now on we can enter the application
-        if (local) {
-            principal = new SimplePrincipal(userProfile.getFullName());
+        boolean fingerprintEnabled = getConfig().isProfileFingerprintEnabled(context);
+        BaseObject ldapProfile = userProfile.getObject(LDAPProfileXClass.LDAP_XCLASS);
+
+        // Don't update (and save) the profile if LDAP did not change since the last synchronization
+        if (isNewUser || !fingerprintEnabled || ldapProfile == null
+            || !fingerprint.equals(ldapProfile.getStringValue(FINGERPRINT_PROPERTY))) {
+            long start = System.nanoTime();
+
+            String version = userProfile.getVersion();
+            String previousFingerprint = null;
+            if (fingerprintEnabled && ldapProfile != null) {
+                // Saved with the synchronized profile, if it changes
+                previousFingerprint = StringUtils.defaultString(ldapProfile.getStringValue(FINGERPRINT_PROPERTY));
+                ldapProfile.setStringValue(FINGERPRINT_PROPERTY, fingerprint);
+            }
+
+            try {
+                // Store the remote user instead of the uid to avoid collisions
+                syncUser(userProfile, searchAttributes, ldapDn, ssoRemoteUser, ldapUtils, context);
+            } catch (XWikiException e) {
+                // Don't leave an unsaved fingerprint in the cached profile
+                if (previousFingerprint != null) {
+                    ldapProfile.setStringValue(FINGERPRINT_PROPERTY, previousFingerprint);
+                }
+
+                throw e;
+            }
+
+            // The profile was not saved (nothing else changed) or the LDAP profile object has just been created
+            ldapProfile = userProfile.getObject(LDAPProfileXClass.LDAP_XCLASS);
+            if (fingerprintEnabled && ldapProfile != null && (isNewUser || version.equals(userProfile.getVersion()))) {
+                ldapProfile.setStringValue(FINGERPRINT_PROPERTY, fingerprint);
+                context.getWiki().saveDocument(userProfile, "Stored the fingerprint of the LDAP attributes", true,
+                    context);
+            }
+
+            currentMetrics.time(TrustedLDAPMetrics.SYNC_USER, null, System.nanoTime() - start);
         } else {
-            principal = new SimplePrincipal(userProfile.getPrefixedFullName());
+            LOGGER.debug("LDAP attributes of [{}] did not change", userName);
+
+            currentMetrics.increment(TrustedLDAPMetrics.SYNC_SKIPPED, null);
         }
 
         // ////////////////////////////////////////////////////////////////////
@@ -532,15 +1897,80 @@ public Principal authenticateSSOInContext(String login, String password, boolean
                 String syncmode = getConfig().getParam("ldap_mode_group_sync", "always", context);
 
                 if (!syncmode.equalsIgnoreCase("create") || isNewUser) {
-                    syncGroupsMembership(userProfile.getFullName(), ldapDn, groupMappings, ldapUtils, context);
+                    long start = System.nanoTime();
+
+                    // Don't touch XWiki groups when the membership did not change since the last synchronization
+                    Set<String> mappedGroups = ldapUtils.getMappedGroups(ldapDn, groupMappings, context);
+
+                    GroupMembership previousMembership = getMembershipCache(context).get(userName);
+                    Set<String> previousGroups = previousMembership != null ? previousMembership.getGroups() : null;
+
+                    if (isNewUser || !mappedGroups.equals(previousGroups)) {
+                        syncGroupsMembership(userProfile.getFullName(), ldapDn, groupMappings, ldapUtils, context);
+
+                        getMembershipCache(context).put(userName, new GroupMembership(mappedGroups));
+
+                        // Make all the nodes authenticate the user again with its new groups
+                        if (!isNewUser && previousGroups != null) {
+                            getPrincipalCache(context).remove(ssoRemoteUser);
+                        }
+                    } else {
+                        LOGGER.debug("Groups membership of [{}] did not change: {}", userName, mappedGroups);
+                    }
+
+                    currentMetrics.time(TrustedLDAPMetrics.SYNC_GROUPS, null, System.nanoTime() - start);
                 }
             }
         } catch (XWikiException e) {
             LOGGER.error("Failed to synchronise user's groups membership", e);
         }
+    }
 
-        LOGGER.debug("Principal=" + principal);
+    /**
+     * Synchronize an existing user in the background.
+     */
+    private class SynchronizationJob implements UserSynchronizationQueue.Job
+    {
+        private final String userProfileName;
 
-        return principal;
+        private final List<XWikiLDAPSearchAttribute> searchAttributes;
+
+        private final String ldapDn;
+
+        private final String ssoRemoteUser;
+
+        private final Map<String, String> remoteUserLDAPConfiguration;
+
+        SynchronizationJob(String userProfileName, List<XWikiLDAPSearchAttribute> searchAttributes, String ldapDn,
+            String ssoRemoteUser, Map<String, String> remoteUserLDAPConfiguration)
+        {
+            this.userProfileName = userProfileName;
+            this.searchAttributes = searchAttributes;
+            this.ldapDn = ldapDn;
+            this.ssoRemoteUser = ssoRemoteUser;
+            this.remoteUserLDAPConfiguration = remoteUserLDAPConfiguration;
+        }
+
+        @Override
+        public void run(XWikiContext context) throws Exception
+        {
+            LOGGER.debug("Synchronizing [{}] in the background", this.ssoRemoteUser);
+
+            LDAPConnectionPool connectionPool = getConnectionPool(this.remoteUserLDAPConfiguration, context);
+
+            BoundConnection boundConnection =
+                openConnection(connectionPool, this.remoteUserLDAPConfiguration, 0, context);
+            XWikiLDAPConnection connector = boundConnection.connection;
+            try {
+                TrustedLDAPUtils ldapUtils = createLDAPUtils(connector, this.remoteUserLDAPConfiguration, context);
+
+                XWikiDocument userProfile = context.getWiki().getDocument(this.userProfileName, context);
+
+                synchronize(userProfile, this.searchAttributes, this.ldapDn, this.ssoRemoteUser, false,
+                    this.remoteUserLDAPConfiguration, ldapUtils, context);
+            } finally {
+                closeConnection(connectionPool, boundConnection.key, connector, true);
+            }
+        }
     }
 }
@@ -19,24 +19,24 @@
  */
 package com.xwiki.authentication.trustedldap;
 
-import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
-import org.apache.commons.lang3.text.StrSubstitutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.plugin.ldap.XWikiLDAPConfig;
-import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
 import com.xwiki.authentication.Config;
 
 public class TrustedLDAPConfig extends Config
@@ -50,16 +50,124 @@ public class TrustedLDAPConfig extends Config
 
     protected static final String CONF_KEY = "xwiki.authentication.trustedldap";
 
+    /**
+     * Compiled patterns indexed by source, shared by all wikis.
+     */
+    private static final ConcurrentMap<String, Pattern> PATTERNS = new ConcurrentHashMap<String, Pattern>();
+
+    /**
+     * Stored in snapshots when no remote user parser is configured.
+     */
+    private static final RemoteUserParser NO_PARSER = new RemoteUserParser(null, new String[0][]);
+
+    /**
+     * The variables of the {0} and {1} arguments of the bind DN and password formats.
+     */
+    private static final String[] BIND_ARGUMENTS = new String[] {"login", "password"};
+
+    /**
+     * Characters not well supported in user page name depending on the version of XWiki.
+     */
+    private static final String PAGE_NAME_REMOVED_CHARACTERS = ". /";
+
     public TrustedLDAPConfig()
     {
         super(PREF_KEY, CONF_KEY);
     }
 
+    private static Pattern compile(String regex)
+    {
+        Pattern pattern = PATTERNS.get(regex);
+
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            PATTERNS.putIfAbsent(regex, pattern);
+        }
+
+        return pattern;
+    }
+
     public Pattern getRemoteUserPattern(XWikiContext context)
     {
-        String param = getParam("remoteUserParser", null, context);
+        RemoteUserParser parser = getRemoteUserParser(context);
 
-        return param != null ? Pattern.compile(param) : null;
+        return parser != null ? parser.getPattern() : null;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the compiled remote user pattern and the properties associated to each of its groups, null if no
+     *         remoteUserParser is configured
+     * @since 1.4
+     */
+    public RemoteUserParser getRemoteUserParser(XWikiContext context)
+    {
+        Snapshot snapshot = getSnapshot(context);
+        RemoteUserParser parser = (RemoteUserParser) snapshot.get("remoteUserParser");
+
+        if (parser == null) {
+            String param = getParam("remoteUserParser", null, context);
+
+            if (param != null) {
+                Pattern pattern = compile(param);
+
+                int groupCount = pattern.matcher("").groupCount();
+                String[][] groupProperties = new String[groupCount + 1][];
+                groupProperties[0] = new String[0];
+                for (int g = 1; g <= groupCount; ++g) {
+                    List<String> remoteUserMapping = getRemoteUserMapping(g, context);
+                    groupProperties[g] = remoteUserMapping.toArray(new String[remoteUserMapping.size()]);
+                }
+
+                parser = new RemoteUserParser(pattern, groupProperties);
+            } else {
+                parser = NO_PARSER;
+            }
+
+            snapshot.put("remoteUserParser", parser);
+        }
+
+        return parser != NO_PARSER ? parser : null;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the validation of remote users done before any I/O
+     * @since 1.4
+     */
+    public RemoteUserValidator getRemoteUserValidator(XWikiContext context)
+    {
+        Snapshot snapshot = getSnapshot(context);
+        RemoteUserValidator validator = (RemoteUserValidator) snapshot.get("remoteUserValidator");
+
+        if (validator == null) {
+            RemoteUserParser parser = getRemoteUserParser(context);
+
+            // The values of a group are known when one of its properties has a mapping
+            @SuppressWarnings("unchecked")
+            Set<String>[] knownValues = new Set[parser != null ? parser.getGroupCount() + 1 : 0];
+            for (int g = 1; g < knownValues.length; ++g) {
+                for (String propertyName : parser.getProperties(g)) {
+                    Map<String, String> mapping = getRemoteUserMapping(propertyName, true, context);
+
+                    if (!mapping.isEmpty()) {
+                        if (knownValues[g] == null) {
+                            knownValues[g] = new HashSet<String>();
+                        }
+                        knownValues[g].addAll(mapping.keySet());
+                    }
+                }
+            }
+
+            validator =
+                new RemoteUserValidator(parser, knownValues, NumberUtils.toInt(
+                    getParam("remoteUserMaxLength", "256", context), 256), "1".equals(getParam("remoteUserValidation",
+                    "0", context)));
+
+            snapshot.put("remoteUserValidator", validator);
+        }
+
+        return validator;
     }
 
     public List<String> getRemoteUserMapping(int groupId, XWikiContext context)
@@ -96,7 +204,7 @@ public int getLDAPPort(Map<String, String> remoteUserLDAPConfiguration, XWikiCon
         if (ldapPortString == null) {
             ldapPort = XWikiLDAPConfig.getInstance().getLDAPPort(context);
         } else {
-            NumberUtils.toInt(ldapPortString, 389);
+            ldapPort = NumberUtils.toInt(ldapPortString, 389);
         }
 
         return ldapPort;
@@ -121,49 +229,540 @@ public String getLDAPBindDNFormat(Map<String, String> remoteUserLDAPConfiguratio
 
     public String getLDAPBindDN(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
     {
-        String login = remoteUserLDAPConfiguration.get("login");
-        String password = remoteUserLDAPConfiguration.get("password");
+        return getLDAPBindDNTemplate(remoteUserLDAPConfiguration, context).render(remoteUserLDAPConfiguration);
+    }
 
+    /**
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return the compiled bind DN format, the login and the password are escaped as DN values
+     * @since 1.4
+     */
+    public ConfigTemplate getLDAPBindDNTemplate(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    {
         String format = getLDAPBindDNFormat(remoteUserLDAPConfiguration, context);
 
-        return MessageFormat.format(format, XWikiLDAPConnection.escapeLDAPDNValue(login),
-            XWikiLDAPConnection.escapeLDAPDNValue(password));
+        String key = "bindDNTemplate:" + format;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        ConfigTemplate template = (ConfigTemplate) snapshot.get(key);
+        if (template == null) {
+            template = ConfigTemplate.compileMessageFormat(format, BIND_ARGUMENTS, true);
+
+            snapshot.put(key, template);
+        }
+
+        return template;
+    }
+
+    public String getLDAPBindPasswordFormat(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    {
+        String remoteUser_bind_pass = remoteUserLDAPConfiguration.get("ldap_bind_pass");
+
+        return remoteUser_bind_pass != null ? remoteUser_bind_pass : XWikiLDAPConfig.getInstance()
+            .getLDAPBindPassword(context);
     }
 
     public String getLDAPBindPassword(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
     {
-        String login = remoteUserLDAPConfiguration.get("login");
-        String password = remoteUserLDAPConfiguration.get("password");
+        return getLDAPBindPasswordTemplate(remoteUserLDAPConfiguration, context).render(remoteUserLDAPConfiguration);
+    }
 
-        String remoteUser_bind_pass = remoteUserLDAPConfiguration.get("ldap_bind_pass");
+    /**
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return the compiled bind password format
+     * @since 1.4
+     */
+    public ConfigTemplate getLDAPBindPasswordTemplate(Map<String, String> remoteUserLDAPConfiguration,
+        XWikiContext context)
+    {
+        String format = getLDAPBindPasswordFormat(remoteUserLDAPConfiguration, context);
+
+        String key = "bindPasswordTemplate:" + format;
+
+        Snapshot snapshot = getSnapshot(context);
 
-        return MessageFormat.format(remoteUser_bind_pass != null ? remoteUser_bind_pass : XWikiLDAPConfig.getInstance()
-            .getLDAPBindPassword(context), login, password);
+        ConfigTemplate template = (ConfigTemplate) snapshot.get(key);
+        if (template == null) {
+            template = ConfigTemplate.compileMessageFormat(format, BIND_ARGUMENTS, false);
+
+            snapshot.put(key, template);
+        }
+
+        return template;
     }
 
-    public String getUserPageName(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    /**
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return the server, port, bind user and SSL setup to use to connect to the first LDAP server
+     * @since 1.4
+     */
+    public LDAPConnectionKey getLDAPConnectionKey(Map<String, String> remoteUserLDAPConfiguration,
+        XWikiContext context)
+    {
+        return getLDAPServers(remoteUserLDAPConfiguration, context).get(0).getConnectionKey();
+    }
+
+    /**
+     * The LDAP server can be a comma separated list of servers (replicas of the same directory) with the syntax
+     * <code>host[:port][*weight]</code>. The port defaults to the configured LDAP port and the weight to 1.
+     *
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return the LDAP servers of the domain in the configured order
+     * @since 1.4
+     */
+    public List<LDAPServer> getLDAPServers(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    {
+        XWikiLDAPConfig ldapConfig = XWikiLDAPConfig.getInstance();
+
+        boolean ssl = "1".equals(ldapConfig.getLDAPParam("ldap_ssl", "0", context));
+        String keyStore = ssl ? ldapConfig.getLDAPParam("ldap_ssl.keystore", "", context) : null;
+        String bindDN = getLDAPBindDN(remoteUserLDAPConfiguration, context);
+        String bindPassword = getLDAPBindPassword(remoteUserLDAPConfiguration, context);
+        int defaultPort = getLDAPPort(remoteUserLDAPConfiguration, context);
+
+        List<LDAPServer> servers = new ArrayList<LDAPServer>();
+        for (String server : StringUtils.split(getLDAPServer(remoteUserLDAPConfiguration, context), ',')) {
+            String host = server.trim();
+            int port = defaultPort;
+            int weight = 1;
+
+            int index = host.lastIndexOf('*');
+            if (index != -1) {
+                weight = NumberUtils.toInt(host.substring(index + 1).trim(), 1);
+                host = host.substring(0, index).trim();
+            }
+
+            index = host.lastIndexOf(':');
+            if (index != -1 && NumberUtils.isDigits(host.substring(index + 1))) {
+                port = Integer.parseInt(host.substring(index + 1));
+                host = host.substring(0, index);
+            }
+
+            if (host.length() > 0) {
+                servers.add(new LDAPServer(new LDAPConnectionKey(host, port, bindDN, bindPassword, ssl, keyStore),
+                    weight));
+            }
+        }
+
+        if (servers.isEmpty()) {
+            servers.add(new LDAPServer(new LDAPConnectionKey("localhost", defaultPort, bindDN, bindPassword, ssl,
+                keyStore), 1));
+        }
+
+        return servers;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the order in which the LDAP servers of a domain are tried, see {@link LDAPServerSelector}
+     * @since 1.4
+     */
+    public String getServerSelection(XWikiContext context)
+    {
+        return getParam("serverSelection", LDAPServerSelector.FAILOVER, context);
+    }
+
+    /**
+     * @param remoteUserLDAPConfiguration the LDAP configuration extracted from the remote user
+     * @param context the XWiki context
+     * @return true if the bind user does not depend on the user being authenticated so that the connection can be
+     *         shared with other authentications
+     * @since 1.4
+     */
+    public boolean isLDAPBindShared(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    {
+        return getLDAPBindDNTemplate(remoteUserLDAPConfiguration, context).isConstant()
+            && getLDAPBindPasswordTemplate(remoteUserLDAPConfiguration, context).isConstant();
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of pooled LDAP connections per server and bind user, 0 to disable pooling
+     * @since 1.4
+     */
+    public int getPoolMaxSize(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("pool.maxSize", "10", context), 10);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of connections per target used to validate users passwords, 0 to open a new
+     *         connection for each validation
+     * @since 1.4
+     */
+    public int getCredentialPoolMaxSize(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("credentialPool.maxSize", "10", context), 10);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the number of idle LDAP connections to keep open per server and bind user even when they expired
+     * @since 1.4
+     */
+    public int getPoolMinIdle(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("pool.minIdle", "0", context), 0);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds after which an idle pooled LDAP connection is closed
+     * @since 1.4
+     */
+    public long getPoolMaxIdleTime(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("pool.maxIdleTime", "300000", context), 300000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds after which an idle pooled LDAP connection is checked with a request to the
+     *         server before being reused, 0 to always check it
+     * @since 1.4
+     */
+    public long getPoolValidationInterval(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("pool.validationInterval", "30000", context), 30000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum time in milliseconds to wait for a pooled LDAP connection when they are all in use
+     * @since 1.4
+     */
+    public long getPoolBorrowTimeout(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("pool.borrowTimeout", "5000", context), 5000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of SSO authentications results to keep in memory, 0 to disable the cache
+     * @since 1.4
+     */
+    public int getPrincipalCacheMaxSize(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("principalCache.maxSize", "1000", context), 1000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds during which a SSO authentication result is reused, 0 to disable the cache
+     * @since 1.4
+     */
+    public long getPrincipalCacheTimeToLive(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("principalCache.timeToLive", "300000", context), 300000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of expanded LDAP groups to keep in memory, 0 to disable the cache
+     * @since 1.4
+     */
+    public int getGroupCacheMaxSize(XWikiContext context)
     {
-        String userPageName = getParam("userPageName", "${login}", context);
+        return NumberUtils.toInt(getParam("groupCache.maxSize", "500", context), 500);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds during which an expanded LDAP group is reused, 0 to disable the cache
+     * @since 1.4
+     */
+    public long getGroupCacheTimeToLive(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("groupCache.timeToLive", "300000", context), 300000);
+    }
 
-        String pageName = StrSubstitutor.replace(userPageName, remoteUserLDAPConfiguration);
+    /**
+     * @param context the XWiki context
+     * @return the number of consecutive failures after which an LDAP server is not contacted anymore for a while, 0 to
+     *         always contact it
+     * @since 1.4
+     */
+    public int getCircuitBreakerFailureThreshold(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("circuitBreaker.failureThreshold", "5", context), 5);
+    }
 
-        // Protected from characters not well supported in user page name depending on the version of XWiki
-        pageName = StringUtils.remove(pageName, '.');
-        pageName = StringUtils.remove(pageName, ' ');
-        pageName = StringUtils.remove(pageName, '/');
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds during which a failing LDAP server is not contacted before trying it again
+     * @since 1.4
+     */
+    public long getCircuitBreakerOpenTime(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("circuitBreaker.openTime", "30000", context), 30000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds during which a remote user which could not be found in LDAP is rejected without
+     *         searching it again, 0 to disable the cache
+     * @since 1.4
+     */
+    public long getNegativeCacheTimeToLive(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("negativeCache.timeToLive", "30000", context), 30000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds after which the SSO cookie token expires and the user is synchronized again, 0
+     *         to use the historical cookie without expiration
+     * @since 1.4
+     */
+    public long getSSOTokenTimeToLive(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("ssoToken.timeToLive", "0", context), 0);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the time in milliseconds after the start of the authenticator during which cookies without token are
+     *         still accepted once tokens are enabled, 0 to reject them right away
+     * @since 1.4
+     */
+    public long getSSOLegacyCookieWindow(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("ssoToken.legacyCookieWindow", "0", context), 0);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return true if user profiles are only updated when their LDAP attributes changed since the last synchronization
+     * @since 1.4
+     */
+    public boolean isProfileFingerprintEnabled(XWikiContext context)
+    {
+        return "1".equals(getParam("sync.fingerprint", "1", context));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return true if LDAP profiles should be found using an in memory index instead of database queries
+     * @since 1.4
+     */
+    public boolean isProfileIndexEnabled(XWikiContext context)
+    {
+        return "1".equals(getParam("profileIndex", "1", context));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return true if existing users should be synchronized in the background after the authentication
+     * @since 1.4
+     */
+    public boolean isAsynchronousSynchronization(XWikiContext context)
+    {
+        return "1".equals(getParam("sync.async", "0", context));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the number of threads synchronizing users in the background
+     * @since 1.4
+     */
+    public int getAsynchronousSynchronizationThreads(XWikiContext context)
+    {
+        return Math.max(1, NumberUtils.toInt(getParam("sync.async.threads", "1", context), 1));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of users waiting to be synchronized in the background
+     * @since 1.4
+     */
+    public int getAsynchronousSynchronizationQueueSize(XWikiContext context)
+    {
+        return Math.max(1, NumberUtils.toInt(getParam("sync.async.queueSize", "1000", context), 1000));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the number of users to get from LDAP at once when provisioning a domain
+     * @since 1.4
+     */
+    public int getProvisioningPageSize(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("provisioning.pageSize", "500", context), 500);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the number of users to synchronize between two saves of the provisioning progress
+     * @since 1.4
+     */
+    public int getProvisioningChunkSize(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("provisioning.chunkSize", "100", context), 100);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the LDAP filter restricting the provisioned entries to users, empty to provision all the entries having
+     *         the uid attribute
+     * @since 1.4
+     */
+    public String getProvisioningUserFilter(XWikiContext context)
+    {
+        return getParam("provisioning.userFilter", "(objectClass=person)", context);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the number of groups to get from LDAP at once when searching the groups of a user
+     * @since 1.4
+     */
+    public int getGroupSearchPageSize(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("groupSearch.pageSize", "500", context), 500);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of groups returned when searching the groups of a user, 0 for no limit
+     * @since 1.4
+     */
+    public int getGroupSearchSizeLimit(XWikiContext context)
+    {
+        return NumberUtils.toInt(getParam("groupSearch.sizeLimit", "1000", context), 1000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum time in milliseconds a request waits for its LDAP authentication, 0 to authenticate in the
+     *         request thread without timeout
+     * @since 1.4
+     */
+    public long getAuthenticationTimeout(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("pipeline.timeout", "0", context), 0);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum time in milliseconds of each LDAP stage (search, password check, synchronization) of an
+     *         authentication with a timeout
+     * @since 1.4
+     */
+    public long getStageTimeout(XWikiContext context)
+    {
+        return NumberUtils.toLong(getParam("pipeline.stageTimeout", "5000", context), 5000);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of LDAP authentications running at the same time when they have a timeout
+     * @since 1.4
+     */
+    public int getAuthenticationThreads(XWikiContext context)
+    {
+        return Math.max(1, NumberUtils.toInt(getParam("pipeline.threads", "20", context), 20));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the maximum number of LDAP authentications waiting for a thread when they have a timeout
+     * @since 1.4
+     */
+    public int getAuthenticationQueueSize(XWikiContext context)
+    {
+        return Math.max(1, NumberUtils.toInt(getParam("pipeline.queueSize", "100", context), 100));
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return how incremental synchronizations find the changed LDAP entries: modifyTimestamp or uSNChanged
+     * @since 1.4
+     */
+    public String getChangeTracking(XWikiContext context)
+    {
+        return getParam("sync.changeTracking", UserProvisioningJob.MODIFY_TIMESTAMP, context);
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return false if existing users are only synchronized by the scheduled synchronizations, not at login
+     * @since 1.4
+     */
+    public boolean isLoginSynchronization(XWikiContext context)
+    {
+        return "1".equals(getParam("sync.login", "1", context));
+    }
+
+    /**
+     * The metrics implementation is shared by all wikis so it's only configured in xwiki.cfg.
+     *
+     * @param context the XWiki context
+     * @return the class name of the {@link TrustedLDAPMetrics} implementation, empty to disable metrics
+     * @since 1.4
+     */
+    public String getMetricsClass(XWikiContext context)
+    {
+        return context.getWiki().Param(CONF_KEY + ".metrics.class", DefaultTrustedLDAPMetrics.class.getName());
+    }
+
+    /**
+     * The principal cache is shared by all wikis so it's only configured in xwiki.cfg.
+     *
+     * @param context the XWiki context
+     * @return the class name of the {@link PrincipalCache} implementation
+     * @since 1.4
+     */
+    public String getPrincipalCacheClass(XWikiContext context)
+    {
+        return context.getWiki().Param(CONF_KEY + ".principalCache.class", LocalPrincipalCache.class.getName());
+    }
+
+    public String getUserPageName(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    {
+        Snapshot snapshot = getSnapshot(context);
+        ConfigTemplate template = (ConfigTemplate) snapshot.get("userPageNameTemplate");
+        if (template == null) {
+            // Protected from characters not well supported in user page name depending on the version of XWiki
+            template =
+                ConfigTemplate.compileVariables(getParam("userPageName", "${login}", context),
+                    PAGE_NAME_REMOVED_CHARACTERS);
+
+            snapshot.put("userPageNameTemplate", template);
+        }
+
+        String pageName = template.render(remoteUserLDAPConfiguration);
 
         LOGGER.debug("UserPageName: {}", pageName);
 
         return pageName;
     }
 
+    @SuppressWarnings("unchecked")
     public Set<String> getTestLoginFor(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
     {
-        List<String> list = getListParam("testLoginFor", ',', Collections.<String> emptyList(), context);
+        Snapshot snapshot = getSnapshot(context);
+        List<ConfigTemplate> templates = (List<ConfigTemplate>) snapshot.get("testLoginForTemplates");
+        if (templates == null) {
+            List<String> list = getListParam("testLoginFor", ',', Collections.<String> emptyList(), context);
+
+            templates = new ArrayList<ConfigTemplate>(list.size());
+            for (String uid : list) {
+                templates.add(ConfigTemplate.compileVariables(uid, null));
+            }
+            templates = Collections.unmodifiableList(templates);
 
-        Set<String> set = new HashSet<String>(list.size());
-        for (String uid : list) {
-            set.add(StrSubstitutor.replace(uid, remoteUserLDAPConfiguration));
+            snapshot.put("testLoginForTemplates", templates);
+        }
+
+        Set<String> set = new HashSet<String>(templates.size());
+        for (ConfigTemplate template : templates) {
+            set.add(template.render(remoteUserLDAPConfiguration));
         }
 
         LOGGER.debug("TestLoginFor: {}", set);
@@ -179,7 +778,9 @@ public Set<String> getTestLoginFor(Map<String, String> remoteUserLDAPConfigurati
      *         mapped LDAP groups.
      * @since 1.1
      */
-    public Map<String, Set<String>> getGroupMappings(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+    @SuppressWarnings("unchecked")
+    public Map<String, Set<String>> getGroupMappings(Map<String, String> remoteUserLDAPConfiguration,
+        XWikiContext context)
     {
         String param = remoteUserLDAPConfiguration.get("ldap_group_mapping");
 
@@ -187,7 +788,16 @@ public Map<String, Set<String>> getGroupMappings(Map<String, String> remoteUserL
             return XWikiLDAPConfig.getInstance().getGroupMappings(context);
         }
 
-        Map<String, Set<String>> groupMappings = new HashMap<String, Set<String>>();
+        String key = "groupMappings:" + param;
+
+        Snapshot snapshot = getSnapshot(context);
+
+        Map<String, Set<String>> groupMappings = (Map<String, Set<String>>) snapshot.get(key);
+        if (groupMappings != null) {
+            return groupMappings;
+        }
+
+        groupMappings = new HashMap<String, Set<String>>();
 
         if (param.trim().length() > 0) {
             char[] buffer = param.trim().toCharArray();
@@ -216,6 +826,13 @@ public Map<String, Set<String>> getGroupMappings(Map<String, String> remoteUserL
             }
         }
 
+        for (Map.Entry<String, Set<String>> entry : groupMappings.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        groupMappings = Collections.unmodifiableMap(groupMappings);
+
+        snapshot.put(key, groupMappings);
+
         return groupMappings;
     }
 
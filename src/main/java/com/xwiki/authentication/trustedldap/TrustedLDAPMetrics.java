@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+/**
+ * Receive the measures of each stage of the authentication.
+ * <p>
+ * The implementation is selected with xwiki.authentication.trustedldap.metrics.class in xwiki.cfg and must have a
+ * public constructor taking the name of the web application (like "/xwiki") or without parameters. Methods are called
+ * from many threads and must be fast.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public interface TrustedLDAPMetrics
+{
+    /**
+     * A measure read when it's exposed.
+     */
+    interface Gauge
+    {
+        /**
+         * @return the current value of the measure
+         */
+        long getValue();
+    }
+
+    /**
+     * Time spent decrypting and validating the XWIKISSOAUTHINFO cookie.
+     */
+    String COOKIE = "cookie";
+
+    /**
+     * Time spent extracting the LDAP configuration from the remote user.
+     */
+    String PARSE_REMOTE_USER = "parseRemoteUser";
+
+    /**
+     * Time spent getting a bound LDAP connection (from the pool or a new one).
+     */
+    String LDAP_OPEN = "ldap.open";
+
+    /**
+     * Time spent searching the user in LDAP.
+     */
+    String LDAP_SEARCH = "ldap.search";
+
+    /**
+     * Time spent validating the user password in LDAP.
+     */
+    String LDAP_CHECK_PASSWORD = "ldap.checkPassword";
+
+    /**
+     * Time spent finding the user profile.
+     */
+    String PROFILE_LOOKUP = "profile.lookup";
+
+    /**
+     * Time spent synchronizing the user profile.
+     */
+    String SYNC_USER = "sync.user";
+
+    /**
+     * Time spent synchronizing the user groups membership.
+     */
+    String SYNC_GROUPS = "sync.groups";
+
+    /**
+     * Time spent in a complete SSO authentication.
+     */
+    String AUTHENTICATE = "authenticate";
+
+    /**
+     * Number of failures to get a bound LDAP connection.
+     */
+    String LDAP_BIND_FAILURES = "ldap.bindFailures";
+
+    /**
+     * Number of requests rejected without contacting an LDAP server because it kept failing.
+     */
+    String LDAP_CIRCUIT_OPEN = "ldap.circuitOpen";
+
+    /**
+     * Number of connections attempted to another LDAP server of the domain because the previous one failed.
+     */
+    String LDAP_FAILOVERS = "ldap.failovers";
+
+    /**
+     * Number of times no pooled LDAP connection became available in time.
+     */
+    String LDAP_POOL_TIMEOUTS = "ldap.poolTimeouts";
+
+    /**
+     * Number of authentications rejected because the remote user was recently not found in LDAP.
+     */
+    String NEGATIVE_CACHE_HITS = "negativeCache.hits";
+
+    /**
+     * Number of authentications which missed the negative cache.
+     */
+    String NEGATIVE_CACHE_MISSES = "negativeCache.misses";
+
+    /**
+     * Number of requests authenticated with the XWIKISSOAUTHINFO cookie.
+     */
+    String COOKIE_HITS = "cookie.hits";
+
+    /**
+     * Number of requests which had to be authenticated again.
+     */
+    String COOKIE_MISSES = "cookie.misses";
+
+    /**
+     * Number of authentications served by the principal cache.
+     */
+    String PRINCIPAL_CACHE_HITS = "principalCache.hits";
+
+    /**
+     * Number of authentications which missed the principal cache.
+     */
+    String PRINCIPAL_CACHE_MISSES = "principalCache.misses";
+
+    /**
+     * Number of authentications which waited for and shared the result of a concurrent authentication of the same
+     * remote user.
+     */
+    String COALESCED = "coalesced";
+
+    /**
+     * Number of synchronizations queued in the background.
+     */
+    String SYNC_QUEUED = "sync.queued";
+
+    /**
+     * Number of synchronizations skipped because nothing changed.
+     */
+    String SYNC_SKIPPED = "sync.skipped";
+
+    /**
+     * Number of synchronizations waiting in the background queue.
+     */
+    String SYNC_QUEUE_SIZE = "sync.queueSize";
+
+    /**
+     * Number of remote users rejected before any I/O, followed by the reason (like remoteUser.rejected.noMatch, see
+     * {@link RemoteUserValidator}).
+     */
+    String REMOTE_USER_REJECTED = "remoteUser.rejected";
+
+    /**
+     * Number of authentications which did not finish before the configured timeout.
+     */
+    String TIMEOUTS = "timeouts";
+
+    /**
+     * Number of authentications rejected because too many were already running or waiting.
+     */
+    String REJECTED = "rejected";
+
+    /**
+     * Number of failed SSO authentications falling back on the standard LDAP authenticator.
+     */
+    String FALLBACKS = "fallbacks";
+
+    /**
+     * @param name the name of the measured stage
+     * @param domain the LDAP server involved or null if the stage does not depend on it
+     * @param nanos the duration in nanoseconds
+     */
+    void time(String name, String domain, long nanos);
+
+    /**
+     * @param name the name of the counter
+     * @param domain the LDAP server involved or null if the counter does not depend on it
+     */
+    void increment(String name, String domain);
+
+    /**
+     * @param name the name of the gauge
+     * @param gauge the measure, replacing any gauge previously registered under the same name
+     */
+    void gauge(String name, Gauge gauge);
+
+    /**
+     * Release resources (like JMX registration) when the authenticator is disposed.
+     */
+    void dispose();
+}
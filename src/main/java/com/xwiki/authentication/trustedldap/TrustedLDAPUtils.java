@@ -0,0 +1,442 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPDN;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPReferralException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPSearchAttribute;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPUtils;
+import com.xwiki.authentication.TimedLRUCache;
+
+/**
+ * LDAP tools sharing the expanded members of LDAP groups between authentications of the same domain.
+ * <p>
+ * The cache is indexed by domain (the LDAP server) and group DN so that groups with the same DN on different servers
+ * don't collide.
+ * <p>
+ * Users are searched with a single projected search and the mapped groups of a user are found with paged searches of
+ * the groups the user (and then its groups) is member of, instead of expanding all the members of each mapped group.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class TrustedLDAPUtils extends XWikiLDAPUtils
+{
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrustedLDAPUtils.class);
+
+    private static final String MEMBER_UID = "memberUid";
+
+    /**
+     * The maximum number of members in a single group search filter.
+     */
+    private static final int FILTER_MEMBERS = 50;
+
+    private final TimedLRUCache<String, Map<String, String>> groupCache;
+
+    private final String domain;
+
+    private final XWikiLDAPConnection connector;
+
+    private String userSearchFormat = "({0}={1})";
+
+    private Collection<String> groupClassNames = Collections.emptyList();
+
+    private Collection<String> memberAttributes = Collections.emptyList();
+
+    private int pageSize = 500;
+
+    private int sizeLimit;
+
+    /**
+     * @param connection the LDAP connection
+     * @param groupCache the expanded group members indexed by domain and group DN
+     * @param domain the identifier of the LDAP server
+     */
+    public TrustedLDAPUtils(XWikiLDAPConnection connection, TimedLRUCache<String, Map<String, String>> groupCache,
+        String domain)
+    {
+        super(connection);
+
+        this.groupCache = groupCache;
+        this.domain = domain;
+        this.connector = connection;
+    }
+
+    @Override
+    public void setUserSearchFormatString(String fmt)
+    {
+        super.setUserSearchFormatString(fmt);
+
+        this.userSearchFormat = fmt;
+    }
+
+    /**
+     * Configure the search of the groups a user is member of.
+     *
+     * @param groupClasses the object classes of the groups
+     * @param memberFields the attributes of the groups containing the DN of their members
+     * @param groupPageSize the number of groups to get from LDAP at once
+     * @param groupSizeLimit the maximum number of groups of a user, 0 for no limit
+     */
+    public void setGroupSearch(Collection<String> groupClasses, Collection<String> memberFields, int groupPageSize,
+        int groupSizeLimit)
+    {
+        this.groupClassNames = groupClasses;
+        this.memberAttributes = memberFields;
+        this.pageSize = Math.max(1, groupPageSize);
+        this.sizeLimit = Math.max(0, groupSizeLimit);
+    }
+
+    /**
+     * @return the object classes of the groups
+     */
+    public Collection<String> getGroupClasses()
+    {
+        return this.groupClassNames;
+    }
+
+    /**
+     * Search the first user matching the uid, only asking for the given attributes.
+     *
+     * @param uid the uid of the user
+     * @param attributes the attributes to return, null for all
+     * @return the LDAP entry of the user, null if none could be found
+     * @throws LDAPException when failing to search
+     */
+    public LDAPEntry searchUserEntryByUid(String uid, String[] attributes) throws LDAPException
+    {
+        String filter = getUserFilter(uid);
+
+        LDAPConnection connection = this.connector.getConnection();
+
+        // Only the first matching user is used
+        LDAPSearchConstraints constraints = connection.getSearchConstraints();
+        constraints.setMaxResults(1);
+
+        LDAPSearchResults results =
+            connection.search(getBaseDN(), LDAPConnection.SCOPE_SUB, filter, attributes, false, constraints);
+
+        try {
+            while (results.hasMore()) {
+                try {
+                    return results.next();
+                } catch (LDAPReferralException e) {
+                    LOGGER.debug("Ignoring referral [{}]", e.getMessage());
+                }
+            }
+        } finally {
+            connection.abandon(results);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param uid the uid of the user
+     * @return the filter matching the user, with the uid escaped so that it can only match the uid attribute
+     */
+    String getUserFilter(String uid)
+    {
+        return MessageFormat.format(this.userSearchFormat, getUidAttributeName(), escapeFilterValue(uid));
+    }
+
+    /**
+     * @param entry the LDAP entry
+     * @return the DN and the attributes of the entry
+     */
+    public static List<XWikiLDAPSearchAttribute> getSearchAttributes(LDAPEntry entry)
+    {
+        List<XWikiLDAPSearchAttribute> searchAttributes =
+            new ArrayList<XWikiLDAPSearchAttribute>(entry.getAttributeSet().size() + 1);
+
+        searchAttributes.add(new XWikiLDAPSearchAttribute("dn", entry.getDN()));
+
+        for (Object object : entry.getAttributeSet()) {
+            LDAPAttribute attribute = (LDAPAttribute) object;
+
+            Enumeration< ? > values = attribute.getStringValues();
+            while (values.hasMoreElements()) {
+                searchAttributes.add(new XWikiLDAPSearchAttribute(attribute.getName(), (String) values
+                    .nextElement()));
+            }
+        }
+
+        return searchAttributes;
+    }
+
+    @Override
+    public Map<String, String> getGroupMembers(String groupDN, XWikiContext context)
+    {
+        String key = this.domain + '\n' + groupDN;
+
+        Map<String, String> members = this.groupCache.get(key);
+
+        if (members == null) {
+            members = super.getGroupMembers(groupDN, context);
+
+            if (members != null) {
+                members = Collections.unmodifiableMap(members);
+                this.groupCache.put(key, members);
+            }
+        } else {
+            LOGGER.debug("Found cached members for group [{}] in domain [{}]", groupDN, this.domain);
+        }
+
+        return members;
+    }
+
+    /**
+     * @param userDN the DN of the user
+     * @param groupMappings the mapping between XWiki groups and LDAP groups
+     * @param context the XWiki context
+     * @return the XWiki groups the user should be member of according to LDAP
+     */
+    public Set<String> getMappedGroups(String userDN, Map<String, Set<String>> groupMappings, XWikiContext context)
+    {
+        if (isGroupSearchSupported(groupMappings)) {
+            try {
+                return getMappedGroups(getUserGroups(userDN), groupMappings);
+            } catch (LDAPException e) {
+                LOGGER.warn("Failed to search the groups of [{}], expanding the mapped groups instead: {}", userDN,
+                    e.getMessage());
+            }
+        }
+
+        Set<String> groups = new TreeSet<String>();
+
+        for (Map.Entry<String, Set<String>> entry : groupMappings.entrySet()) {
+            for (String groupDN : entry.getValue()) {
+                Map<String, String> members = getGroupMembers(groupDN, context);
+
+                if (members != null && (members.containsKey(userDN) || members.containsKey(userDN.toLowerCase()))) {
+                    groups.add(entry.getKey());
+
+                    break;
+                }
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * @param userGroups the normalized DNs of the groups of the user (see {@link #normalizeDN(String)})
+     * @param groupMappings the mapping between XWiki groups and LDAP groups
+     * @return the XWiki groups mapped to one of the user groups
+     */
+    static Set<String> getMappedGroups(Set<String> userGroups, Map<String, Set<String>> groupMappings)
+    {
+        Set<String> groups = new TreeSet<String>();
+
+        for (Map.Entry<String, Set<String>> entry : groupMappings.entrySet()) {
+            for (String groupDN : entry.getValue()) {
+                if (userGroups.contains(normalizeDN(groupDN))) {
+                    groups.add(entry.getKey());
+
+                    break;
+                }
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * The groups of a user can only be searched when members are identified by DN and the mapped groups are in the
+     * searched tree.
+     */
+    private boolean isGroupSearchSupported(Map<String, Set<String>> groupMappings)
+    {
+        if (this.groupClassNames.isEmpty() || this.memberAttributes.isEmpty() || getBaseDN() == null) {
+            return false;
+        }
+
+        for (String memberAttribute : this.memberAttributes) {
+            if (MEMBER_UID.equalsIgnoreCase(memberAttribute)) {
+                return false;
+            }
+        }
+
+        String baseDN = normalizeDN(getBaseDN());
+        for (Set<String> groupDNs : groupMappings.values()) {
+            for (String groupDN : groupDNs) {
+                if (!isInTree(normalizeDN(groupDN), baseDN)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param dn a DN
+     * @return the DN without insignificant spaces and in lower case, so that the same DN written differently in the
+     *         configuration and by the LDAP server gives the same string
+     */
+    static String normalizeDN(String dn)
+    {
+        try {
+            return LDAPDN.normalize(dn).toLowerCase();
+        } catch (IllegalArgumentException e) {
+            // Not a valid DN, use it as is
+            return dn.toLowerCase();
+        }
+    }
+
+    /**
+     * @param normalizedDN a normalized DN
+     * @param normalizedBaseDN the normalized DN of the root of the tree
+     * @return true if the DN is the root of the tree or is located under it
+     */
+    static boolean isInTree(String normalizedDN, String normalizedBaseDN)
+    {
+        return normalizedBaseDN.length() == 0 || normalizedDN.equals(normalizedBaseDN)
+            || normalizedDN.endsWith(',' + normalizedBaseDN);
+    }
+
+    /**
+     * @return the normalized DNs of the groups the user is member of, directly or through sub groups, at most the size
+     *         limit
+     */
+    private Set<String> getUserGroups(String userDN) throws LDAPException
+    {
+        Set<String> groups = new HashSet<String>();
+
+        boolean truncated = false;
+        List<String> members = Collections.singletonList(userDN);
+        while (!members.isEmpty() && !truncated) {
+            List<String> parents = new ArrayList<String>();
+
+            for (int i = 0; i < members.size() && !truncated; i += FILTER_MEMBERS) {
+                LDAPPagedSearch search =
+                    new LDAPPagedSearch(this.connector.getConnection(), getBaseDN(), getMembershipFilter(members
+                        .subList(i, Math.min(members.size(), i + FILTER_MEMBERS))),
+                        new String[] {LDAPConnection.NO_ATTRS}, this.pageSize);
+                // The limit is shared by all the searches of the user groups
+                if (this.sizeLimit > 0) {
+                    search.setSizeLimit(this.sizeLimit - groups.size());
+                }
+
+                while (search.hasNext()) {
+                    for (LDAPEntry entry : search.next()) {
+                        // Ignore cycles
+                        if (groups.add(normalizeDN(entry.getDN()))) {
+                            parents.add(entry.getDN());
+                        }
+                    }
+                }
+
+                truncated = search.isSizeLimitReached() || (this.sizeLimit > 0 && groups.size() >= this.sizeLimit);
+            }
+
+            members = parents;
+        }
+
+        if (truncated) {
+            LOGGER.warn("Stopped searching the groups of [{}] in domain [{}] after the limit of [{}] groups",
+                new Object[] {userDN, this.domain, this.sizeLimit});
+        }
+
+        LOGGER.debug("Found [{}] groups for [{}] in domain [{}]", new Object[] {groups.size(), userDN, this.domain});
+
+        return groups;
+    }
+
+    private String getMembershipFilter(List<String> memberDNs)
+    {
+        StringBuilder filter = new StringBuilder("(&(|");
+
+        for (String groupClass : this.groupClassNames) {
+            filter.append("(objectClass=").append(escapeFilterValue(groupClass)).append(')');
+        }
+
+        filter.append(")(|");
+
+        for (String memberDN : memberDNs) {
+            String value = escapeFilterValue(memberDN);
+
+            for (String memberAttribute : this.memberAttributes) {
+                filter.append('(').append(memberAttribute).append('=').append(value).append(')');
+            }
+        }
+
+        return filter.append("))").toString();
+    }
+
+    /**
+     * Escape a filter assertion value as described in RFC 4515.
+     */
+    static String escapeFilterValue(String value)
+    {
+        StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    escaped.append("\\5c");
+                    break;
+                case '*':
+                    escaped.append("\\2a");
+                    break;
+                case '(':
+                    escaped.append("\\28");
+                    break;
+                case ')':
+                    escaped.append("\\29");
+                    break;
+                case '\0':
+                    escaped.append("\\00");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+}
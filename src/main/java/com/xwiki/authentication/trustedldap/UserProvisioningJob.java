@@ -0,0 +1,825 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchResults;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConfig;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
+
+/**
+ * Create or update the profile and groups membership of all the LDAP users of a trusted domain ahead of their first
+ * login.
+ * <p>
+ * The domain is identified by the format of its remote users (like <code>{0}@MYDOMAIN</code>, {0} being replaced by
+ * the LDAP uid) from which the LDAP servers, base DN and bind user are resolved like during an authentication. Users
+ * (the entries matching the provisioning user filter) are read with paged searches sorted by uid and synchronized by
+ * chunks. The progress (the last uid processed) is saved after each chunk in the {@value #CHECKPOINT_DOCUMENT} document
+ * of the main wiki so that an interrupted job restarts after it. The progress does not go past a user which failed to
+ * be synchronized, so that an interrupted job retries it. Interrupted jobs can't be resumed when the server does not
+ * sort the users, they start again from the beginning.
+ * <p>
+ * Each run also remembers a change mark (a modifyTimestamp or an Active Directory uSNChanged) taken before reading
+ * the users. An incremental run only synchronizes the users modified since the mark of the last finished run and the
+ * members of the groups modified since then. Users removed from a group are only updated at their next login or full
+ * provisioning since a changed group does not tell who left it. An incremental run without a previous mark does a full
+ * provisioning.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class UserProvisioningJob
+{
+    /**
+     * The document where the progress of each domain is saved.
+     */
+    public static final String CHECKPOINT_DOCUMENT = "XWiki.TrustedLDAPProvisioning";
+
+    /**
+     * Track changes with the modifyTimestamp operational attribute.
+     */
+    public static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+    /**
+     * Track changes with the Active Directory uSNChanged attribute.
+     */
+    public static final String USN_CHANGED = "uSNChanged";
+
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserProvisioningJob.class);
+
+    private static final String PROCESSED = ".processed";
+
+    private static final String LAST_UID = ".lastUid";
+
+    private static final String STATE = ".state";
+
+    private static final String CHANGE_MARK = ".changeMark";
+
+    private static final String PENDING_CHANGE_MARK = ".pendingChangeMark";
+
+    private static final String INCREMENTAL = ".incremental";
+
+    /**
+     * The modifications made that long before the start of a run are read again by the next incremental run to cover
+     * clock differences between XWiki and the LDAP server.
+     */
+    private static final long CLOCK_SKEW = 5 * 60 * 1000L;
+
+    private static final String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+
+    private static final String GENERALIZED_TIME = "yyyyMMddHHmmss'Z'";
+
+    /**
+     * Serialize checkpoint updates of the jobs of different domains.
+     */
+    private static final Object CHECKPOINT_LOCK = new Object();
+
+    private final TrustedLDAPAuthServiceImpl authService;
+
+    private final String remoteUserFormat;
+
+    private final int pageSize;
+
+    private final int chunkSize;
+
+    private final String changeTracking;
+
+    private final boolean incremental;
+
+    /**
+     * The change mark to remember when the run finishes.
+     */
+    private String pendingChangeMark;
+
+    /**
+     * The uid of the last user processed by a full run, null when the run can't be resumed.
+     */
+    private String lastUid;
+
+    /**
+     * True once the checkpoint of the domain has been read, the progress is not saved before that.
+     */
+    private boolean started;
+
+    private final Status status = new Status();
+
+    private volatile boolean cancelled;
+
+    /**
+     * The state of the job.
+     */
+    public enum State
+    {
+        /**
+         * The job is running.
+         */
+        RUNNING,
+
+        /**
+         * All the users have been processed.
+         */
+        DONE,
+
+        /**
+         * The job has been cancelled, the next run resumes it.
+         */
+        CANCELLED,
+
+        /**
+         * The job stopped because of an error, the next run resumes it.
+         */
+        FAILED
+    }
+
+    /**
+     * The progress of the job.
+     */
+    public static class Status
+    {
+        private volatile State state = State.RUNNING;
+
+        private volatile long processed;
+
+        private volatile long resumedFrom;
+
+        private volatile long created;
+
+        private volatile long updated;
+
+        private volatile long failed;
+
+        private volatile Date startDate = new Date();
+
+        private volatile Date endDate;
+
+        private volatile String error;
+
+        private volatile boolean incremental;
+
+        /**
+         * @return the state of the job
+         */
+        public State getState()
+        {
+            return this.state;
+        }
+
+        /**
+         * @return the number of LDAP users processed so far, including the ones processed by the run being resumed
+         */
+        public long getProcessed()
+        {
+            return this.processed;
+        }
+
+        /**
+         * @return the number of LDAP users processed by the previous runs
+         */
+        public long getResumedFrom()
+        {
+            return this.resumedFrom;
+        }
+
+        /**
+         * @return the number of profiles created
+         */
+        public long getCreated()
+        {
+            return this.created;
+        }
+
+        /**
+         * @return the number of existing profiles synchronized
+         */
+        public long getUpdated()
+        {
+            return this.updated;
+        }
+
+        /**
+         * @return the number of users which could not be synchronized
+         */
+        public long getFailed()
+        {
+            return this.failed;
+        }
+
+        /**
+         * @return when the job started
+         */
+        public Date getStartDate()
+        {
+            return this.startDate;
+        }
+
+        /**
+         * @return when the job stopped or null if it's still running
+         */
+        public Date getEndDate()
+        {
+            return this.endDate;
+        }
+
+        /**
+         * @return the error which stopped the job
+         */
+        public String getError()
+        {
+            return this.error;
+        }
+
+        /**
+         * @return true if only the users changed since the last run are synchronized
+         */
+        public boolean isIncremental()
+        {
+            return this.incremental;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.state + ": " + this.processed + " processed (" + this.created + " created, " + this.updated
+                + " updated, " + this.failed + " failed)";
+        }
+    }
+
+    /**
+     * @param authService the authenticator providing the LDAP configuration and the synchronization
+     * @param remoteUserFormat the format of the remote users of the domain, {0} being the LDAP uid
+     * @param pageSize the number of users to get from LDAP at once
+     * @param chunkSize the number of users to synchronize between two checkpoints
+     */
+    public UserProvisioningJob(TrustedLDAPAuthServiceImpl authService, String remoteUserFormat, int pageSize,
+        int chunkSize)
+    {
+        this(authService, remoteUserFormat, pageSize, chunkSize, MODIFY_TIMESTAMP, false);
+    }
+
+    /**
+     * @param authService the authenticator providing the LDAP configuration and the synchronization
+     * @param remoteUserFormat the format of the remote users of the domain, {0} being the LDAP uid
+     * @param pageSize the number of users to get from LDAP at once
+     * @param chunkSize the number of users to synchronize between two checkpoints
+     * @param changeTracking how changes are tracked: {@link #MODIFY_TIMESTAMP} or {@link #USN_CHANGED}
+     * @param incremental true to only synchronize the users changed since the last finished run
+     */
+    public UserProvisioningJob(TrustedLDAPAuthServiceImpl authService, String remoteUserFormat, int pageSize,
+        int chunkSize, String changeTracking, boolean incremental)
+    {
+        this.authService = authService;
+        this.remoteUserFormat = remoteUserFormat;
+        this.pageSize = Math.max(1, pageSize);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.changeTracking = USN_CHANGED.equalsIgnoreCase(changeTracking) ? USN_CHANGED : MODIFY_TIMESTAMP;
+        this.incremental = incremental;
+    }
+
+    /**
+     * @return the progress of the job
+     */
+    public Status getStatus()
+    {
+        return this.status;
+    }
+
+    /**
+     * Stop the job after the user being synchronized.
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @throws XWikiException when failing to connect to or search LDAP
+     */
+    public void run(XWikiContext context) throws XWikiException
+    {
+        String database = context.getDatabase();
+        context.setDatabase(context.getMainXWiki());
+
+        try {
+            runInContext(context);
+
+            this.status.state = this.cancelled ? State.CANCELLED : State.DONE;
+        } catch (XWikiException e) {
+            fail(e);
+
+            throw e;
+        } catch (LDAPException e) {
+            fail(e);
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Failed to search LDAP users of [" + this.remoteUserFormat + "]", e);
+        } catch (RuntimeException e) {
+            fail(e);
+
+            throw e;
+        } finally {
+            this.status.endDate = new Date();
+
+            if (this.started) {
+                try {
+                    saveCheckpoint(context);
+                } catch (XWikiException e) {
+                    LOGGER.error("Failed to save the provisioning progress of [{}]", this.remoteUserFormat, e);
+                }
+            }
+
+            context.setDatabase(database);
+
+            LOGGER.info("Provisioning of [{}] finished: {}", this.remoteUserFormat, this.status);
+        }
+    }
+
+    private void fail(Exception e)
+    {
+        this.status.state = State.FAILED;
+        this.status.error = e.getMessage();
+    }
+
+    private void runInContext(XWikiContext context) throws XWikiException, LDAPException
+    {
+        TrustedLDAPConfig config = this.authService.getConfig();
+
+        // The LDAP configuration of the domain, as for a login of the domain
+        Map<String, String> domainConfiguration =
+            this.authService.parseRemoteUser(MessageFormat.format(this.remoteUserFormat, "*"), context);
+        domainConfiguration.put("password", "");
+
+        if (!config.isLDAPBindShared(domainConfiguration, context)) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Can't provision [" + this.remoteUserFormat + "]: the LDAP bind user depends on the user logging in");
+        }
+
+        Properties checkpoints = loadCheckpoints(context);
+
+        String changeMark = this.incremental ? checkpoints.getProperty(getChangeMarkKey()) : null;
+        this.status.incremental = changeMark != null;
+
+        String resumeUid = null;
+        if (this.status.incremental) {
+            LOGGER.info("Synchronizing users of [{}] changed since [{}]", this.remoteUserFormat, changeMark);
+        } else {
+            if (this.incremental) {
+                LOGGER.info("No finished provisioning of [{}] to start from, synchronizing all the users",
+                    this.remoteUserFormat);
+            }
+
+            resumeUid = loadCheckpoint(checkpoints);
+
+            if (resumeUid != null) {
+                this.status.resumedFrom = NumberUtils.toLong(checkpoints.getProperty(getKey(PROCESSED)), 0);
+
+                LOGGER.info("Provisioning users of [{}], resuming after [{}]", this.remoteUserFormat, resumeUid);
+            } else {
+                LOGGER.info("Provisioning users of [{}]", this.remoteUserFormat);
+            }
+        }
+        this.status.processed = this.status.resumedFrom;
+        this.lastUid = resumeUid;
+        this.started = true;
+
+        // Fail over and skip the servers which keep failing like an authentication
+        XWikiLDAPConnection connector = this.authService.openConnection(domainConfiguration, context);
+
+        try {
+            TrustedLDAPUtils ldapUtils = this.authService.createLDAPUtils(connector, domainConfiguration, context);
+
+            String uidAttributeName = ldapUtils.getUidAttributeName();
+
+            Set<String> attributes = new LinkedHashSet<String>();
+            attributes.add(uidAttributeName);
+            String[] attributeNames = ldapUtils.getAttributeNameTable(context);
+            if (attributeNames != null) {
+                attributes.addAll(Arrays.asList(attributeNames));
+            }
+
+            // Taken before reading anything so that the changes made during the run are read again by the next one. A
+            // resumed run keeps the mark of the run it resumes.
+            this.pendingChangeMark = resumeUid != null ? checkpoints.getProperty(getPendingChangeMarkKey()) : null;
+            if (this.pendingChangeMark == null) {
+                this.pendingChangeMark = getCurrentChangeMark(connector);
+            }
+
+            String userFilter = getUserFilter(uidAttributeName, context);
+
+            String filter = userFilter;
+            if (this.status.incremental) {
+                filter = "(&" + filter + getChangeFilter(changeMark) + ')';
+            } else if (resumeUid != null) {
+                // Users are processed in uid order, skip the ones up to the last processed
+                filter =
+                    "(&" + filter + "(!(" + uidAttributeName + "<=" + TrustedLDAPUtils.escapeFilterValue(resumeUid)
+                        + ")))";
+            }
+
+            String[] attributeArray = attributes.toArray(new String[0]);
+
+            LDAPPagedSearch search = createSearch(connector, ldapUtils.getBaseDN(), filter, attributeArray);
+            if (!this.status.incremental) {
+                search.setSortAttribute(uidAttributeName);
+            }
+
+            // The DNs already synchronized by an incremental run, to not synchronize them again as group members
+            Set<String> synchronizedDNs = this.status.incremental ? new HashSet<String>() : null;
+
+            boolean resumable = !this.status.incremental;
+            while (search.hasNext() && !this.cancelled) {
+                List<LDAPEntry> entries = search.next();
+
+                // The position in an unsorted search does not tell which users remain
+                if (resumable && !search.isSorted()) {
+                    LOGGER.warn("The LDAP server of [{}] can't sort the users by [{}], an interrupted provisioning "
+                        + "will start again from the beginning", this.remoteUserFormat, uidAttributeName);
+
+                    resumable = false;
+                    this.lastUid = null;
+                }
+
+                for (LDAPEntry entry : entries) {
+                    if (this.cancelled) {
+                        break;
+                    }
+
+                    String uid = provision(entry, uidAttributeName, ldapUtils, context);
+
+                    if (uid == null) {
+                        // An interrupted run must resume before the first user which failed, to retry it
+                        resumable = false;
+                    } else if (resumable) {
+                        this.lastUid = uid;
+                    }
+
+                    if (synchronizedDNs != null) {
+                        synchronizedDNs.add(entry.getDN().toLowerCase());
+                    }
+
+                    processed(context);
+                }
+            }
+
+            if (this.status.incremental && !this.cancelled) {
+                synchronizeChangedGroups(changeMark, synchronizedDNs, userFilter, attributeArray, uidAttributeName,
+                    connector, ldapUtils, context);
+            }
+        } finally {
+            connector.close();
+        }
+    }
+
+    /**
+     * @param uidAttributeName the name of the LDAP attribute containing the uid
+     * @param context the XWiki context
+     * @return the filter matching all the users of the domain
+     */
+    protected String getUserFilter(String uidAttributeName, XWikiContext context)
+    {
+        String filter =
+            MessageFormat.format(
+                XWikiLDAPConfig.getInstance().getLDAPParam("ldap_user_search_fmt", "({0}={1})", context),
+                uidAttributeName, "*");
+
+        // Entries having a uid are not all users (groups, computers, contacts...)
+        String userFilter = this.authService.getConfig().getProvisioningUserFilter(context);
+
+        return StringUtils.isEmpty(userFilter) ? filter : "(&" + filter + userFilter + ')';
+    }
+
+    private void processed(XWikiContext context) throws XWikiException
+    {
+        ++this.status.processed;
+
+        if (this.status.processed % this.chunkSize == 0) {
+            saveCheckpoint(context);
+
+            LOGGER.info("Provisioning of [{}]: {}", this.remoteUserFormat, this.status);
+        }
+    }
+
+    /**
+     * Synchronize the members of the groups changed since the change mark, a user added to a group is not modified
+     * itself.
+     */
+    private void synchronizeChangedGroups(String changeMark, Set<String> synchronizedDNs, String userFilter,
+        String[] attributes, String uidAttributeName, XWikiLDAPConnection connector, TrustedLDAPUtils ldapUtils,
+        XWikiContext context) throws LDAPException, XWikiException
+    {
+        StringBuilder groupFilter = new StringBuilder("(&(|");
+        for (String groupClass : ldapUtils.getGroupClasses()) {
+            groupFilter.append("(objectClass=").append(groupClass).append(')');
+        }
+        groupFilter.append(')').append(getChangeFilter(changeMark)).append(')');
+
+        List<String> groupDNs = new ArrayList<String>();
+        LDAPPagedSearch search =
+            createSearch(connector, ldapUtils.getBaseDN(), groupFilter.toString(),
+                new String[] {LDAPConnection.NO_ATTRS});
+        while (search.hasNext()) {
+            for (LDAPEntry entry : search.next()) {
+                groupDNs.add(entry.getDN());
+            }
+        }
+
+        if (groupDNs.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info("Synchronizing the members of the [{}] groups of [{}] changed since [{}]", new Object[] {
+            groupDNs.size(), this.remoteUserFormat, changeMark});
+
+        // The cached members of the changed groups are outdated
+        this.authService.getGroupCache(context).clear();
+
+        for (String groupDN : groupDNs) {
+            Map<String, String> members = ldapUtils.getGroupMembers(groupDN, context);
+
+            if (members == null) {
+                continue;
+            }
+
+            for (String memberDN : members.keySet()) {
+                if (this.cancelled) {
+                    return;
+                }
+
+                if (synchronizedDNs.add(memberDN.toLowerCase())) {
+                    LDAPEntry entry;
+                    try {
+                        entry = readUser(connector, memberDN, userFilter, attributes);
+                    } catch (LDAPException e) {
+                        LOGGER.debug("Failed to read member [{}] of group [{}]", new Object[] {memberDN, groupDN, e});
+
+                        continue;
+                    }
+
+                    // Sub groups and other entries not matching the user filter are members too
+                    if (entry != null) {
+                        provision(entry, uidAttributeName, ldapUtils, context);
+
+                        processed(context);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param connector the LDAP connection
+     * @param baseDN the root of the search
+     * @param filter the filter of the search
+     * @param attributes the attributes to read
+     * @return a paged search of the entries matching the filter
+     */
+    protected LDAPPagedSearch createSearch(XWikiLDAPConnection connector, String baseDN, String filter,
+        String[] attributes)
+    {
+        return new LDAPPagedSearch(connector.getConnection(), baseDN, filter, attributes, this.pageSize);
+    }
+
+    /**
+     * @param connector the LDAP connection
+     * @param dn the DN of the entry
+     * @param userFilter the filter matching the users
+     * @param attributes the attributes to read
+     * @return the entry if it's a user, null otherwise
+     * @throws LDAPException when failing to read the entry
+     */
+    protected LDAPEntry readUser(XWikiLDAPConnection connector, String dn, String userFilter, String[] attributes)
+        throws LDAPException
+    {
+        LDAPSearchResults results =
+            connector.getConnection().search(dn, LDAPConnection.SCOPE_BASE, userFilter, attributes, false);
+
+        return results.hasMore() ? results.next() : null;
+    }
+
+    /**
+     * @return the current change mark of the LDAP server, null if it could not be read
+     */
+    private String getCurrentChangeMark(XWikiLDAPConnection connector) throws LDAPException
+    {
+        if (USN_CHANGED.equals(this.changeTracking)) {
+            // Update sequence numbers are specific to each domain controller
+            LDAPEntry rootDSE = connector.getConnection().read("", new String[] {HIGHEST_COMMITTED_USN});
+            LDAPAttribute usn = rootDSE != null ? rootDSE.getAttribute(HIGHEST_COMMITTED_USN) : null;
+
+            if (usn == null || !NumberUtils.isDigits(usn.getStringValue())) {
+                LOGGER.warn("The LDAP server of [{}] does not provide [{}], the next synchronization will be a full "
+                    + "provisioning", this.remoteUserFormat, HIGHEST_COMMITTED_USN);
+
+                return null;
+            }
+
+            return usn.getStringValue();
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat(GENERALIZED_TIME);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return format.format(new Date(System.currentTimeMillis() - CLOCK_SKEW));
+    }
+
+    private String getChangeFilter(String changeMark)
+    {
+        if (USN_CHANGED.equals(this.changeTracking)) {
+            return "(" + USN_CHANGED + ">=" + (NumberUtils.toLong(changeMark, 0) + 1) + ')';
+        }
+
+        return "(" + MODIFY_TIMESTAMP + ">=" + changeMark + ')';
+    }
+
+    /**
+     * @return the uid of the user, null if it has none or failed to be synchronized
+     */
+    private String provision(LDAPEntry entry, String uidAttributeName, TrustedLDAPUtils ldapUtils,
+        XWikiContext context)
+    {
+        LDAPAttribute uidAttribute = entry.getAttribute(uidAttributeName);
+        if (uidAttribute == null || uidAttribute.getStringValue() == null) {
+            LOGGER.warn("LDAP entry [{}] has no [{}] attribute", entry.getDN(), uidAttributeName);
+
+            ++this.status.failed;
+
+            return null;
+        }
+
+        String uid = uidAttribute.getStringValue();
+        String ssoRemoteUser = MessageFormat.format(this.remoteUserFormat, uid);
+
+        try {
+            Map<String, String> remoteUserLDAPConfiguration =
+                new HashMap<String, String>(this.authService.parseRemoteUser(ssoRemoteUser, context));
+            remoteUserLDAPConfiguration.put("password", "");
+
+            XWikiDocument userProfile =
+                this.authService.getUserProfile(ssoRemoteUser, remoteUserLDAPConfiguration, ldapUtils, context);
+            boolean isNewUser = userProfile.isNew();
+
+            this.authService.synchronize(userProfile, TrustedLDAPUtils.getSearchAttributes(entry), entry.getDN(),
+                ssoRemoteUser, isNewUser, remoteUserLDAPConfiguration, ldapUtils, context);
+
+            if (isNewUser) {
+                ++this.status.created;
+            } else {
+                ++this.status.updated;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to provision [{}]", ssoRemoteUser, e);
+
+            ++this.status.failed;
+
+            return null;
+        }
+
+        return uid;
+    }
+
+    /**
+     * @return the uid of the last user processed by the last unfinished run, null to start from the beginning
+     */
+    private String loadCheckpoint(Properties checkpoints)
+    {
+        // A finished job starts from the beginning again
+        if (State.DONE.name().equals(checkpoints.getProperty(getKey(STATE)))) {
+            return null;
+        }
+
+        return checkpoints.getProperty(getKey(LAST_UID));
+    }
+
+    /**
+     * Incremental runs have their own progress so that they don't change where a full provisioning resumes.
+     */
+    private String getKey(String suffix)
+    {
+        return this.remoteUserFormat + (this.status.incremental ? INCREMENTAL : "") + suffix;
+    }
+
+    private String getPendingChangeMarkKey()
+    {
+        return getKey(PENDING_CHANGE_MARK + '.' + this.changeTracking);
+    }
+
+    private String getChangeMarkKey()
+    {
+        return this.remoteUserFormat + CHANGE_MARK + '.' + this.changeTracking;
+    }
+
+    private void saveCheckpoint(XWikiContext context) throws XWikiException
+    {
+        synchronized (CHECKPOINT_LOCK) {
+            Properties checkpoints = loadCheckpoints(context);
+            checkpoints.setProperty(getKey(PROCESSED), String.valueOf(this.status.processed));
+            checkpoints.setProperty(getKey(STATE), this.status.state.name());
+            if (this.lastUid != null) {
+                checkpoints.setProperty(getKey(LAST_UID), this.lastUid);
+            } else {
+                checkpoints.remove(getKey(LAST_UID));
+            }
+            if (this.pendingChangeMark != null) {
+                checkpoints.setProperty(getPendingChangeMarkKey(), this.pendingChangeMark);
+
+                if (this.status.state == State.DONE) {
+                    checkpoints.setProperty(getChangeMarkKey(), this.pendingChangeMark);
+                }
+            }
+
+            storeCheckpoints(checkpoints, context);
+        }
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the progress of all the domains, saved in the {@value #CHECKPOINT_DOCUMENT} document
+     * @throws XWikiException when failing to read the document
+     */
+    protected Properties loadCheckpoints(XWikiContext context) throws XWikiException
+    {
+        XWikiDocument document = context.getWiki().getDocument(CHECKPOINT_DOCUMENT, context);
+
+        Properties checkpoints = new Properties();
+
+        if (!document.isNew()) {
+            try {
+                checkpoints.load(new StringReader(document.getContent()));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read provisioning progress from [{}]", CHECKPOINT_DOCUMENT, e);
+            }
+        }
+
+        return checkpoints;
+    }
+
+    /**
+     * @param checkpoints the progress of all the domains
+     * @param context the XWiki context
+     * @throws XWikiException when failing to save the {@value #CHECKPOINT_DOCUMENT} document
+     */
+    protected void storeCheckpoints(Properties checkpoints, XWikiContext context) throws XWikiException
+    {
+        XWikiDocument document = context.getWiki().getDocument(CHECKPOINT_DOCUMENT, context);
+
+        StringWriter writer = new StringWriter();
+        try {
+            checkpoints.store(writer, null);
+        } catch (IOException e) {
+            // Can't happen with a StringWriter
+            throw new RuntimeException(e);
+        }
+
+        document.setContent(writer.toString());
+        document.setHidden(true);
+        context.getWiki().saveDocument(document, "Trusted LDAP provisioning progress", true, context);
+    }
+}
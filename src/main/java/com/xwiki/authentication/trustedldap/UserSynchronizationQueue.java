@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Run users synchronization in background threads so that the authentication does not have to wait for it.
+ * <p>
+ * The number of waiting jobs is bounded and there is at most one waiting job per user. Jobs run after the request
+ * which queued them is finished so they get a detached context (see
+ * {@link BackgroundThreads#newDetachedContext(XWikiContext)}).
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public class UserSynchronizationQueue
+{
+    /**
+     * LogFactory <code>LOGGER</code>.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSynchronizationQueue.class);
+
+    /**
+     * A synchronization to execute in the background.
+     */
+    public interface Job
+    {
+        /**
+         * @param context a context without request nor response, targeting the main wiki
+         * @throws Exception when failing to synchronize
+         */
+        void run(XWikiContext context) throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param threads the number of threads executing jobs
+     * @param queueSize the maximum number of waiting jobs
+     */
+    public UserSynchronizationQueue(int threads, int queueSize)
+    {
+        this.executor = BackgroundThreads.newExecutor("Trusted LDAP synchronization", threads, queueSize);
+    }
+
+    /**
+     * @param key the identifier of the synchronized user
+     * @param job the synchronization
+     * @param context the XWiki context
+     * @return true if the job has been queued or if there is already a job waiting for this user, false if the queue
+     *         is full
+     */
+    public boolean submit(final String key, final Job job, XWikiContext context)
+    {
+        if (this.pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            LOGGER.debug("A synchronization is already waiting for [{}]", key);
+
+            return true;
+        }
+
+        final XWikiContext jobContext = BackgroundThreads.newDetachedContext(context);
+        jobContext.setDatabase(context.getMainXWiki());
+
+        try {
+            this.executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Allow a new synchronization to be queued while this one is running
+                    pending.remove(key);
+
+                    runJob(key, job, jobContext);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.pending.remove(key);
+
+            LOGGER.debug("Synchronization queue is full, can't queue [{}]", key);
+
+            return false;
+        }
+
+        LOGGER.debug("Queued synchronization of [{}], [{}] jobs waiting", key, getQueueSize());
+
+        return true;
+    }
+
+    private void runJob(String key, Job job, XWikiContext context)
+    {
+        try {
+            BackgroundThreads.initializeExecutionContext(context);
+
+            try {
+                job.run(context);
+            } finally {
+                BackgroundThreads.removeExecutionContext();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to synchronize [{}]", key, e);
+        }
+    }
+
+    /**
+     * @return the number of jobs waiting to be executed
+     */
+    public int getQueueSize()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Stop executing jobs. The running jobs are left to finish but the waiting ones are dropped, they will be done by
+     * the next logins or scheduled synchronizations.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdown();
+        this.executor.getQueue().clear();
+        this.pending.clear();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.xpn.xwiki.XWikiContext;
+
+public class ConfigTest
+{
+    private Config config = new Config("test", "xwiki.test");
+
+    private XWikiContext context = new XWikiContext();
+
+    @Test
+    public void testSnapshotIsReused()
+    {
+        this.context.setDatabase("wiki");
+
+        this.config.getSnapshot(this.context).put("key", "value");
+
+        Assert.assertEquals("value", this.config.getSnapshot(this.context).get("key"));
+    }
+
+    @Test
+    public void testValueStoredAfterInvalidationIsDropped()
+    {
+        this.context.setDatabase("wiki");
+
+        // A lookup started before the preferences were modified
+        Config.Snapshot snapshot = this.config.getSnapshot(this.context);
+
+        this.config.invalidate();
+
+        snapshot.put("key", "outdated");
+
+        Assert.assertNull(this.config.getSnapshot(this.context).get("key"));
+    }
+}
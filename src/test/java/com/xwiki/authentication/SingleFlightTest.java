@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SingleFlightTest
+{
+    @Test
+    public void testConcurrentCallsShareResult() throws Exception
+    {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Callable<String> call = new Callable<String>()
+            {
+                @Override
+                public String call() throws Exception
+                {
+                    return singleFlight.execute("user", new Callable<String>()
+                    {
+                        @Override
+                        public String call() throws Exception
+                        {
+                            executions.incrementAndGet();
+                            started.countDown();
+                            release.await();
+
+                            return "result";
+                        }
+                    });
+                }
+            };
+
+            Future<String> first = executor.submit(call);
+            started.await();
+
+            Future<String> second = executor.submit(call);
+            Future<String> third = executor.submit(call);
+
+            // Let the other callers join the call in progress
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertEquals("result", first.get());
+            Assert.assertEquals("result", second.get());
+            Assert.assertEquals("result", third.get());
+            Assert.assertEquals(1, executions.get());
+            Assert.assertEquals(0, singleFlight.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExceptionIsRethrownAndCallNotKept() throws Exception
+    {
+        SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+
+        try {
+            singleFlight.execute("user", new Callable<String>()
+            {
+                @Override
+                public String call() throws Exception
+                {
+                    throw new IllegalStateException("failed");
+                }
+            });
+
+            Assert.fail("Should have thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+
+        Assert.assertEquals("again", singleFlight.execute("user", new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                return "again";
+            }
+        }));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TimedLRUCacheTest
+{
+    @Test
+    public void testEvictLeastRecentlyUsed()
+    {
+        TimedLRUCache<String, String> cache = new TimedLRUCache<String, String>(2, 60000);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        Assert.assertEquals("1", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testExpiration() throws Exception
+    {
+        TimedLRUCache<String, String> cache = new TimedLRUCache<String, String>(10, 1);
+
+        cache.put("a", "1");
+
+        Thread.sleep(10);
+
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemove()
+    {
+        TimedLRUCache<String, String> cache = new TimedLRUCache<String, String>(10, 60000);
+
+        cache.put("a", "1");
+        cache.remove("a");
+
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        TimedLRUCache<String, String> cache = new TimedLRUCache<String, String>(10, 0);
+
+        cache.put("a", "1");
+
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertNull(cache.get("a"));
+    }
+}
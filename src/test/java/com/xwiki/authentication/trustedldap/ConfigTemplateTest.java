@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ConfigTemplateTest
+{
+    private static final String[] ARGUMENTS = new String[] {"login", "password"};
+
+    private static Map<String, String> getValues()
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("login", "login");
+        values.put("password", "password");
+        values.put("domain", "my.domain");
+
+        return values;
+    }
+
+    @Test
+    public void testMessageFormat()
+    {
+        Map<String, String> values = getValues();
+
+        Assert.assertEquals("cn=login,ou=users",
+            ConfigTemplate.compileMessageFormat("cn={0},ou=users", ARGUMENTS, true).render(values));
+        Assert.assertEquals("O'Brien {0} password {2}",
+            ConfigTemplate.compileMessageFormat("O''Brien '{0}' {1} {2}", ARGUMENTS, false).render(values));
+
+        values.remove("password");
+        Assert.assertEquals("login null",
+            ConfigTemplate.compileMessageFormat("{0} {1}", ARGUMENTS, false).render(values));
+    }
+
+    @Test
+    public void testMessageFormatConstant()
+    {
+        Assert.assertTrue(ConfigTemplate.compileMessageFormat("cn=bind", ARGUMENTS, true).isConstant());
+        Assert.assertTrue(ConfigTemplate.compileMessageFormat("cn=O''Brien", ARGUMENTS, true).isConstant());
+        Assert.assertFalse(ConfigTemplate.compileMessageFormat("cn={0}", ARGUMENTS, true).isConstant());
+        Assert.assertFalse(ConfigTemplate.compileMessageFormat("cn={0,number}", ARGUMENTS, true).isConstant());
+    }
+
+    @Test
+    public void testVariables()
+    {
+        Map<String, String> values = getValues();
+
+        Assert.assertEquals("loginmydomain",
+            ConfigTemplate.compileVariables("${login}.${domain}", ". /").render(values));
+        Assert.assertEquals("${login} login ${unknown}",
+            ConfigTemplate.compileVariables("$${login} ${login} ${unknown}", null).render(values));
+
+        // Variables in values are substituted like StrSubstitutor does
+        values.put("alias", "${login}");
+        Assert.assertEquals("login", ConfigTemplate.compileVariables("${alias}", null).render(values));
+    }
+}
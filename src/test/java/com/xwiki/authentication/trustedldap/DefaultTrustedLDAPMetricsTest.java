@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DefaultTrustedLDAPMetricsTest
+{
+    private DefaultTrustedLDAPMetrics metrics;
+
+    @Before
+    public void setUp()
+    {
+        this.metrics = new DefaultTrustedLDAPMetrics();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.metrics.dispose();
+    }
+
+    @Test
+    public void testCounters() throws Exception
+    {
+        this.metrics.increment(TrustedLDAPMetrics.LDAP_BIND_FAILURES, "server:389");
+        this.metrics.increment(TrustedLDAPMetrics.LDAP_BIND_FAILURES, null);
+
+        Assert.assertEquals(2, this.metrics.getCount(TrustedLDAPMetrics.LDAP_BIND_FAILURES));
+        Assert.assertEquals(1, this.metrics.getCount(TrustedLDAPMetrics.LDAP_BIND_FAILURES + "[server:389]"));
+        Assert.assertEquals(0, this.metrics.getCount(TrustedLDAPMetrics.FALLBACKS));
+        Assert.assertEquals(2L, this.metrics.getAttribute(TrustedLDAPMetrics.LDAP_BIND_FAILURES));
+    }
+
+    @Test
+    public void testHitRatio() throws Exception
+    {
+        this.metrics.increment(TrustedLDAPMetrics.PRINCIPAL_CACHE_HITS, null);
+        this.metrics.increment(TrustedLDAPMetrics.PRINCIPAL_CACHE_HITS, null);
+        this.metrics.increment(TrustedLDAPMetrics.PRINCIPAL_CACHE_HITS, null);
+        this.metrics.increment(TrustedLDAPMetrics.PRINCIPAL_CACHE_MISSES, null);
+
+        Assert.assertEquals(0.75, this.metrics.getAttribute("principalCache.hitRatio"));
+    }
+
+    @Test
+    public void testTimer() throws Exception
+    {
+        for (int i = 0; i < 99; ++i) {
+            this.metrics.time(TrustedLDAPMetrics.LDAP_SEARCH, "server:389", 3000000);
+        }
+        this.metrics.time(TrustedLDAPMetrics.LDAP_SEARCH, "server:389", 150000000);
+
+        DefaultTrustedLDAPMetrics.Timer timer = this.metrics.getTimerMeasures(TrustedLDAPMetrics.LDAP_SEARCH);
+
+        Assert.assertEquals(100, timer.getCount());
+        Assert.assertEquals(5, timer.getPercentile(0.5));
+        Assert.assertEquals(5, timer.getPercentile(0.99));
+        Assert.assertEquals(200, timer.getPercentile(1));
+        Assert.assertEquals(150.0, timer.getMax(), 0.001);
+        Assert.assertEquals(100L,
+            this.metrics.getAttribute(TrustedLDAPMetrics.LDAP_SEARCH + "[server:389].count"));
+        Assert.assertNull(this.metrics.getTimerMeasures(TrustedLDAPMetrics.SYNC_USER));
+    }
+
+    @Test
+    public void testGauge() throws Exception
+    {
+        final long[] size = new long[] {3};
+        this.metrics.gauge(TrustedLDAPMetrics.SYNC_QUEUE_SIZE, new TrustedLDAPMetrics.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                return size[0];
+            }
+        });
+
+        Assert.assertEquals(3, this.metrics.getGaugeValue(TrustedLDAPMetrics.SYNC_QUEUE_SIZE));
+
+        size[0] = 5;
+
+        Assert.assertEquals(5L, this.metrics.getAttribute(TrustedLDAPMetrics.SYNC_QUEUE_SIZE));
+        Assert.assertEquals(0, this.metrics.getGaugeValue("unknown"));
+    }
+
+    @Test
+    public void testRegistrationPerWebApplication() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        DefaultTrustedLDAPMetrics first = new DefaultTrustedLDAPMetrics("/xwiki");
+        DefaultTrustedLDAPMetrics second = new DefaultTrustedLDAPMetrics("/other");
+
+        try {
+            Assert.assertEquals("\"/xwiki\"", first.getObjectName().getKeyProperty("name"));
+            Assert.assertTrue(server.isRegistered(first.getObjectName()));
+            Assert.assertTrue(server.isRegistered(second.getObjectName()));
+
+            // The metrics of a running authenticator are not replaced
+            DefaultTrustedLDAPMetrics duplicate = new DefaultTrustedLDAPMetrics("/xwiki");
+            Assert.assertNull(duplicate.getObjectName());
+            duplicate.dispose();
+            Assert.assertTrue(server.isRegistered(first.getObjectName()));
+
+            first.increment(TrustedLDAPMetrics.FALLBACKS, null);
+            Assert.assertEquals(1L, server.getAttribute(first.getObjectName(), TrustedLDAPMetrics.FALLBACKS));
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+
+        Assert.assertFalse(server.isRegistered(new ObjectName(DefaultTrustedLDAPMetrics.OBJECT_NAME
+            + ",name=\"/xwiki\"")));
+    }
+
+    @Test(expected = ReflectionException.class)
+    public void testInvokeUnknownOperation() throws Exception
+    {
+        this.metrics.invoke("reset", new Object[0], new String[0]);
+    }
+}
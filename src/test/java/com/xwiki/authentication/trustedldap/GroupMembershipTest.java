@@ -0,0 +1,55 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class GroupMembershipTest
+{
+    @Test
+    public void testDigestDoesNotDependOnOrder()
+    {
+        GroupMembership membership1 =
+            new GroupMembership(new LinkedHashSet<String>(Arrays.asList("XWiki.Group1", "XWiki.Group2")));
+        GroupMembership membership2 =
+            new GroupMembership(new LinkedHashSet<String>(Arrays.asList("XWiki.Group2", "XWiki.Group1")));
+
+        Assert.assertEquals(membership1.getDigest(), membership2.getDigest());
+        Assert.assertEquals(membership1.getGroups(), membership2.getGroups());
+    }
+
+    @Test
+    public void testDigestDependsOnGroups()
+    {
+        GroupMembership membership1 = new GroupMembership(new HashSet<String>(Arrays.asList("XWiki.Group1")));
+        GroupMembership membership2 = new GroupMembership(new HashSet<String>(Arrays.asList("XWiki.Group2")));
+        GroupMembership empty = new GroupMembership(Collections.<String> emptySet());
+
+        Assert.assertTrue(membership1.getDigest() != membership2.getDigest());
+        Assert.assertTrue(empty.getDigest() != 0);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class LDAPCircuitBreakerTest
+{
+    private static final String DOMAIN = "server:389";
+
+    @Test
+    public void testOpenAfterConsecutiveFailures()
+    {
+        LDAPCircuitBreaker breaker = new LDAPCircuitBreaker(2, 60000);
+
+        breaker.recordFailure(DOMAIN);
+        breaker.recordSuccess(DOMAIN);
+        breaker.recordFailure(DOMAIN);
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+
+        breaker.recordFailure(DOMAIN);
+
+        Assert.assertFalse(breaker.allowRequest(DOMAIN));
+        Assert.assertTrue(breaker.isOpen(DOMAIN));
+        Assert.assertTrue(breaker.allowRequest("other:389"));
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception
+    {
+        LDAPCircuitBreaker breaker = new LDAPCircuitBreaker(1, 1);
+
+        breaker.recordFailure(DOMAIN);
+
+        Thread.sleep(10);
+
+        // Only one probe at a time
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+        Assert.assertFalse(breaker.allowRequest(DOMAIN));
+
+        // Failed probe
+        breaker.recordFailure(DOMAIN);
+
+        Thread.sleep(10);
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+
+        // Successful probe
+        breaker.recordSuccess(DOMAIN);
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+        Assert.assertFalse(breaker.isOpen(DOMAIN));
+    }
+
+    @Test
+    public void testSkippedProbe() throws Exception
+    {
+        LDAPCircuitBreaker breaker = new LDAPCircuitBreaker(1, 1);
+
+        breaker.recordFailure(DOMAIN);
+
+        Thread.sleep(10);
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+        Assert.assertFalse(breaker.allowRequest(DOMAIN));
+
+        // The probe did not reach the server: neither close nor reopen the circuit but let another request probe it
+        breaker.recordSkipped(DOMAIN);
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+        Assert.assertFalse(breaker.allowRequest(DOMAIN));
+
+        // Skipped requests are not failures
+        breaker = new LDAPCircuitBreaker(1, 60000);
+        breaker.recordSkipped(DOMAIN);
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+        Assert.assertFalse(breaker.isOpen(DOMAIN));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        LDAPCircuitBreaker breaker = new LDAPCircuitBreaker(0, 60000);
+
+        for (int i = 0; i < 10; ++i) {
+            breaker.recordFailure(DOMAIN);
+        }
+
+        Assert.assertTrue(breaker.allowRequest(DOMAIN));
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
+
+public class LDAPConnectionPoolTest
+{
+    private static final String PASSWORD = "secret";
+
+    private static final LDAPConnectionKey KEY = new LDAPConnectionKey("server", 389, "cn=bind", PASSWORD, false, null);
+
+    private static final String USER_DN = "uid=user,ou=people";
+
+    /**
+     * A connection to a directory accepting {@link #PASSWORD} for all users.
+     */
+    private static class FakeConnection extends XWikiLDAPConnection
+    {
+        private boolean connected;
+
+        private boolean bound;
+
+        private String boundDN;
+
+        private boolean serverAlive = true;
+
+        private int pings;
+
+        private final LDAPConnection connection = new LDAPConnection()
+        {
+            @Override
+            public boolean isConnected()
+            {
+                return connected;
+            }
+
+            @Override
+            public boolean isBound()
+            {
+                return bound;
+            }
+
+            @Override
+            public LDAPSearchConstraints getSearchConstraints()
+            {
+                return new LDAPSearchConstraints();
+            }
+
+            @Override
+            public LDAPEntry read(String dn, String[] attrs, LDAPSearchConstraints constraints) throws LDAPException
+            {
+                ++pings;
+
+                if (!serverAlive) {
+                    throw new LDAPException("Connection reset", LDAPException.SERVER_DOWN, null);
+                }
+
+                return new LDAPEntry();
+            }
+        };
+
+        @Override
+        public LDAPConnection getConnection()
+        {
+            return this.connection;
+        }
+
+        @Override
+        public boolean open(String host, int port, String bindDN, String bindPassword, String pathToKeys,
+            boolean ssl, XWikiContext context)
+        {
+            this.connected = true;
+
+            try {
+                bind(bindDN, bindPassword);
+            } catch (LDAPException e) {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public void bind(String bindDN, String bindPassword) throws LDAPException
+        {
+            if (!PASSWORD.equals(bindPassword)) {
+                // A rejected bind leaves the connection anonymous
+                this.bound = false;
+                this.boundDN = null;
+
+                throw new LDAPException("Invalid credentials", LDAPException.INVALID_CREDENTIALS, null);
+            }
+
+            this.bound = true;
+            this.boundDN = bindDN;
+        }
+
+        @Override
+        public void close()
+        {
+            this.connected = false;
+        }
+    }
+
+    private final List<LDAPConnectionPool> pools = new ArrayList<LDAPConnectionPool>();
+
+    private static class FakeConnectionPool extends LDAPConnectionPool
+    {
+        FakeConnectionPool(int minIdle, int maxSize, long maxIdleTime, long borrowTimeout, long validationInterval,
+            boolean bound)
+        {
+            super(minIdle, maxSize, maxIdleTime, borrowTimeout, validationInterval, bound);
+        }
+
+        @Override
+        protected XWikiLDAPConnection createConnection()
+        {
+            return new FakeConnection();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (LDAPConnectionPool pool : this.pools) {
+            pool.shutdown();
+        }
+    }
+
+    private LDAPConnectionPool createPool(int minIdle, int maxSize, long maxIdleTime, long validationInterval,
+        boolean bound)
+    {
+        LDAPConnectionPool pool = new FakeConnectionPool(minIdle, maxSize, maxIdleTime, 100, validationInterval, bound);
+
+        this.pools.add(pool);
+
+        return pool;
+    }
+
+    @Test
+    public void testPermits() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 2, 60000, 60000, true);
+
+        XWikiLDAPConnection first = pool.borrow(KEY, null);
+        XWikiLDAPConnection second = pool.borrow(KEY, null);
+
+        // The permits are per target
+        LDAPConnectionKey otherKey = new LDAPConnectionKey("other", 389, "cn=bind", PASSWORD, false, null);
+        pool.release(otherKey, pool.borrow(otherKey, null), true);
+
+        pool.release(KEY, first, true);
+        Assert.assertSame(first, pool.borrow(KEY, null));
+
+        // A connection which is not reusable gives back its permit too
+        pool.release(KEY, second, false);
+        Assert.assertFalse(((FakeConnection) second).connected);
+        Assert.assertNotSame(second, pool.borrow(KEY, null));
+
+        Assert.assertEquals(4, pool.getOpenedConnections());
+        Assert.assertEquals(5, pool.getBorrowedConnections());
+    }
+
+    @Test
+    public void testBorrowTimeout() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 1, 60000, 60000, true);
+
+        pool.borrow(KEY, null);
+
+        long start = System.currentTimeMillis();
+        try {
+            pool.borrow(KEY, 20, null);
+
+            Assert.fail("No connection should be available");
+        } catch (LDAPPoolTimeoutException expected) {
+            // Expected
+        }
+
+        // Never more than the borrow timeout of the pool
+        try {
+            pool.borrow(KEY, 60000, null);
+
+            Assert.fail("No connection should be available");
+        } catch (LDAPPoolTimeoutException expected) {
+            // Expected
+        }
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testLastReleasedIsReusedFirst() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 2, 60000, 60000, true);
+
+        XWikiLDAPConnection first = pool.borrow(KEY, null);
+        XWikiLDAPConnection second = pool.borrow(KEY, null);
+
+        pool.release(KEY, first, true);
+        pool.release(KEY, second, true);
+
+        Assert.assertSame(second, pool.borrow(KEY, null));
+        Assert.assertSame(first, pool.borrow(KEY, null));
+        Assert.assertEquals(2, pool.getOpenedConnections());
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(1, 2, 10, 60000, true);
+
+        FakeConnection first = (FakeConnection) pool.borrow(KEY, null);
+        FakeConnection second = (FakeConnection) pool.borrow(KEY, null);
+
+        pool.release(KEY, first, true);
+        pool.release(KEY, second, true);
+
+        Thread.sleep(50);
+
+        pool.evict();
+
+        // The oldest expired connection is closed, the last one is kept for the minimum of idle connections
+        Assert.assertFalse(first.connected);
+        Assert.assertTrue(second.connected);
+        Assert.assertSame(second, pool.borrow(KEY, null));
+    }
+
+    @Test
+    public void testIdleConnectionValidation() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 1, 60000, 20, true);
+
+        FakeConnection connection = (FakeConnection) pool.borrow(KEY, null);
+        pool.release(KEY, connection, true);
+
+        // Recently used connections are not checked
+        Assert.assertSame(connection, pool.borrow(KEY, null));
+        Assert.assertEquals(0, connection.pings);
+        pool.release(KEY, connection, true);
+
+        Thread.sleep(50);
+
+        Assert.assertSame(connection, pool.borrow(KEY, null));
+        Assert.assertEquals(1, connection.pings);
+        pool.release(KEY, connection, true);
+
+        Thread.sleep(50);
+
+        // The server dropped the connection without the client noticing
+        connection.serverAlive = false;
+
+        Assert.assertNotSame(connection, pool.borrow(KEY, null));
+        Assert.assertFalse(connection.connected);
+        Assert.assertEquals(2, pool.getOpenedConnections());
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 2, 60000, 60000, true);
+
+        FakeConnection idle = (FakeConnection) pool.borrow(KEY, null);
+        FakeConnection borrowed = (FakeConnection) pool.borrow(KEY, null);
+        pool.release(KEY, idle, true);
+
+        pool.shutdown();
+
+        Assert.assertFalse(idle.connected);
+
+        pool.release(KEY, borrowed, true);
+
+        Assert.assertFalse(borrowed.connected);
+    }
+
+    @Test
+    public void testNewCredentialConnectionIsBoundWithCheckedCredentials() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 1, 60000, 60000, false);
+
+        FakeConnection connection = (FakeConnection) pool.borrow(KEY, USER_DN, PASSWORD, 0, null);
+
+        Assert.assertEquals(USER_DN, connection.boundDN);
+        Assert.assertEquals(1, pool.getOpenedConnections());
+    }
+
+    @Test
+    public void testCredentialConnectionIsReusedAfterRejectedBind() throws Exception
+    {
+        // A single connection so that a permit not given back makes the next borrow time out
+        LDAPConnectionPool pool = createPool(0, 1, 60000, 60000, false);
+
+        XWikiLDAPConnection connection = pool.borrow(KEY, USER_DN, PASSWORD, 0, null);
+        pool.release(KEY, connection, true);
+
+        try {
+            pool.borrow(KEY, USER_DN, "wrong", 0, null);
+
+            Assert.fail("The bind should have been rejected");
+        } catch (LDAPException expected) {
+            // Expected
+        }
+
+        Assert.assertSame(connection, pool.borrow(KEY, USER_DN, PASSWORD, 0, null));
+        Assert.assertEquals(1, pool.getOpenedConnections());
+    }
+
+    @Test
+    public void testRejectedNewCredentialConnectionGivesBackPermit() throws Exception
+    {
+        LDAPConnectionPool pool = createPool(0, 1, 60000, 60000, false);
+
+        try {
+            pool.borrow(KEY, USER_DN, "wrong", 0, null);
+
+            Assert.fail("The bind should have been rejected");
+        } catch (XWikiException expected) {
+            // Expected
+        }
+
+        FakeConnection connection = (FakeConnection) pool.borrow(KEY, USER_DN, PASSWORD, 0, null);
+
+        Assert.assertEquals(USER_DN, connection.boundDN);
+    }
+}
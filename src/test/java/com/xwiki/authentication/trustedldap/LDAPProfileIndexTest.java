@@ -0,0 +1,254 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+import com.xpn.xwiki.user.impl.LDAP.LDAPProfileXClass;
+
+public class LDAPProfileIndexTest extends AbstractBridgedComponentTestCase
+{
+    /**
+     * The uids of the profiles in the database, indexed by profile full name.
+     */
+    private final Map<String, String> storedProfiles = new TreeMap<String, String>();
+
+    /**
+     * The uids searched in the database.
+     */
+    private final List<Collection<String>> storeSearches = new ArrayList<Collection<String>>();
+
+    /**
+     * Called while the query loading the index is running.
+     */
+    private Runnable duringLoad;
+
+    private EventListener listener;
+
+    private final LDAPProfileIndex index = new LDAPProfileIndex()
+    {
+        @Override
+        protected void addListener(EventListener listener)
+        {
+            LDAPProfileIndexTest.this.listener = listener;
+        }
+
+        @Override
+        protected List<Object[]> searchProfiles(XWikiContext context)
+        {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Map.Entry<String, String> profile : storedProfiles.entrySet()) {
+                rows.add(new Object[] {profile.getKey(), profile.getValue()});
+            }
+
+            if (duringLoad != null) {
+                duringLoad.run();
+            }
+
+            return rows;
+        }
+
+        @Override
+        protected XWikiDocument getDocument(String fullName, XWikiContext context)
+        {
+            return profile(fullName, storedProfiles.get(fullName));
+        }
+
+        @Override
+        protected XWikiDocument searchProfileInStore(Collection<String> uids, XWikiContext context)
+        {
+            storeSearches.add(uids);
+
+            for (String uid : uids) {
+                for (Map.Entry<String, String> profile : storedProfiles.entrySet()) {
+                    if (uid.equalsIgnoreCase(profile.getValue())) {
+                        return profile(profile.getKey(), profile.getValue());
+                    }
+                }
+            }
+
+            return null;
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        getContext().setDatabase("xwiki");
+    }
+
+    private static XWikiDocument profile(String fullName, final String uid)
+    {
+        return new XWikiDocument(new DocumentReference("xwiki", "XWiki", fullName.substring("XWiki.".length())))
+        {
+            @Override
+            public BaseObject getObject(String className)
+            {
+                if (uid == null || !LDAPProfileXClass.LDAP_XCLASS.equals(className)) {
+                    return null;
+                }
+
+                BaseObject object = new BaseObject();
+                object.setStringValue(LDAPProfileXClass.LDAP_XFIELD_UID, uid);
+
+                return object;
+            }
+        };
+    }
+
+    private String search(String... uids) throws Exception
+    {
+        XWikiDocument document = this.index.searchDocumentByUid(Arrays.asList(uids), getContext());
+
+        return document != null ? document.getFullName() : null;
+    }
+
+    private void save(String fullName, String uid)
+    {
+        this.storedProfiles.put(fullName, uid);
+        this.listener.onEvent(new DocumentUpdatedEvent(), profile(fullName, uid), null);
+    }
+
+    private void delete(String fullName)
+    {
+        String uid = this.storedProfiles.remove(fullName);
+        this.listener.onEvent(new DocumentDeletedEvent(), profile(fullName, uid), null);
+    }
+
+    @Test
+    public void testSearchIsCaseInsensitive() throws Exception
+    {
+        this.storedProfiles.put("XWiki.Alice", "Alice");
+        this.storedProfiles.put("XWiki.Bob", "bob");
+
+        Assert.assertEquals("XWiki.Alice", search("ALICE"));
+        Assert.assertEquals("XWiki.Bob", search("unknown", "Bob"));
+        Assert.assertNull(search("unknown"));
+        Assert.assertTrue(this.storeSearches.isEmpty());
+    }
+
+    @Test
+    public void testModificationsDuringLoadAreKept() throws Exception
+    {
+        this.storedProfiles.put("XWiki.Alice", "alice");
+        this.storedProfiles.put("XWiki.Bob", "bob");
+        this.storedProfiles.put("XWiki.Carol", "carol");
+
+        // The query result is read before these modifications are received
+        this.duringLoad = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                delete("XWiki.Alice");
+                save("XWiki.Bob", "robert");
+            }
+        };
+
+        Assert.assertEquals("XWiki.Carol", search("carol"));
+        Assert.assertNull(search("alice"));
+        Assert.assertNull(search("bob"));
+        Assert.assertEquals("XWiki.Bob", search("robert"));
+        Assert.assertTrue(this.storeSearches.isEmpty());
+    }
+
+    @Test
+    public void testModificationsAfterLoad() throws Exception
+    {
+        this.storedProfiles.put("XWiki.Alice", "alice");
+
+        Assert.assertEquals("XWiki.Alice", search("alice"));
+
+        save("XWiki.Bob", "bob");
+        delete("XWiki.Alice");
+
+        Assert.assertEquals("XWiki.Bob", search("bob"));
+        Assert.assertNull(search("alice"));
+    }
+
+    @Test
+    public void testOutdatedEntry() throws Exception
+    {
+        this.storedProfiles.put("XWiki.Alice", "alice");
+
+        Assert.assertEquals("XWiki.Alice", search("alice"));
+
+        // Modified without notification
+        this.storedProfiles.put("XWiki.Alice", "alicia");
+        this.storedProfiles.put("XWiki.Dave", "alice");
+
+        Assert.assertEquals("XWiki.Dave", search("alice"));
+        Assert.assertEquals(1, this.storeSearches.size());
+
+        // The outdated entry has been fixed
+        Assert.assertEquals("XWiki.Alice", search("alicia"));
+        Assert.assertEquals(1, this.storeSearches.size());
+    }
+
+    @Test
+    public void testSearchInStoreWithoutListener() throws Exception
+    {
+        LDAPProfileIndex storeIndex = new LDAPProfileIndex()
+        {
+            @Override
+            protected void addListener(EventListener listener)
+            {
+                throw new RuntimeException("No observation manager");
+            }
+
+            @Override
+            protected List<Object[]> searchProfiles(XWikiContext context)
+            {
+                throw new AssertionError("The index should not be loaded");
+            }
+
+            @Override
+            protected XWikiDocument searchProfileInStore(Collection<String> uids, XWikiContext context)
+            {
+                storeSearches.add(uids);
+
+                return null;
+            }
+        };
+
+        Assert.assertNull(storeIndex.searchDocumentByUid(Arrays.asList("alice"), getContext()));
+        Assert.assertNull(storeIndex.searchDocumentByUid(Arrays.asList("alice"), getContext()));
+        Assert.assertEquals(2, this.storeSearches.size());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class LDAPServerSelectorTest
+{
+    private static LDAPServer server(String host, int weight)
+    {
+        return new LDAPServer(new LDAPConnectionKey(host, 389, "cn=bind", "pass", false, null), weight);
+    }
+
+    @Test
+    public void testFailover()
+    {
+        LDAPCircuitBreaker breaker = new LDAPCircuitBreaker(1, 60000);
+        LDAPServerSelector selector = new LDAPServerSelector(LDAPServerSelector.FAILOVER, breaker);
+
+        List<LDAPServer> servers = Arrays.asList(server("ldap1", 1), server("ldap2", 1), server("ldap3", 1));
+
+        Assert.assertEquals("[ldap1:389*1, ldap2:389*1, ldap3:389*1]", selector.select(servers).toString());
+
+        breaker.recordFailure("ldap1:389");
+
+        Assert.assertEquals("[ldap2:389*1, ldap3:389*1, ldap1:389*1]", selector.select(servers).toString());
+    }
+
+    @Test
+    public void testWeightedRoundRobin()
+    {
+        LDAPServerSelector selector =
+            new LDAPServerSelector(LDAPServerSelector.ROUND_ROBIN, new LDAPCircuitBreaker(5, 60000));
+
+        List<LDAPServer> servers = Arrays.asList(server("ldap1", 2), server("ldap2", 1));
+
+        List<String> first = new ArrayList<String>();
+        for (int i = 0; i < 6; ++i) {
+            List<LDAPServer> selected = selector.select(servers);
+
+            Assert.assertEquals(2, selected.size());
+
+            first.add(selected.get(0).getConnectionKey().getHost());
+        }
+
+        Assert.assertEquals(Arrays.asList("ldap1", "ldap1", "ldap2", "ldap1", "ldap1", "ldap2"), first);
+    }
+
+    @Test
+    public void testLeastLatency()
+    {
+        LDAPServerSelector selector =
+            new LDAPServerSelector(LDAPServerSelector.LEAST_LATENCY, new LDAPCircuitBreaker(5, 60000));
+
+        List<LDAPServer> servers = Arrays.asList(server("ldap1", 1), server("ldap2", 1));
+
+        selector.recordLatency("ldap1:389", 20000000);
+        selector.recordLatency("ldap2:389", 5000000);
+
+        Assert.assertEquals("ldap2", selector.select(servers).get(0).getConnectionKey().getHost());
+
+        for (int i = 0; i < 50; ++i) {
+            selector.recordLatency("ldap2:389", 50000000);
+        }
+
+        Assert.assertEquals("ldap1", selector.select(servers).get(0).getConnectionKey().getHost());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class LocalPrincipalCacheTest
+{
+    @Test
+    public void testPutGetRemove()
+    {
+        PrincipalCache cache = new LocalPrincipalCache(10, 60000);
+
+        CachedPrincipal principal = new CachedPrincipal("XWiki.user", "xwiki:XWiki.user", "uid=user,dc=com", 42);
+        cache.put("user@MYDOMAIN", principal);
+
+        Assert.assertSame(principal, cache.get("user@MYDOMAIN"));
+        Assert.assertNull(cache.get("other@MYDOMAIN"));
+
+        cache.remove("user@MYDOMAIN");
+        Assert.assertNull(cache.get("user@MYDOMAIN"));
+
+        cache.put("user@MYDOMAIN", principal);
+        cache.clear();
+        Assert.assertNull(cache.get("user@MYDOMAIN"));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        PrincipalCache cache = new LocalPrincipalCache(0, 60000);
+
+        cache.put("user@MYDOMAIN", new CachedPrincipal("XWiki.user", "xwiki:XWiki.user", "uid=user,dc=com"));
+
+        Assert.assertNull(cache.get("user@MYDOMAIN"));
+    }
+
+    @Test
+    public void testSerializable() throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(new CachedPrincipal("XWiki.user", "xwiki:XWiki.user", "uid=user,dc=com", 42));
+        output.close();
+
+        CachedPrincipal principal =
+            (CachedPrincipal) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        Assert.assertEquals("xwiki:XWiki.user", principal.getPrefixedFullName());
+        Assert.assertEquals("uid=user,dc=com", principal.getLDAPDn());
+        Assert.assertEquals(42, principal.getGroupDigest());
+    }
+}
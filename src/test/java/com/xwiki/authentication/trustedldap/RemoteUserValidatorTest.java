@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RemoteUserValidatorTest
+{
+    private static final RemoteUserParser PARSER = new RemoteUserParser(Pattern.compile("(.+)@(.+)"), new String[][] {
+        {}, {"login"}, {"ldap_server"}});
+
+    @SuppressWarnings("unchecked")
+    private static RemoteUserValidator createValidator(boolean strict)
+    {
+        Set<String>[] knownValues = new Set[3];
+        knownValues[2] = new HashSet<String>(Arrays.asList("mydomain", "mydomain2"));
+
+        return new RemoteUserValidator(PARSER, knownValues, 20, strict);
+    }
+
+    @Test
+    public void testAlwaysRejected()
+    {
+        RemoteUserValidator validator = createValidator(false);
+
+        Assert.assertEquals(RemoteUserValidator.EMPTY, validator.validate(""));
+        Assert.assertEquals(RemoteUserValidator.TOO_LONG, validator.validate("averyveryverylonguser@MYDOMAIN"));
+        Assert.assertEquals(RemoteUserValidator.INVALID_CHARACTERS, validator.validate("user\n@MYDOMAIN"));
+
+        // Not strict
+        Assert.assertNull(validator.validate("user"));
+        Assert.assertNull(validator.validate("user@UNKNOWN"));
+    }
+
+    @Test
+    public void testStrict()
+    {
+        RemoteUserValidator validator = createValidator(true);
+
+        Assert.assertNull(validator.validate("user@MYDOMAIN"));
+        Assert.assertNull(validator.validate("user@mydomain2"));
+        Assert.assertEquals(RemoteUserValidator.NO_MATCH, validator.validate("user"));
+        Assert.assertEquals(RemoteUserValidator.UNKNOWN_DOMAIN, validator.validate("user@UNKNOWN"));
+    }
+
+    @Test
+    public void testStrictWithoutParser()
+    {
+        RemoteUserValidator validator = new RemoteUserValidator(null, null, 256, true);
+
+        Assert.assertNull(validator.validate("user"));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.Assert;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.Test;
+
+public class SSOCookieCipherTest
+{
+    private static final String SECRET = "$é zefzekz fzeuhfkz ead;:azdazd\t";
+
+    private SSOCookieCipher cipher = new SSOCookieCipher();
+
+    @Test
+    public void testDecryptLegacyCookie() throws Exception
+    {
+        String text = "xwiki:XWiki.user";
+
+        // The way cookies were encrypted before 1.4
+        Cipher legacyCipher = Cipher.getInstance("TripleDES");
+        legacyCipher.init(Cipher.ENCRYPT_MODE,
+            new SecretKeySpec(ArrayUtils.subarray(SECRET.getBytes(), 0, 24), "TripleDES"));
+        String legacyCookie =
+            new String(Base64.encodeBase64(legacyCipher.doFinal(text.getBytes()))).replaceAll("=", "_");
+
+        Assert.assertEquals(text, new String(this.cipher.decrypt(legacyCookie, SECRET)));
+        Assert.assertEquals(legacyCookie, this.cipher.encrypt(text.getBytes(), SECRET, false));
+    }
+
+    @Test
+    public void testEncryptDecryptAES() throws Exception
+    {
+        for (String text : new String[] {"", "a", "ab", "abc", "xwiki:XWiki.user with é"}) {
+            String cookie = this.cipher.encrypt(text.getBytes(), SECRET, true);
+
+            Assert.assertTrue(cookie.startsWith("2."));
+            Assert.assertEquals(text, new String(this.cipher.decrypt(cookie, SECRET)));
+        }
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testDecryptTamperedAES() throws Exception
+    {
+        String cookie = this.cipher.encrypt("xwiki:XWiki.user".getBytes(), SECRET, true);
+
+        // The last character may only carry unused bits
+        int index = cookie.length() / 2;
+        char c = cookie.charAt(index);
+        cookie = cookie.substring(0, index) + (c == 'A' ? 'B' : 'A') + cookie.substring(index + 1);
+
+        this.cipher.decrypt(cookie, SECRET);
+    }
+
+    @Test
+    public void testBase64()
+    {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        for (int length = 0; length < 6; ++length) {
+            byte[] subData = ArrayUtils.subarray(data, 250, 250 + length);
+
+            Assert.assertTrue(ArrayUtils.isEquals(subData,
+                Base64Codec.decode(Base64Codec.encodeURLSafe(subData), false)));
+            Assert.assertEquals(new String(Base64.encodeBase64(subData)).replace('=', '_'),
+                Base64Codec.encodeLegacy(subData));
+        }
+    }
+
+    @Test
+    public void testBase64IntoBuffer()
+    {
+        byte[] buffer = new byte[16];
+
+        for (int length = 0; length < 6; ++length) {
+            byte[] subData = ArrayUtils.subarray(new byte[] {-1, 0, 1, 2, 3, 4}, 0, length);
+            String text = "2." + Base64Codec.encodeURLSafe(subData);
+
+            Assert.assertEquals(length, Base64Codec.getDecodedLength(text, 2, false));
+            Assert.assertEquals(length, Base64Codec.decode(text, 2, false, buffer));
+            Assert.assertTrue(ArrayUtils.isEquals(subData, ArrayUtils.subarray(buffer, 0, length)));
+        }
+    }
+
+    @Test
+    public void testDecryptReusingBuffer() throws Exception
+    {
+        String longCookie = this.cipher.encrypt("xwiki:XWiki.averyveryverylonguser".getBytes(), SECRET, true);
+        String shortCookie = this.cipher.encrypt("xwiki:XWiki.user".getBytes(), SECRET, true);
+
+        Assert.assertEquals("xwiki:XWiki.averyveryverylonguser", new String(this.cipher.decrypt(longCookie, SECRET)));
+        Assert.assertEquals("xwiki:XWiki.user", new String(this.cipher.decrypt(shortCookie, SECRET)));
+        Assert.assertEquals("xwiki:XWiki.averyveryverylonguser", new String(this.cipher.decrypt(longCookie, SECRET)));
+    }
+
+    @Test
+    public void testSignedTokenInPlace() throws Exception
+    {
+        byte[] signed = this.cipher.sign(new SSOToken("xwiki", "XWiki.user", 1000L, 2000L, 42L).toBytes(), SECRET);
+
+        SSOToken token = SSOToken.fromBytes(signed, this.cipher.getVerifiedLength(signed, SECRET));
+
+        Assert.assertEquals("XWiki.user", token.getUser());
+        Assert.assertEquals(42L, token.getGroupDigest());
+    }
+
+    @Test
+    public void testSignedToken() throws Exception
+    {
+        SSOToken token = new SSOToken("xwiki", "XWiki.user", 1000L, 2000L, 42L);
+
+        String cookie = this.cipher.encrypt(this.cipher.sign(token.toBytes(), SECRET), SECRET, false);
+
+        byte[] decrypted = this.cipher.decrypt(cookie, SECRET);
+
+        Assert.assertTrue(SSOToken.isToken(decrypted));
+
+        SSOToken decodedToken = SSOToken.fromBytes(this.cipher.verify(decrypted, SECRET));
+
+        Assert.assertEquals("xwiki", decodedToken.getWiki());
+        Assert.assertEquals("XWiki.user", decodedToken.getUser());
+        Assert.assertEquals(1000L, decodedToken.getIssuedAt());
+        Assert.assertEquals(2000L, decodedToken.getExpiresAt());
+        Assert.assertEquals(42L, decodedToken.getGroupDigest());
+        Assert.assertTrue(decodedToken.isExpired());
+
+        Assert.assertFalse(SSOToken.isToken("xwiki:XWiki.user".getBytes()));
+    }
+
+    @Test
+    public void testSignatureKeyIsNotCookieKey() throws Exception
+    {
+        byte[] data = new SSOToken("xwiki", "XWiki.user", 1000L, 2000L, 42L).toBytes();
+        byte[] signed = this.cipher.sign(data, SECRET);
+
+        // The key authenticating version 2 cookies
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(SECRET.getBytes()), 16, 16,
+            "HmacSHA256"));
+
+        Assert.assertFalse(Arrays.equals(mac.doFinal(data), Arrays.copyOfRange(signed, data.length, signed.length)));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testVerifyTamperedToken() throws Exception
+    {
+        byte[] signed = this.cipher.sign(new SSOToken("xwiki", "XWiki.user", 1000L, 2000L, 42L).toBytes(), SECRET);
+
+        signed[5] ^= 1;
+
+        this.cipher.verify(signed, SECRET);
+    }
+}
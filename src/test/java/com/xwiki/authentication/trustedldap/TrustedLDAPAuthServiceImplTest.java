@@ -22,6 +22,9 @@
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.Assert;
@@ -33,6 +36,8 @@
 import org.junit.Test;
 
 import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPSearchAttribute;
 import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
 
 public class TrustedLDAPAuthServiceImplTest extends AbstractBridgedComponentTestCase
@@ -61,6 +66,8 @@ public void setUp() throws Exception
         this.mockery.checking(new Expectations()
         {
             {
+                allowing(xwikiMock).Param("xwiki.superadminpassword");
+                will(returnValue("superpassword"));
                 allowing(xwikiMock).Param(with(not(equal("xwiki.authentication.encryptionKey"))));
                 will(returnValue(null));
                 allowing(xwikiMock).Param("xwiki.authentication.encryptionKey");
@@ -203,4 +210,72 @@ public void testEncryptDecrupt() throws Exception
         assertEquals(text, TrustedLDAPAuthServiceImpl.decryptText(
             TrustedLDAPAuthServiceImpl.encryptText(text, getContext()), getContext()));
     }
+
+    @Test
+    public void testGetAttributesFingerprint() throws Exception
+    {
+        List<XWikiLDAPSearchAttribute> attributes =
+            Arrays.asList(new XWikiLDAPSearchAttribute("cn", "user"), new XWikiLDAPSearchAttribute("mail",
+                "user@domain.com"));
+        List<XWikiLDAPSearchAttribute> reversedAttributes =
+            Arrays.asList(new XWikiLDAPSearchAttribute("mail", "user@domain.com"), new XWikiLDAPSearchAttribute("cn",
+                "user"));
+        List<XWikiLDAPSearchAttribute> modifiedAttributes =
+            Arrays.asList(new XWikiLDAPSearchAttribute("cn", "user"), new XWikiLDAPSearchAttribute("mail",
+                "other@domain.com"));
+
+        String fingerprint = this.authenticator.getAttributesFingerprint(attributes, "cn=user", "user@domain");
+
+        Assert.assertEquals(fingerprint,
+            this.authenticator.getAttributesFingerprint(reversedAttributes, "cn=user", "user@domain"));
+        Assert.assertFalse(fingerprint.equals(this.authenticator.getAttributesFingerprint(modifiedAttributes,
+            "cn=user", "user@domain")));
+        Assert.assertFalse(fingerprint.equals(this.authenticator.getAttributesFingerprint(attributes, "cn=other",
+            "user@domain")));
+    }
+
+    @Test
+    public void testAuthenticateSuperadminWhenLDAPIsUnavailable() throws Exception
+    {
+        this.mockery.checking(new Expectations()
+        {
+            {
+                allowing(xwikiMock).getXWikiPreference(with(any(String.class)), with(any(XWikiContext.class)));
+                will(returnValue(null));
+            }
+        });
+
+        TrustedLDAPAuthServiceImpl unavailableAuthenticator = new TrustedLDAPAuthServiceImpl()
+        {
+            private final LDAPCircuitBreaker breaker = new LDAPCircuitBreaker(1, 60000)
+            {
+                @Override
+                public boolean isOpen(String domain)
+                {
+                    return true;
+                }
+            };
+
+            @Override
+            public Principal authenticateSSOInContext(String login, String password, boolean local,
+                XWikiContext context)
+            {
+                return null;
+            }
+
+            @Override
+            protected LDAPCircuitBreaker getCircuitBreaker(XWikiContext context)
+            {
+                return this.breaker;
+            }
+        };
+
+        Principal principal = unavailableAuthenticator.authenticate("superadmin", "superpassword", getContext());
+
+        Assert.assertNotNull(principal);
+        Assert.assertTrue(principal.getName().endsWith("XWiki.superadmin"));
+
+        Assert.assertNull(unavailableAuthenticator.authenticate("superadmin", "wrong", getContext()));
+        Assert.assertNull(unavailableAuthenticator.authenticate("user", "password", getContext()));
+    }
 }
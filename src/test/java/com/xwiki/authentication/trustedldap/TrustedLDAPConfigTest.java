@@ -19,7 +19,9 @@
  */
 package com.xwiki.authentication.trustedldap;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.Assert;
@@ -124,4 +126,58 @@ public void getLDAPBindPassword()
         Assert.assertEquals("custom login password bind pass",
             this.config.getLDAPBindPassword(remoteUserLdapConfiguration, getContext()));
     }
+
+    @Test
+    public void getLDAPServers()
+    {
+        this.mockery.checking(new Expectations()
+        {
+            {
+                allowing(xwikiMock).getXWikiPreference("ldap_ssl", getContext());
+                will(returnValue("0"));
+            }
+        });
+
+        Map<String, String> remoteUserLdapConfiguration = new HashMap<String, String>();
+
+        remoteUserLdapConfiguration.put("login", "login");
+        remoteUserLdapConfiguration.put("password", "password");
+        remoteUserLdapConfiguration.put("ldap_bind_DN", "cn=bind");
+        remoteUserLdapConfiguration.put("ldap_bind_pass", "pass");
+        remoteUserLdapConfiguration.put("ldap_port", "1389");
+        remoteUserLdapConfiguration.put("ldap_server", "ldap1, ldap2:636*3,ldap3*2");
+
+        List<LDAPServer> servers = this.config.getLDAPServers(remoteUserLdapConfiguration, getContext());
+
+        Assert.assertEquals("[ldap1:1389*1, ldap2:636*3, ldap3:1389*2]", servers.toString());
+        Assert.assertEquals("cn=bind", servers.get(1).getConnectionKey().getBindDN());
+        Assert.assertEquals(servers.get(0).getConnectionKey(),
+            this.config.getLDAPConnectionKey(remoteUserLdapConfiguration, getContext()));
+    }
+
+    @Test
+    public void getRemoteUserParser()
+    {
+        this.mockery.checking(new Expectations()
+        {
+            {
+                oneOf(xwikiMock).getXWikiPreference("trustedldap_remoteUserParser", getContext());
+                will(returnValue("(.+)@(.+)"));
+                oneOf(xwikiMock).getXWikiPreference("trustedldap_remoteUserMapping.1", getContext());
+                will(returnValue("login"));
+                oneOf(xwikiMock).getXWikiPreference("trustedldap_remoteUserMapping.2", getContext());
+                will(returnValue("domain,ldap_server"));
+            }
+        });
+
+        RemoteUserParser parser = this.config.getRemoteUserParser(getContext());
+
+        Assert.assertEquals("(.+)@(.+)", parser.getPattern().pattern());
+        Assert.assertEquals(2, parser.getGroupCount());
+        Assert.assertEquals(Arrays.asList("login"), Arrays.asList(parser.getProperties(1)));
+        Assert.assertEquals(Arrays.asList("domain", "ldap_server"), Arrays.asList(parser.getProperties(2)));
+
+        // The preferences are not read again
+        Assert.assertSame(parser, this.config.getRemoteUserParser(getContext()));
+    }
 }
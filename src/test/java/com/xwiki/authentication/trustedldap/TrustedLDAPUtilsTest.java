@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPEntry;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPSearchAttribute;
+
+public class TrustedLDAPUtilsTest
+{
+    @Test
+    public void testGetSearchAttributes()
+    {
+        LDAPAttributeSet attributes = new LDAPAttributeSet();
+        attributes.add(new LDAPAttribute("cn", "User"));
+        attributes.add(new LDAPAttribute("mail", new String[] {"user@domain.com", "alias@domain.com"}));
+
+        List<XWikiLDAPSearchAttribute> searchAttributes =
+            TrustedLDAPUtils.getSearchAttributes(new LDAPEntry("uid=user,dc=domain,dc=com", attributes));
+
+        Assert.assertEquals(4, searchAttributes.size());
+
+        // The DN comes first
+        Assert.assertEquals("dn", searchAttributes.get(0).name);
+        Assert.assertEquals("uid=user,dc=domain,dc=com", searchAttributes.get(0).value);
+
+        int mails = 0;
+        for (XWikiLDAPSearchAttribute searchAttribute : searchAttributes) {
+            if ("mail".equals(searchAttribute.name)) {
+                ++mails;
+            }
+        }
+        Assert.assertEquals(2, mails);
+    }
+
+    @Test
+    public void testGetUserFilterEscapesUid()
+    {
+        TrustedLDAPUtils ldapUtils = new TrustedLDAPUtils(null, null, "domain");
+        ldapUtils.setUidAttributeName("cn");
+        ldapUtils.setUserSearchFormatString("(&(objectClass=person)({0}={1}))");
+
+        Assert.assertEquals("(&(objectClass=person)(cn=user))", ldapUtils.getUserFilter("user"));
+        Assert.assertEquals("(&(objectClass=person)(cn=\\2a))", ldapUtils.getUserFilter("*"));
+        Assert.assertEquals("(&(objectClass=person)(cn=a\\29\\28|\\28x=\\2a))", ldapUtils.getUserFilter("a)(|(x=*"));
+        Assert.assertEquals("(&(objectClass=person)(cn=domain\\5cuser\\00))",
+            ldapUtils.getUserFilter("domain\\user\0"));
+    }
+
+    @Test
+    public void testMappedGroupsWithDifferentlyFormattedDNs()
+    {
+        // As returned by the server
+        Set<String> userGroups =
+            new HashSet<String>(Arrays.asList(TrustedLDAPUtils.normalizeDN("cn=Admins,ou=Groups,dc=example,dc=com"),
+                TrustedLDAPUtils.normalizeDN("cn=users,ou=groups,dc=example,dc=com")));
+
+        // As written in the configuration
+        Map<String, Set<String>> groupMappings = new HashMap<String, Set<String>>();
+        groupMappings.put("XWiki.XWikiAdminGroup", Collections.singleton("CN=admins, OU=Groups, DC=Example, DC=com"));
+        groupMappings.put("XWiki.Editors", Collections.singleton("cn=editors,ou=groups,dc=example,dc=com"));
+
+        Assert.assertEquals(Collections.singleton("XWiki.XWikiAdminGroup"),
+            TrustedLDAPUtils.getMappedGroups(userGroups, groupMappings));
+    }
+
+    @Test
+    public void testIsInTree()
+    {
+        String baseDN = TrustedLDAPUtils.normalizeDN("DC=Example, DC=com");
+
+        Assert.assertTrue(TrustedLDAPUtils.isInTree(
+            TrustedLDAPUtils.normalizeDN("cn=admins, ou=groups,dc=example,dc=com"), baseDN));
+        Assert.assertTrue(TrustedLDAPUtils.isInTree(TrustedLDAPUtils.normalizeDN("dc=example,dc=com"), baseDN));
+        Assert.assertFalse(TrustedLDAPUtils.isInTree(
+            TrustedLDAPUtils.normalizeDN("cn=admins,dc=otherexample,dc=com"), baseDN));
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.trustedldap;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPConnection;
+import com.xpn.xwiki.plugin.ldap.XWikiLDAPSearchAttribute;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+import com.xwiki.authentication.TimedLRUCache;
+
+public class UserProvisioningJobTest extends AbstractBridgedComponentTestCase
+{
+    private static final String FORMAT = "{0}@DOMAIN";
+
+    /**
+     * The content of the checkpoint document.
+     */
+    private final Properties checkpoints = new Properties();
+
+    /**
+     * The filters of the searches made by the jobs.
+     */
+    private final List<String> filters = new ArrayList<String>();
+
+    /**
+     * The remote users synchronized by the jobs.
+     */
+    private final List<String> synchronizedUsers = new ArrayList<String>();
+
+    /**
+     * The remote users failing to be synchronized.
+     */
+    private final Set<String> failingUsers = new HashSet<String>();
+
+    /**
+     * The pages returned by the searches, null for a page failing with an LDAP error.
+     */
+    private List<List<LDAPEntry>> pages = new ArrayList<List<LDAPEntry>>();
+
+    /**
+     * The remote user whose synchronization cancels the job.
+     */
+    private String cancellingUser;
+
+    /**
+     * The highestCommittedUSN of the LDAP server.
+     */
+    private String highestCommittedUSN = "100";
+
+    /**
+     * The groups returned by the searches of changed groups.
+     */
+    private List<List<LDAPEntry>> groupPages = new ArrayList<List<LDAPEntry>>();
+
+    /**
+     * The members of the groups, indexed by group DN.
+     */
+    private final Map<String, Map<String, String>> groupMembers = new HashMap<String, Map<String, String>>();
+
+    /**
+     * The users which can be read by DN.
+     */
+    private final Map<String, LDAPEntry> userEntries = new HashMap<String, LDAPEntry>();
+
+    private UserProvisioningJob job;
+
+    private final TrustedLDAPAuthServiceImpl authService = new TrustedLDAPAuthServiceImpl()
+    {
+        @Override
+        protected Map<String, String> parseRemoteUser(String ssoRemoteUser, XWikiContext context)
+        {
+            return new HashMap<String, String>();
+        }
+
+        @Override
+        protected XWikiLDAPConnection openConnection(Map<String, String> remoteUserLDAPConfiguration,
+            XWikiContext context)
+        {
+            return new XWikiLDAPConnection()
+            {
+                @Override
+                public LDAPConnection getConnection()
+                {
+                    return new LDAPConnection()
+                    {
+                        @Override
+                        public LDAPEntry read(String dn, String[] attributes)
+                        {
+                            LDAPAttributeSet rootDSE = new LDAPAttributeSet();
+                            rootDSE.add(new LDAPAttribute("highestCommittedUSN", highestCommittedUSN));
+
+                            return new LDAPEntry(dn, rootDSE);
+                        }
+                    };
+                }
+
+                @Override
+                public void close()
+                {
+                    // Not connected
+                }
+            };
+        }
+
+        @Override
+        protected TrustedLDAPUtils createLDAPUtils(XWikiLDAPConnection connector,
+            Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+        {
+            TrustedLDAPUtils ldapUtils = new TrustedLDAPUtils(connector, null, "domain")
+            {
+                @Override
+                public String[] getAttributeNameTable(XWikiContext context)
+                {
+                    return null;
+                }
+
+                @Override
+                public Map<String, String> getGroupMembers(String groupDN, XWikiContext context)
+                {
+                    return groupMembers.get(groupDN);
+                }
+            };
+            ldapUtils.setUidAttributeName("uid");
+            ldapUtils.setGroupSearch(Arrays.asList("group"), Arrays.asList("member"), 100, 0);
+
+            return ldapUtils;
+        }
+
+        @Override
+        protected XWikiDocument getUserProfile(String ssoRemoteUser,
+            Map<String, String> remoteUserLDAPConfiguration, TrustedLDAPUtils ldapUtils, XWikiContext context)
+        {
+            return new XWikiDocument(new DocumentReference("xwiki", "XWiki", ssoRemoteUser));
+        }
+
+        @Override
+        protected TimedLRUCache<String, Map<String, String>> getGroupCache(XWikiContext context)
+        {
+            return new TimedLRUCache<String, Map<String, String>>(10, 60000);
+        }
+
+        @Override
+        protected void synchronize(XWikiDocument userProfile, List<XWikiLDAPSearchAttribute> searchAttributes,
+            String ldapDn, String ssoRemoteUser, boolean isNewUser, Map<String, String> remoteUserLDAPConfiguration,
+            TrustedLDAPUtils ldapUtils, XWikiContext context) throws XWikiException
+        {
+            if (failingUsers.contains(ssoRemoteUser)) {
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    "Failed to save " + ssoRemoteUser);
+            }
+
+            synchronizedUsers.add(ssoRemoteUser);
+
+            if (ssoRemoteUser.equals(cancellingUser)) {
+                job.cancel();
+            }
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        this.authService.setConfig(new TrustedLDAPConfig()
+        {
+            @Override
+            public boolean isLDAPBindShared(Map<String, String> remoteUserLDAPConfiguration, XWikiContext context)
+            {
+                return true;
+            }
+        });
+    }
+
+    private UserProvisioningJob createJob(boolean incremental)
+    {
+        return createJob(UserProvisioningJob.MODIFY_TIMESTAMP, incremental);
+    }
+
+    private UserProvisioningJob createJob(String changeTracking, boolean incremental)
+    {
+        this.job =
+            new UserProvisioningJob(this.authService, FORMAT, 100, 1, changeTracking, incremental)
+            {
+                @Override
+                protected Properties loadCheckpoints(XWikiContext context)
+                {
+                    Properties copy = new Properties();
+                    copy.putAll(checkpoints);
+
+                    return copy;
+                }
+
+                @Override
+                protected void storeCheckpoints(Properties newCheckpoints, XWikiContext context)
+                {
+                    checkpoints.clear();
+                    checkpoints.putAll(newCheckpoints);
+                }
+
+                @Override
+                protected String getUserFilter(String uidAttributeName, XWikiContext context)
+                {
+                    return "(" + uidAttributeName + "=*)";
+                }
+
+                @Override
+                protected LDAPPagedSearch createSearch(XWikiLDAPConnection connector, String baseDN, String filter,
+                    String[] attributes)
+                {
+                    filters.add(filter);
+
+                    return new FakeSearch(filter.contains("(objectClass=") ? groupPages : pages);
+                }
+
+                @Override
+                protected LDAPEntry readUser(XWikiLDAPConnection connector, String dn, String userFilter,
+                    String[] attributes)
+                {
+                    return userEntries.get(dn);
+                }
+            };
+
+        return this.job;
+    }
+
+    /**
+     * Return the configured pages, sorted by uid.
+     */
+    private static class FakeSearch extends LDAPPagedSearch
+    {
+        private final List<List<LDAPEntry>> pages;
+
+        private int index;
+
+        FakeSearch(List<List<LDAPEntry>> pages)
+        {
+            super(null, null, null, null, 1);
+
+            this.pages = pages;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return this.index < this.pages.size();
+        }
+
+        @Override
+        public List<LDAPEntry> next() throws LDAPException
+        {
+            List<LDAPEntry> page = this.pages.get(this.index++);
+
+            if (page == null) {
+                throw new LDAPException("Server down", LDAPException.SERVER_DOWN, null);
+            }
+
+            return page;
+        }
+
+        @Override
+        public boolean isSorted()
+        {
+            return true;
+        }
+    }
+
+    private static List<LDAPEntry> page(String... uids)
+    {
+        List<LDAPEntry> entries = new ArrayList<LDAPEntry>();
+
+        for (String uid : uids) {
+            LDAPAttributeSet attributes = new LDAPAttributeSet();
+            attributes.add(new LDAPAttribute("uid", uid));
+
+            entries.add(new LDAPEntry("uid=" + uid + ",ou=people", attributes));
+        }
+
+        return entries;
+    }
+
+    private String checkpoint(String suffix)
+    {
+        return this.checkpoints.getProperty(FORMAT + suffix);
+    }
+
+    @Test
+    public void testFullRun() throws Exception
+    {
+        this.pages = Arrays.asList(page("a", "b"), page("c"));
+
+        UserProvisioningJob.Status status = createJob(false).getStatus();
+        this.job.run(getContext());
+
+        Assert.assertEquals(UserProvisioningJob.State.DONE, status.getState());
+        Assert.assertEquals(3, status.getProcessed());
+        Assert.assertEquals(Arrays.asList("a@DOMAIN", "b@DOMAIN", "c@DOMAIN"), this.synchronizedUsers);
+        Assert.assertEquals("(uid=*)", this.filters.get(0));
+
+        Assert.assertEquals("DONE", checkpoint(".state"));
+        Assert.assertEquals("c", checkpoint(".lastUid"));
+        Assert.assertEquals("3", checkpoint(".processed"));
+        // The mark of the run is only the reference of the next incremental runs once the run is finished
+        Assert.assertNotNull(checkpoint(".changeMark.modifyTimestamp"));
+        Assert.assertEquals(checkpoint(".pendingChangeMark.modifyTimestamp"),
+            checkpoint(".changeMark.modifyTimestamp"));
+    }
+
+    @Test
+    public void testFinishedRunStartsFromBeginning() throws Exception
+    {
+        this.checkpoints.setProperty(FORMAT + ".state", "DONE");
+        this.checkpoints.setProperty(FORMAT + ".lastUid", "c");
+        this.checkpoints.setProperty(FORMAT + ".processed", "3");
+        this.pages = Arrays.asList(page("a"));
+
+        UserProvisioningJob.Status status = createJob(false).getStatus();
+        this.job.run(getContext());
+
+        Assert.assertEquals("(uid=*)", this.filters.get(0));
+        Assert.assertEquals(0, status.getResumedFrom());
+        Assert.assertEquals(1, status.getProcessed());
+    }
+
+    @Test
+    public void testCancelAndResume() throws Exception
+    {
+        this.pages = Arrays.asList(page("a", "b"), page("c"));
+        this.cancellingUser = "b@DOMAIN";
+
+        UserProvisioningJob.Status status = createJob(false).getStatus();
+        this.job.run(getContext());
+
+        Assert.assertEquals(UserProvisioningJob.State.CANCELLED, status.getState());
+        Assert.assertEquals("CANCELLED", checkpoint(".state"));
+        Assert.assertEquals("b", checkpoint(".lastUid"));
+        Assert.assertEquals("2", checkpoint(".processed"));
+        Assert.assertNull(checkpoint(".changeMark.modifyTimestamp"));
+        String pendingChangeMark = checkpoint(".pendingChangeMark.modifyTimestamp");
+        Assert.assertNotNull(pendingChangeMark);
+
+        // The next run only reads the remaining users
+        this.pages = Arrays.asList(page("c"));
+        this.cancellingUser = null;
+        this.synchronizedUsers.clear();
+
+        status = createJob(false).getStatus();
+        this.job.run(getContext());
+
+        Assert.assertEquals("(&(uid=*)(!(uid<=b)))", this.filters.get(1));
+        Assert.assertEquals(Arrays.asList("c@DOMAIN"), this.synchronizedUsers);
+        Assert.assertEquals(UserProvisioningJob.State.DONE, status.getState());
+        Assert.assertEquals(2, status.getResumedFrom());
+        Assert.assertEquals(3, status.getProcessed());
+        Assert.assertEquals("DONE", checkpoint(".state"));
+        // A resumed run keeps the mark of the run it resumes
+        Assert.assertEquals(pendingChangeMark, checkpoint(".changeMark.modifyTimestamp"));
+    }
+
+    @Test
+    public void testFailedRunResumesAtFirstFailedUser() throws Exception
+    {
+        // The second page fails with an LDAP error
+        this.pages = Arrays.asList(page("a", "b", "c"), null);
+        this.failingUsers.add("b@DOMAIN");
+
+        UserProvisioningJob.Status status = createJob(false).getStatus();
+        try {
+            this.job.run(getContext());
+
+            Assert.fail("The job should have failed");
+        } catch (XWikiException expected) {
+            // Expected
+        }
+
+        Assert.assertEquals(UserProvisioningJob.State.FAILED, status.getState());
+        Assert.assertNotNull(status.getError());
+        Assert.assertEquals(3, status.getProcessed());
+        Assert.assertEquals(1, status.getFailed());
+        Assert.assertEquals("FAILED", checkpoint(".state"));
+        // b is synchronized again by the next run
+        Assert.assertEquals("a", checkpoint(".lastUid"));
+
+        this.pages = Arrays.asList(page("b", "c"));
+        this.failingUsers.clear();
+        this.synchronizedUsers.clear();
+
+        createJob(false).run(getContext());
+
+        Assert.assertEquals("(&(uid=*)(!(uid<=a)))", this.filters.get(1));
+        Assert.assertEquals(Arrays.asList("b@DOMAIN", "c@DOMAIN"), this.synchronizedUsers);
+    }
+
+    @Test
+    public void testIncrementalRunWithoutChangeMark() throws Exception
+    {
+        this.pages = Arrays.asList(page("a"));
+
+        UserProvisioningJob.Status status = createJob(UserProvisioningJob.USN_CHANGED, true).getStatus();
+        this.job.run(getContext());
+
+        // Nothing tells what changed, all the users are synchronized
+        Assert.assertFalse(status.isIncremental());
+        Assert.assertEquals(Arrays.asList("(uid=*)"), this.filters);
+        Assert.assertEquals("DONE", checkpoint(".state"));
+        Assert.assertNull(checkpoint(".incremental.state"));
+        Assert.assertEquals("100", checkpoint(".changeMark.uSNChanged"));
+    }
+
+    @Test
+    public void testUSNChangeMark() throws Exception
+    {
+        this.pages = Arrays.asList(page("a", "b"));
+
+        createJob(UserProvisioningJob.USN_CHANGED, false).run(getContext());
+
+        Assert.assertEquals("100", checkpoint(".pendingChangeMark.uSNChanged"));
+        Assert.assertEquals("100", checkpoint(".changeMark.uSNChanged"));
+
+        // b changed, c was added to a changed group
+        this.highestCommittedUSN = "150";
+        this.pages = Arrays.asList(page("b"));
+        this.groupPages = Arrays.asList(Collections.singletonList(new LDAPEntry("cn=group", new LDAPAttributeSet())));
+        Map<String, String> members = new HashMap<String, String>();
+        members.put("uid=b,ou=people", "b");
+        members.put("uid=c,ou=people", "c");
+        members.put("cn=subgroup", "subgroup");
+        this.groupMembers.put("cn=group", members);
+        this.userEntries.put("uid=c,ou=people", page("c").get(0));
+        this.synchronizedUsers.clear();
+
+        UserProvisioningJob.Status status = createJob(UserProvisioningJob.USN_CHANGED, true).getStatus();
+        this.job.run(getContext());
+
+        Assert.assertTrue(status.isIncremental());
+        Assert.assertEquals(UserProvisioningJob.State.DONE, status.getState());
+        // The mark is the last change already read, only the following ones are searched
+        Assert.assertEquals("(&(uid=*)(uSNChanged>=101))", this.filters.get(1));
+        Assert.assertEquals("(&(|(objectClass=group))(uSNChanged>=101))", this.filters.get(2));
+        Assert.assertEquals(Arrays.asList("b@DOMAIN", "c@DOMAIN"), this.synchronizedUsers);
+        Assert.assertEquals(2, status.getProcessed());
+
+        Assert.assertEquals("DONE", checkpoint(".incremental.state"));
+        Assert.assertEquals("150", checkpoint(".incremental.pendingChangeMark.uSNChanged"));
+        Assert.assertEquals("150", checkpoint(".changeMark.uSNChanged"));
+        // The progress of the full provisioning is untouched
+        Assert.assertEquals("b", checkpoint(".lastUid"));
+        Assert.assertEquals("100", checkpoint(".pendingChangeMark.uSNChanged"));
+    }
+
+    @Test
+    public void testFailedIncrementalRunKeepsChangeMark() throws Exception
+    {
+        this.checkpoints.setProperty(FORMAT + ".changeMark.uSNChanged", "100");
+        this.highestCommittedUSN = "150";
+        this.pages = Collections.singletonList(null);
+
+        UserProvisioningJob.Status status = createJob(UserProvisioningJob.USN_CHANGED, true).getStatus();
+        try {
+            this.job.run(getContext());
+
+            Assert.fail("The job should have failed");
+        } catch (XWikiException expected) {
+            // Expected
+        }
+
+        Assert.assertEquals(UserProvisioningJob.State.FAILED, status.getState());
+        Assert.assertEquals("FAILED", checkpoint(".incremental.state"));
+        Assert.assertEquals("150", checkpoint(".incremental.pendingChangeMark.uSNChanged"));
+        Assert.assertEquals("100", checkpoint(".changeMark.uSNChanged"));
+
+        // The next run reads again the changes the failed run missed
+        this.highestCommittedUSN = "200";
+        this.pages = Arrays.asList(page("a"));
+
+        createJob(UserProvisioningJob.USN_CHANGED, true).run(getContext());
+
+        Assert.assertEquals("(&(uid=*)(uSNChanged>=101))", this.filters.get(1));
+        Assert.assertEquals("DONE", checkpoint(".incremental.state"));
+        Assert.assertEquals("200", checkpoint(".changeMark.uSNChanged"));
+    }
+
+    @Test
+    public void testResumedRunKeepsChangeMark() throws Exception
+    {
+        this.pages = Arrays.asList(page("a", "b"), page("c"));
+        this.cancellingUser = "b@DOMAIN";
+
+        createJob(UserProvisioningJob.USN_CHANGED, false).run(getContext());
+
+        Assert.assertEquals("100", checkpoint(".pendingChangeMark.uSNChanged"));
+        Assert.assertNull(checkpoint(".changeMark.uSNChanged"));
+
+        this.highestCommittedUSN = "200";
+        this.pages = Arrays.asList(page("c"));
+        this.cancellingUser = null;
+
+        createJob(UserProvisioningJob.USN_CHANGED, false).run(getContext());
+
+        // a and b may have changed after the first run read them
+        Assert.assertEquals("DONE", checkpoint(".state"));
+        Assert.assertEquals("100", checkpoint(".changeMark.uSNChanged"));
+    }
+
+    @Test
+    public void testModifyTimestampChangeMark() throws Exception
+    {
+        this.pages = Arrays.asList(page("a"));
+
+        long before = System.currentTimeMillis();
+        createJob(false).run(getContext());
+        long after = System.currentTimeMillis();
+
+        String changeMark = checkpoint(".changeMark.modifyTimestamp");
+
+        // The changes made shortly before the run are read again in case the LDAP server clock is late
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long skew = 5 * 60 * 1000L;
+        long markTime = format.parse(changeMark).getTime();
+        Assert.assertTrue(markTime > before - skew - 1000);
+        Assert.assertTrue(markTime <= after - skew);
+
+        UserProvisioningJob.Status status = createJob(true).getStatus();
+        this.job.run(getContext());
+
+        Assert.assertTrue(status.isIncremental());
+        Assert.assertEquals("(&(uid=*)(modifyTimestamp>=" + changeMark + "))", this.filters.get(1));
+        Assert.assertEquals("(&(|(objectClass=group))(modifyTimestamp>=" + changeMark + "))", this.filters.get(2));
+    }
+}